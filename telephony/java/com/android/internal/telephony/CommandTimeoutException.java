@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+/**
+ * Reported for a RIL request that got no response from the radio before
+ * its deadline. It carries GENERIC_FAILURE so existing error handling
+ * keeps working; callers that care can test for this class.
+ *
+ * {@hide}
+ */
+public class CommandTimeoutException extends CommandException {
+    private final int mTimeoutMillis;
+
+    public CommandTimeoutException(int timeoutMillis) {
+        super(Error.GENERIC_FAILURE);
+        mTimeoutMillis = timeoutMillis;
+    }
+
+    /** How long the request waited for a response, in milliseconds. */
+    public int getTimeoutMillis() {
+        return mTimeoutMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "CommandTimeoutException: no response after " + mTimeoutMillis + "ms";
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Result of RIL_REQUEST_GET_CURRENT_CALLS: the current calls sorted by
+ * index, as before, plus how they differ from the previous poll.
+ *
+ * Every DriverCall is a new copy, which the caller may modify; the
+ * calls in the added and changed lists are the same instances as in the
+ * list itself.
+ *
+ * {@hide}
+ */
+public final class DriverCallList extends ArrayList<DriverCall> {
+    private static final long serialVersionUID = 1L;
+
+    private List<DriverCall> mAdded = Collections.emptyList();
+    private List<DriverCall> mRemoved = Collections.emptyList();
+    private List<DriverCall> mChanged = Collections.emptyList();
+
+    DriverCallList(int capacity) {
+        super(capacity);
+    }
+
+    /** Calls whose index was not in the previous poll. */
+    public List<DriverCall> getAdded() {
+        return mAdded;
+    }
+
+    /** Calls of the previous poll whose index is gone. */
+    public List<DriverCall> getRemoved() {
+        return mRemoved;
+    }
+
+    /** Calls that were in the previous poll with different values. */
+    public List<DriverCall> getChanged() {
+        return mChanged;
+    }
+
+    /** @return true if the calls are the same as in the previous poll */
+    public boolean isUnchanged() {
+        return mAdded.isEmpty() && mRemoved.isEmpty() && mChanged.isEmpty();
+    }
+
+    void addAdded(DriverCall dc) {
+        if (mAdded.isEmpty()) {
+            mAdded = new ArrayList<DriverCall>(2);
+        }
+        mAdded.add(dc);
+    }
+
+    void addRemoved(DriverCall dc) {
+        if (mRemoved.isEmpty()) {
+            mRemoved = new ArrayList<DriverCall>(2);
+        }
+        mRemoved.add(dc);
+    }
+
+    void addChanged(DriverCall dc) {
+        if (mChanged.isEmpty()) {
+            mChanged = new ArrayList<DriverCall>(2);
+        }
+        mChanged.add(dc);
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import static android.telephony.TelephonyManager.NETWORK_TYPE_EDGE;
+import static android.telephony.TelephonyManager.NETWORK_TYPE_GPRS;
+
+import android.telephony.NeighboringCellInfo;
+
+/**
+ * Neighboring cells of one RIL_REQUEST_GET_NEIGHBORING_CELL_IDS
+ * response held in two int arrays, for callers that would otherwise
+ * unpack a NeighboringCellInfo per cell. Values are interpreted the way
+ * NeighboringCellInfo does.
+ *
+ * {@hide}
+ */
+public final class NeighboringCellList {
+    //***** Instance Variables
+    private final int mNetworkType;
+    private final int[] mRssi;
+    // Location as sent by rild: LAC << 16 | CID for GSM, the PSC for UMTS,
+    // UNKNOWN_CID if unknown or unparseable
+    private final int[] mLocation;
+    private int mSize;
+
+    NeighboringCellList(int networkType, int capacity) {
+        mNetworkType = networkType;
+        mRssi = new int[capacity];
+        mLocation = new int[capacity];
+    }
+
+    void add(int rssi, String location) {
+        mRssi[mSize] = rssi;
+        mLocation[mSize] = parseLocation(location);
+        mSize++;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /** @return the TelephonyManager.NETWORK_TYPE_* shared by all cells */
+    public int getNetworkType() {
+        return mNetworkType;
+    }
+
+    public int getRssi(int i) {
+        return mRssi[i];
+    }
+
+    /** @return LAC of a GSM cell, or UNKNOWN_CID */
+    public int getLac(int i) {
+        int location = mLocation[i];
+
+        if (!isGsm() || location == NeighboringCellInfo.UNKNOWN_CID) {
+            return NeighboringCellInfo.UNKNOWN_CID;
+        }
+        return location >>> 16;
+    }
+
+    /** @return cell id of a GSM cell, or UNKNOWN_CID */
+    public int getCid(int i) {
+        int location = mLocation[i];
+
+        if (!isGsm() || location == NeighboringCellInfo.UNKNOWN_CID) {
+            return NeighboringCellInfo.UNKNOWN_CID;
+        }
+        return location & 0xffff;
+    }
+
+    /** @return primary scrambling code of a UMTS cell, or UNKNOWN_CID */
+    public int getPsc(int i) {
+        if (isGsm()) {
+            return NeighboringCellInfo.UNKNOWN_CID;
+        }
+        return mLocation[i];
+    }
+
+    //***** Private Methods
+
+    private boolean isGsm() {
+        return mNetworkType == NETWORK_TYPE_GPRS || mNetworkType == NETWORK_TYPE_EDGE;
+    }
+
+    /**
+     * Parses up to 8 hex digits, short strings being zero-extended like
+     * NeighboringCellInfo does; anything else is UNKNOWN_CID, as is
+     * "FFFFFFFF".
+     */
+    private static int parseLocation(String location) {
+        if (location == null) {
+            return NeighboringCellInfo.UNKNOWN_CID;
+        }
+
+        int length = location.length();
+        if (length > 8) {
+            return NeighboringCellInfo.UNKNOWN_CID;
+        }
+
+        int value = 0;
+        for (int i = 0; i < length; i++) {
+            int digit = Character.digit(location.charAt(i), 16);
+
+            if (digit < 0) {
+                return NeighboringCellInfo.UNKNOWN_CID;
+            }
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
+}
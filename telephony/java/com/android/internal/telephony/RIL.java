@@ -18,12 +18,6 @@ package com.android.internal.telephony;
 
 import static com.android.internal.telephony.RILConstants.*;
 import static android.telephony.TelephonyManager.NETWORK_TYPE_UNKNOWN;
-import static android.telephony.TelephonyManager.NETWORK_TYPE_EDGE;
-import static android.telephony.TelephonyManager.NETWORK_TYPE_GPRS;
-import static android.telephony.TelephonyManager.NETWORK_TYPE_UMTS;
-import static android.telephony.TelephonyManager.NETWORK_TYPE_HSDPA;
-import static android.telephony.TelephonyManager.NETWORK_TYPE_HSUPA;
-import static android.telephony.TelephonyManager.NETWORK_TYPE_HSPA;
 
 import android.content.BroadcastReceiver;
 import android.content.Context;
@@ -33,11 +27,11 @@ import android.net.LocalSocket;
 import android.net.LocalSocketAddress;
 import android.os.AsyncResult;
 import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
 import android.os.Parcel;
 import android.os.PowerManager;
+import android.os.SystemClock;
 import android.os.SystemProperties;
 import android.os.PowerManager.WakeLock;
 import android.telephony.NeighboringCellInfo;
@@ -62,11 +56,24 @@ import com.android.internal.telephony.cdma.CdmaCallWaitingNotification;
 import com.android.internal.telephony.cdma.CdmaInformationRecords;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileDescriptor;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * {@hide}
@@ -75,49 +82,116 @@ class RILRequest {
     static final String LOG_TAG = "RILJ";
 
     //***** Class Variables
-    static int sNextSerial = 0;
-    static Object sSerialMonitor = new Object();
-    private static Object sPoolSync = new Object();
-    private static RILRequest sPool = null;
-    private static int sPoolSize = 0;
-    private static final int MAX_POOL_SIZE = 4;
+
+    /**
+     * Recycled requests are kept in a fixed array of slots which are
+     * claimed and filled with compareAndSet, so obtain() and release()
+     * never block. Only the first sPoolLimit slots are used; the limit
+     * follows the highest number of requests seen outstanding at once,
+     * between MIN_POOL_SIZE and MAX_POOL_SIZE.
+     */
+    private static final int MIN_POOL_SIZE = 4;
+    private static final int MAX_POOL_SIZE = 32;
+    private static final AtomicReferenceArray<RILRequest> sPool =
+            new AtomicReferenceArray<RILRequest>(MAX_POOL_SIZE);
+    private static final AtomicInteger sPoolLimit = new AtomicInteger(MIN_POOL_SIZE);
+    private static final AtomicInteger sOutstanding = new AtomicInteger(0);
+    private static final AtomicLong sPoolHits = new AtomicLong(0);
+    private static final AtomicLong sPoolMisses = new AtomicLong(0);
+
+    // Request buffers are kept with pooled requests unless they grew past this
+    private static final int INITIAL_PARCEL_BYTES = 256;
+    private static final int MAX_POOLED_PARCEL_BYTES = 2 * 1024;
 
     //***** Instance Variables
     int mSerial;
     int mRequest;
     Message mResult;
-    Parcel mp;
-    RILRequest mNext;
+    RILParcelWriter mp;
+    // May be sent again after rild restarts, see RIL.setReconnectMode
+    boolean mReplayable;
+
+    // Links used by RILRequestTable while the request is in flight
+    RILRequest mInFlightPrev;
+    RILRequest mInFlightNext;
+
+    // Decodes the response instead of the registered parser if not null
+    RILRequestRegistry.ResponseParser mParser;
+
+    // Decoded response, held until the dispatch stage delivers it
+    Object mResponse;
+    int mResponseError;
+    Throwable mResponseException;
+
+    // Completed along with mResult, for requests made through the *Async methods
+    RILFuture<?> mFuture;
+
+    // Set while other callers may attach to this request, see RILRequestCoalescer
+    RILRequestCoalescer mCoalescer;
+    ArrayList<Message> mFollowers;
+
+    // Send lane and when the request was queued on it, in uptime ms
+    int mLane;
+    long mEnqueueTime;
+
+    // System.nanoTime() when queued, taken off the lane to be written, and
+    // when the response was read; see RILRequestStats
+    long mEnqueueNanos;
+    long mWriteNanos;
+    long mResponseNanos;
+
+    // Deadline state used by RILTimerWheel; mTimerBucket is -1 when unscheduled
+    int mTimeout;
+    long mDeadline;
+    int mTimerBucket = -1;
+    RILRequest mTimerPrev;
+    RILRequest mTimerNext;
 
     /**
      * Retrieves a new RILRequest instance from the pool.
      *
+     * @param serials serial space of the RIL sending the request
      * @param request RIL_REQUEST_*
      * @param result sent when operation completes
      * @return a RILRequest instance from the pool.
      */
-    static RILRequest obtain(int request, Message result) {
+    static RILRequest obtain(AtomicInteger serials, int request, Message result) {
         RILRequest rr = null;
+        int limit = sPoolLimit.get();
+
+        for (int i = 0; i < limit; i++) {
+            RILRequest cached = sPool.get(i);
 
-        synchronized(sPoolSync) {
-            if (sPool != null) {
-                rr = sPool;
-                sPool = rr.mNext;
-                rr.mNext = null;
-                sPoolSize--;
+            if (cached != null && sPool.compareAndSet(i, cached, null)) {
+                rr = cached;
+                break;
             }
         }
 
         if (rr == null) {
+            sPoolMisses.incrementAndGet();
             rr = new RILRequest();
+        } else {
+            sPoolHits.incrementAndGet();
         }
 
-        synchronized(sSerialMonitor) {
-            rr.mSerial = sNextSerial++;
+        int outstanding = sOutstanding.incrementAndGet();
+        while (outstanding > limit && limit < MAX_POOL_SIZE) {
+            if (sPoolLimit.compareAndSet(limit, Math.min(outstanding, MAX_POOL_SIZE))) {
+                break;
+            }
+            limit = sPoolLimit.get();
         }
+
+        rr.mSerial = serials.getAndIncrement();
         rr.mRequest = request;
         rr.mResult = result;
-        rr.mp = Parcel.obtain();
+        rr.mReplayable = RIL.isReplayable(request);
+        if (rr.mp == null) {
+            rr.mp = new RILParcelWriter(INITIAL_PARCEL_BYTES);
+        } else {
+            rr.mp.reset();
+        }
 
         if (result != null && result.getTarget() == null) {
             throw new NullPointerException("Message target must not be null");
@@ -136,11 +210,36 @@ class RILRequest {
      * Note: This should only be called once per use.
      */
     void release() {
-        synchronized (sPoolSync) {
-            if (sPoolSize < MAX_POOL_SIZE) {
-                this.mNext = sPool;
-                sPool = this;
-                sPoolSize++;
+        // Nothing of this use may leak into the next one
+        mResult = null;
+        mFuture = null;
+        mReplayable = false;
+        mInFlightPrev = null;
+        mInFlightNext = null;
+        mParser = null;
+        mResponse = null;
+        mResponseError = 0;
+        mResponseException = null;
+        mCoalescer = null;
+        mFollowers = null;
+        mLane = 0;
+        mEnqueueTime = 0;
+        mEnqueueNanos = 0;
+        mWriteNanos = 0;
+        mResponseNanos = 0;
+        mTimeout = 0;
+        mDeadline = 0;
+        mTimerBucket = -1;
+        mTimerPrev = null;
+        mTimerNext = null;
+        if (mp != null && mp.capacity() > MAX_POOLED_PARCEL_BYTES) {
+            mp = null;
+        }
+        sOutstanding.decrementAndGet();
+
+        for (int i = 0, limit = sPoolLimit.get(); i < limit; i++) {
+            if (sPool.get(i) == null && sPool.compareAndSet(i, null, this)) {
+                return;
             }
         }
     }
@@ -148,11 +247,33 @@ class RILRequest {
     private RILRequest() {
     }
 
-    static void
-    resetSerial() {
-        synchronized(sSerialMonitor) {
-            sNextSerial = 0;
-        }
+    /**
+     * Gives the request a new serial, for sending it again after the
+     * serials were reset.
+     */
+    void
+    renumber(AtomicInteger serials) {
+        mSerial = serials.getAndIncrement();
+        // The serial follows the request type in the parcel
+        mp.setInt(4, mSerial);
+    }
+
+    /** Number of obtain() calls satisfied from the pool. */
+    static long
+    getPoolHits() {
+        return sPoolHits.get();
+    }
+
+    /** Number of obtain() calls that had to allocate. */
+    static long
+    getPoolMisses() {
+        return sPoolMisses.get();
+    }
+
+    /** Number of pool slots currently in use, adapted to demand. */
+    static int
+    getPoolLimit() {
+        return sPoolLimit.get();
     }
 
     String
@@ -178,20 +299,49 @@ class RILRequest {
     onError(int error, Object ret) {
         CommandException ex;
 
-        ex = CommandException.fromRilErrno(error);
+        if (error == RIL.REQUEST_TIMED_OUT) {
+            ex = new CommandTimeoutException(mTimeout);
+        } else {
+            ex = CommandException.fromRilErrno(error);
+        }
 
         if (RIL.RILJ_LOGD) Log.d(LOG_TAG, serialString() + "< "
             + RIL.requestToString(mRequest)
             + " error: " + ex);
 
+        sendResult(ret, ex);
+    }
+
+    /**
+     * Completes the request with ret or ex, for the caller and for any
+     * callers that were attached to it.
+     */
+    void
+    sendResult(Object ret, Throwable ex) {
+        ArrayList<Message> followers = null;
+
+        if (mCoalescer != null) {
+            followers = mCoalescer.detach(this);
+        }
+
         if (mResult != null) {
             AsyncResult.forMessage(mResult, ret, ex);
             mResult.sendToTarget();
         }
 
-        if (mp != null) {
-            mp.recycle();
-            mp = null;
+        if (mFuture != null) {
+            mFuture.complete(ret, ex);
+        }
+
+        if (followers != null) {
+            for (int i = 0, s = followers.size(); i < s; i++) {
+                Message m = followers.get(i);
+
+                if (m != null) {
+                    AsyncResult.forMessage(m, ret, ex);
+                    m.sendToTarget();
+                }
+            }
         }
     }
 }
@@ -218,39 +368,213 @@ public final class RIL extends BaseCommands implements CommandsInterface {
     //***** Instance Variables
 
     LocalSocket mSocket;
-    HandlerThread mSenderThread;
+    // Name of the rild socket in the reserved namespace
+    final String mSocketName;
+    // Threads shared with other RIL instances, or private to this one
+    final RILTransportRuntime mRuntime;
     RILSender mSender;
     Thread mReceiverThread;
     RILReceiver mReceiver;
+    // TRANSPORT_EVENT_LOOP only, in place of mReceiver
+    RILEventLoop mEventLoop;
     private Context mContext;
     WakeLock mWakeLock;
     int mWakeLockTimeout;
     int mRequestMessagesPending;
 
+    // Requests waiting to be written by RILSender, one queue per SEND_LANE_*,
+    // oldest first
+    final ConcurrentLinkedQueue<RILRequest>[] mSendLanes = newSendLanes();
+    // True while an EVENT_SEND is posted, or mEventLoop woken, and has not
+    // started draining mSendLanes
+    final AtomicBoolean mSendScheduled = new AtomicBoolean(false);
+
     // Is this the first radio state change?
     private boolean mInitialRadioStateChange = true;
 
-    //I'd rather this be LinkedList or something
-    ArrayList<RILRequest> mRequestsList = new ArrayList<RILRequest>();
+    // Requests written to rild and awaiting a response, keyed by serial
+    RILRequestTable mRequestsList = new RILRequestTable();
+
+    // When set, the socket is reopened with exponential backoff and
+    // replayable requests outstanding at disconnect are sent again
+    volatile boolean mReconnectMode;
+    // Requests held for replay and when they were taken off
+    // mRequestsList; receiver or event loop thread only
+    final ArrayList<RILRequest> mReplayList = new ArrayList<RILRequest>();
+    long mReplayHeldSince;
+    long mReplayCount;
+
+    // Serials of this instance; restarted whenever rild is reconnected
+    final AtomicInteger mNextSerial = new AtomicInteger(0);
+
+    // Publishers of unsolicited responses, indexed by the metric slot of
+    // their sUnsolRegistry entry; copied on write
+    volatile RILEventPublisher[] mEventPublishers = new RILEventPublisher[0];
+
+    // Copies messages to and from rild to files when set, see
+    // startWireCapture()
+    volatile RILWireCapture mWireCapture;
+
+    // Never connects to rild, only decodes what RILWireReplay feeds it,
+    // see createForReplay()
+    final boolean mReplayOnly;
+    // Serials of requests made by addReplayedRequest, which replaces
+    // them with the captured ones
+    private final AtomicInteger mReplaySerial = new AtomicInteger();
+
+    // Recent requests and responses, see dumpTrace()
+    final RILTrace mTrace = new RILTrace(RIL_TRACE_ENTRIES);
+
+    // Statistics per request type, indexed by the metric slot of their
+    // sRequestRegistry entry; copied on write
+    volatile RILRequestStats[] mRequestStats = new RILRequestStats[0];
+    final Object mRequestStatsLock = new Object();
+
+    // Shares outstanding read-only queries between callers
+    final RILRequestCoalescer mCoalescer = new RILRequestCoalescer(mNextSerial);
+
+    // Deadlines of the requests in mRequestsList; guarded by mRequestsList
+    RILTimerWheel mRequestTimers;
+    // Per RIL_REQUEST_* timeout in ms, 0 for none; guarded by mRequestsList
+    private int[] mRequestTimeouts = new int[0];
+    int mRequestTimeoutCount;
+
+    /**
+     * Call state change debouncing; off while mCallStateWindow is 0. A
+     * burst of RIL_UNSOL_RESPONSE_CALL_STATE_CHANGED becomes one
+     * notification, sent mCallStateWindow ms after the last event of the
+     * burst but no later than mCallStateMaxDelay ms after the first.
+     * Guarded by mCallStateLock.
+     */
+    private final Object mCallStateLock = new Object();
+    private int mCallStateWindow;
+    private int mCallStateMaxDelay;
+    private boolean mCallStatePending;
+    private long mCallStateBurstStart;
+    private long mCallStateEvents;
+    private long mCallStateNotifications;
 
     Object     mLastNITZTimeInfo;
 
+    // Decodes GET_CURRENT_CALLS against the previous poll; receiver thread only
+    final RILCallListDecoder mCallListDecoder = new RILCallListDecoder();
+    // The same for getCurrentCallsAsync(), whose callers have a baseline
+    // of their own; receiver thread only
+    final RILCallListDecoder mAsyncCallListDecoder = new RILCallListDecoder();
+
+    // Radio access type for interpreting neighboring cell locations
+    final RILRadioTypeResolver mRadioTypeResolver = new RILRadioTypeResolver();
+
+    // Voice privacy of the calls in the last call list, VOICE_PRIVACY_*;
+    // receiver thread only
+    private int mVoicePrivacyState = VOICE_PRIVACY_UNKNOWN;
+
+    // RIL_UNSOL_SIGNAL_STRENGTH is decoded into mSignalStrength and only
+    // published when it differs from mLastSignalStrength. Receiver thread
+    // only, except mSignalStrengthValid which is cleared to force the
+    // next reading out.
+    final RILSignalStrength mSignalStrength = new RILSignalStrength();
+    final RILSignalStrength mLastSignalStrength = new RILSignalStrength();
+    volatile boolean mSignalStrengthValid;
+    long mSignalStrengthUnchanged;
+
+    // Decodes incoming GSM SMS in order, off the receiver thread
+    SmsDecoder mSmsDecoder;
+    // SMS statistics. Time on the receiver thread per SMS is the cost of
+    // the handoff; decoding is counted by whichever thread decodes.
+    long mSmsReceiverNanos;
+    final AtomicLong mSmsCount = new AtomicLong();
+    final AtomicLong mSmsDecodeNanos = new AtomicLong();
+
+    /**
+     * Results and notifications are delivered by mDispatcher, so the
+     * receiver only frames and decodes and slow listeners don't hold up
+     * reading the socket. Everything goes through one queue, in the
+     * order it was read.
+     */
+    RILDispatcher mDispatcher;
+    // Events handed to mDispatcher and not yet delivered
+    final AtomicInteger mDispatchDepth = new AtomicInteger(0);
+    // Queue depth seen by each event, and time from read to delivery in us
+    final RILHistogram mDispatchDepthHistogram = new RILHistogram();
+    final RILHistogram mDispatchLatencyHistogram = new RILHistogram();
+
     //***** Events
 
     static final int EVENT_SEND                 = 1;
     static final int EVENT_WAKE_LOCK_TIMEOUT    = 2;
+    static final int EVENT_REQUEST_TIMEOUT      = 3;
+    static final int EVENT_CALL_STATE_DEBOUNCE  = 4;
+    static final int EVENT_DECODE_SMS           = 5;
+    static final int EVENT_DISPATCH_SOLICITED   = 6;
+    static final int EVENT_DISPATCH_UNSOLICITED = 7;
+    static final int EVENT_DISPATCH_RADIO_UNAVAILABLE = 8;
+    static final int EVENT_DISPATCH_VOICE_PRIVACY = 9;
 
     //***** Constants
 
+    /**
+     * Transport modes, see {@link #RIL(Context, int, int, String,
+     * RILTransportRuntime, int)}.
+     */
+    public static final int TRANSPORT_THREADED = 0;
+    public static final int TRANSPORT_EVENT_LOOP = 1;
+
     // match with constant in ril.cpp
     static final int RIL_MAX_COMMAND_BYTES = (8 * 1024);
+    // Most queued requests gathered into a single socket write
+    static final int RIL_MAX_SEND_BATCH = 16;
+
+    /**
+     * Send lanes, highest priority first. Queued requests are written
+     * from the highest non-empty lane, except that a lane passed over
+     * RIL_MAX_LANE_SKIPS times in a row while it had requests waiting
+     * goes next, so bulk traffic is slowed but never stopped.
+     */
+    static final int SEND_LANE_CALL = 0;      // call control, incl. emergency dial
+    static final int SEND_LANE_NORMAL = 1;    // SMS, data calls and everything else
+    static final int SEND_LANE_BULK = 2;      // SIM file IO, SIM SMS storage, OEM hooks
+    static final int SEND_LANES = 3;
+    static final int RIL_MAX_LANE_SKIPS = 8;
+    // Read this much at a time so several messages can arrive per read
+    static final int RIL_RECEIVE_BUFFER_BYTES = (32 * 1024);
     static final int RESPONSE_SOLICITED = 0;
     static final int RESPONSE_UNSOLICITED = 1;
 
     static final String SOCKET_NAME_RIL = "rild";
+    // Socket names starting with this are in the abstract namespace,
+    // e.g. one served by RILFakeRild, instead of the reserved one
+    static final String ABSTRACT_SOCKET_PREFIX = "@";
 
     static final int SOCKET_OPEN_RETRY_MILLIS = 4 * 1000;
 
+    // Entries kept by mTrace
+    static final int RIL_TRACE_ENTRIES = 1024;
+
+    // In reconnect mode the first retry comes after this, and the delay
+    // doubles up to SOCKET_OPEN_RETRY_MILLIS
+    static final int SOCKET_OPEN_MIN_RETRY_MILLIS = 50;
+    // Requests held for replay are failed if rild isn't back by then
+    static final int RIL_REPLAY_MAX_WAIT_MILLIS = 10 * 1000;
+
+    // SIM_IO commands that only read, see IccFileHandler
+    private static final int COMMAND_READ_BINARY = 0xb0;
+    private static final int COMMAND_READ_RECORD = 0xb2;
+    private static final int COMMAND_GET_RESPONSE = 0xc0;
+
+    // Local error passed to RILRequest.onError when a request passes its
+    // deadline; rild errnos are never negative
+    static final int REQUEST_TIMED_OUT = -1;
+
+    // Deadlines are checked to the tick; deadlines more than 64 ticks
+    // away take more than one turn of the wheel
+    static final int REQUEST_TIMER_TICK_MILLIS = 1000;
+    static final int REQUEST_TIMER_BUCKETS = 64;
+
+    private static final int VOICE_PRIVACY_UNKNOWN = -1;
+    private static final int VOICE_PRIVACY_OFF = 0;
+    private static final int VOICE_PRIVACY_ON = 1;
+
     // The number of the required config values for broadcast SMS stored in the C struct
     // RIL_CDMA_BroadcastServiceInfo
     private static final int CDMA_BSI_NO_OF_INTS_STRUCT = 3;
@@ -270,13 +594,44 @@ public final class RIL extends BaseCommands implements CommandsInterface {
         }
     };
 
+    /**
+     * Writes requests and expires them. In TRANSPORT_EVENT_LOOP mode
+     * mEventLoop calls sendQueued() and expireRequests() on its own
+     * thread instead, and this handler is left with the wake lock
+     * timeout.
+     */
     class RILSender extends Handler implements Runnable {
         public RILSender(Looper looper) {
             super(looper);
         }
 
-        // Only allocated once
-        byte[] dataLength = new byte[4];
+        // Requests taken off mSendLanes and not yet written, and their
+        // serials; once written a request may be released by the receiver
+        RILRequest[] mBatch = new RILRequest[RIL_MAX_SEND_BATCH];
+        int[] mBatchSerials = new int[RIL_MAX_SEND_BATCH];
+        int mBatchCount;
+        int mBatchBytes;
+
+        // Only allocated once; grown if a batch needs more
+        byte[] mSendBuffer = new byte[RIL_MAX_COMMAND_BYTES];
+
+        // Write statistics
+        long mWriteCount;
+        long mBytesWritten;
+        long mRequestsWritten;
+
+        // When EVENT_REQUEST_TIMEOUT is due, or Long.MAX_VALUE if it
+        // isn't posted; in TRANSPORT_EVENT_LOOP mode, when mEventLoop is
+        // to call expireRequests()
+        long mExpiryTime = Long.MAX_VALUE;
+
+        // Times each lane was passed over while it had requests waiting
+        int[] mLaneSkips = new int[SEND_LANES];
+
+        // Per lane time from send() until taken off the lane, in ms
+        long[] mLaneWaitCount = new long[SEND_LANES];
+        long[] mLaneWaitTotal = new long[SEND_LANES];
+        long[] mLaneWaitMax = new long[SEND_LANES];
 
         //***** Runnable implementation
         public void
@@ -290,87 +645,26 @@ public final class RIL extends BaseCommands implements CommandsInterface {
         public void
         handleMessage(Message msg) {
             RILRequest rr = (RILRequest)(msg.obj);
-            RILRequest req = null;
 
             switch (msg.what) {
                 case EVENT_SEND:
                     /**
-                     * mRequestMessagePending++ already happened for every
-                     * EVENT_SEND, thus we must make sure
-                     * mRequestMessagePending-- happens once and only once
+                     * Clear the flag before draining, so a request queued
+                     * after the queue is found empty posts a new EVENT_SEND.
                      */
-                    boolean alreadySubtracted = false;
-                    try {
-                        LocalSocket s;
-
-                        s = mSocket;
-
-                        if (s == null) {
-                            rr.onError(RADIO_NOT_AVAILABLE, null);
-                            rr.release();
-                            mRequestMessagesPending--;
-                            alreadySubtracted = true;
-                            return;
-                        }
-
-                        synchronized (mRequestsList) {
-                            mRequestsList.add(rr);
-                        }
-
-                        mRequestMessagesPending--;
-                        alreadySubtracted = true;
-
-                        byte[] data;
-
-                        data = rr.mp.marshall();
-                        rr.mp.recycle();
-                        rr.mp = null;
-
-                        if (data.length > RIL_MAX_COMMAND_BYTES) {
-                            throw new RuntimeException(
-                                    "Parcel larger than max bytes allowed! "
-                                                          + data.length);
-                        }
-
-                        // parcel length in big endian
-                        dataLength[0] = dataLength[1] = 0;
-                        dataLength[2] = (byte)((data.length >> 8) & 0xff);
-                        dataLength[3] = (byte)((data.length) & 0xff);
-
-                        //Log.v(LOG_TAG, "writing packet: " + data.length + " bytes");
-
-                        s.getOutputStream().write(dataLength);
-                        s.getOutputStream().write(data);
-                    } catch (IOException ex) {
-                        Log.e(LOG_TAG, "IOException", ex);
-                        req = findAndRemoveRequestFromList(rr.mSerial);
-                        // make sure this request has not already been handled,
-                        // eg, if RILReceiver cleared the list.
-                        if (req != null || !alreadySubtracted) {
-                            rr.onError(RADIO_NOT_AVAILABLE, null);
-                            rr.release();
-                        }
-                    } catch (RuntimeException exc) {
-                        Log.e(LOG_TAG, "Uncaught exception ", exc);
-                        req = findAndRemoveRequestFromList(rr.mSerial);
-                        // make sure this request has not already been handled,
-                        // eg, if RILReceiver cleared the list.
-                        if (req != null || !alreadySubtracted) {
-                            rr.onError(GENERIC_FAILURE, null);
-                            rr.release();
-                        }
-                    }
-
-                    if (!alreadySubtracted) {
-                        mRequestMessagesPending--;
-                    }
+                    mSendScheduled.set(false);
+                    sendQueued();
+                    break;
 
+                case EVENT_REQUEST_TIMEOUT:
+                    expireRequests();
                     break;
 
                 case EVENT_WAKE_LOCK_TIMEOUT:
                     // Haven't heard back from the last request.  Assume we're
                     // not getting a response and  release the wake lock.
-                    // TODO should we clean up mRequestList and mRequestPending
+                    // Requests stuck in mRequestsList are failed separately
+                    // when they pass their deadline, see expireRequests().
                     synchronized (mWakeLock) {
                         if (mWakeLock.isHeld()) {
                             if (RILJ_LOGD) {
@@ -380,9 +674,10 @@ public final class RIL extends BaseCommands implements CommandsInterface {
                                         " mReqPending=" + mRequestMessagesPending +
                                         " mRequestList=" + count);
 
-                                    for (int i = 0; i < count; i++) {
-                                        rr = mRequestsList.get(i);
-                                        Log.d(LOG_TAG, i + ": [" + rr.mSerial + "] " +
+                                    int i = 0;
+                                    for (rr = mRequestsList.first(); rr != null;
+                                            rr = mRequestsList.next(rr)) {
+                                        Log.d(LOG_TAG, i++ + ": [" + rr.mSerial + "] " +
                                             requestToString(rr.mRequest));
 
                                     }
@@ -395,72 +690,439 @@ public final class RIL extends BaseCommands implements CommandsInterface {
                     break;
             }
         }
+
+        /**
+         * Writes everything in mSendLanes. Requests queued back to back
+         * are gathered into one write of up to RIL_MAX_SEND_BATCH
+         * messages.
+         */
+        private void
+        sendQueued() {
+            RILRequest rr;
+
+            while ((rr = pollSendLanes()) != null) {
+                /**
+                 * mRequestMessagePending++ already happened for every
+                 * queued request, thus we must make sure
+                 * mRequestMessagePending-- happens once and only once
+                 */
+                mRequestMessagesPending--;
+
+                if (!isConnected()) {
+                    rr.onError(RADIO_NOT_AVAILABLE, null);
+                    rr.release();
+                    continue;
+                }
+
+                int length = rr.mp.dataSize();
+                if (length > RIL_MAX_COMMAND_BYTES) {
+                    Log.e(LOG_TAG, "Parcel larger than max bytes allowed! " + length);
+                    rr.onError(GENERIC_FAILURE, null);
+                    rr.release();
+                    continue;
+                }
+
+                int frameLength = rr.mp.frame();
+                if (mBatchCount > 0 && mBatchBytes + frameLength > mSendBuffer.length) {
+                    flush();
+                }
+
+                synchronized (mRequestsList) {
+                    mRequestsList.add(rr);
+                    startRequestTimer(rr);
+                }
+
+                mBatchSerials[mBatchCount] = rr.mSerial;
+                mBatch[mBatchCount++] = rr;
+                mBatchBytes += frameLength;
+
+                if (mBatchCount == mBatch.length) {
+                    flush();
+                }
+            }
+
+            flush();
+        }
+
+        /**
+         * Takes the next request to write off mSendLanes, or returns null
+         * if all lanes are empty.
+         */
+        private RILRequest
+        pollSendLanes() {
+            RILRequest rr = null;
+
+            // Starved lanes first, lowest priority first
+            for (int lane = SEND_LANES - 1; lane > 0 && rr == null; lane--) {
+                if (mLaneSkips[lane] >= RIL_MAX_LANE_SKIPS) {
+                    mLaneSkips[lane] = 0;
+                    rr = mSendLanes[lane].poll();
+                }
+            }
+
+            for (int lane = 0; lane < SEND_LANES && rr == null; lane++) {
+                rr = mSendLanes[lane].poll();
+
+                if (rr != null) {
+                    mLaneSkips[lane] = 0;
+                    for (int lower = lane + 1; lower < SEND_LANES; lower++) {
+                        if (!mSendLanes[lower].isEmpty()) {
+                            mLaneSkips[lower]++;
+                        }
+                    }
+                }
+            }
+
+            if (rr != null) {
+                long wait = SystemClock.uptimeMillis() - rr.mEnqueueTime;
+
+                mLaneWaitCount[rr.mLane]++;
+                mLaneWaitTotal[rr.mLane] += wait;
+                if (wait > mLaneWaitMax[rr.mLane]) {
+                    mLaneWaitMax[rr.mLane] = wait;
+                }
+            }
+            return rr;
+        }
+
+        String
+        laneStatsToString() {
+            StringBuilder sb = new StringBuilder("lane wait:");
+
+            for (int lane = 0; lane < SEND_LANES; lane++) {
+                long count = mLaneWaitCount[lane];
+
+                sb.append(' ').append(lane).append(": n=").append(count)
+                        .append(" avg=").append(count == 0 ? 0 : mLaneWaitTotal[lane] / count)
+                        .append("ms max=").append(mLaneWaitMax[lane]).append("ms");
+            }
+            return sb.toString();
+        }
+
+        /**
+         * Starts the deadline of rr, which has just been added to
+         * mRequestsList. Called with mRequestsList held.
+         */
+        private void
+        startRequestTimer(RILRequest rr) {
+            int timeout = getRequestTimeoutLocked(rr.mRequest);
+
+            if (timeout <= 0) {
+                return;
+            }
+
+            rr.mTimeout = timeout;
+            scheduleExpiry(mRequestTimers.schedule(rr, SystemClock.uptimeMillis() + timeout));
+        }
+
+        /**
+         * Has expireRequests() run at time, unless it already runs
+         * earlier. mEventLoop picks the time up from mExpiryTime itself.
+         * Called with mRequestsList held.
+         */
+        private void
+        scheduleExpiry(long time) {
+            if (time < mExpiryTime) {
+                if (mEventLoop == null) {
+                    removeMessages(EVENT_REQUEST_TIMEOUT);
+                    sendEmptyMessageAtTime(EVENT_REQUEST_TIMEOUT, time);
+                }
+                mExpiryTime = time;
+            }
+        }
+
+        /**
+         * Fails every request in mRequestsList whose deadline has passed,
+         * so a request rild never answers doesn't stay there forever.
+         */
+        private void
+        expireRequests() {
+            RILRequest rr;
+
+            synchronized (mRequestsList) {
+                rr = mRequestTimers.expire(SystemClock.uptimeMillis());
+
+                for (RILRequest e = rr; e != null; e = e.mTimerNext) {
+                    mRequestsList.remove(e.mSerial);
+                    mRequestTimeoutCount++;
+                }
+
+                mExpiryTime = Long.MAX_VALUE;
+                scheduleExpiry(mRequestTimers.nextExpiryTime());
+            }
+
+            while (rr != null) {
+                RILRequest next = rr.mTimerNext;
+
+                rr.mTimerNext = null;
+                Log.w(LOG_TAG, rr.serialString() + "< " + requestToString(rr.mRequest)
+                        + " no response after " + rr.mTimeout + "ms");
+
+                mTrace.record(RILTrace.DIR_TIMEOUT, rr.mSerial, rr.mRequest, 0, 0);
+                RILRequestStats stats = getRequestStatsFor(rr.mRequest);
+                if (stats != null) {
+                    stats.recordTimeout();
+                }
+
+                rr.onError(REQUEST_TIMED_OUT, null);
+                rr.release();
+                rr = next;
+            }
+
+            releaseWakeLockIfDone();
+        }
+
+        private void
+        flush() {
+            int count = mBatchCount;
+            int bytes = mBatchBytes;
+
+            if (count == 0) {
+                return;
+            }
+
+            try {
+                LocalSocket s = mSocket;
+
+                if (s == null && mEventLoop == null) {
+                    throw new IOException("'" + mSocketName + "' socket closed");
+                }
+
+                if (bytes > mSendBuffer.length) {
+                    mSendBuffer = new byte[bytes];
+                }
+
+                bytes = gatherBatch(count);
+                if (bytes == 0) {
+                    return;
+                }
+
+                if (mEventLoop != null) {
+                    mEventLoop.write(mSendBuffer, bytes);
+                } else {
+                    s.getOutputStream().write(mSendBuffer, 0, bytes);
+                }
+
+                mWriteCount++;
+                mBytesWritten += bytes;
+                mRequestsWritten += count;
+
+                stampWritten(count);
+            } catch (IOException ex) {
+                Log.e(LOG_TAG, "IOException", ex);
+
+                for (int i = 0; i < count; i++) {
+                    RILRequest rr = mBatch[i];
+
+                    // make sure this request has not already been handled,
+                    // eg, if RILReceiver cleared the list.
+                    if (rr == null) {
+                        continue;
+                    }
+                    synchronized (mRequestsList) {
+                        if (mRequestsList.get(mBatchSerials[i]) != rr) {
+                            continue;
+                        }
+                        mRequestsList.remove(mBatchSerials[i]);
+                        mRequestTimers.cancel(rr);
+                    }
+                    rr.onError(RADIO_NOT_AVAILABLE, null);
+                    rr.release();
+                }
+            } finally {
+                for (int i = 0; i < count; i++) {
+                    mBatch[i] = null;
+                }
+                mBatchCount = 0;
+                mBatchBytes = 0;
+            }
+        }
+
+        /**
+         * Copies the frames of the first count requests of mBatch to
+         * mSendBuffer, and to the wire capture if one is running. A
+         * request no longer in mRequestsList was failed by a disconnect
+         * or its deadline while it waited here, and may already have been
+         * recycled, so it is skipped and cleared from mBatch. Holding
+         * mRequestsList keeps the rest from being failed meanwhile.
+         *
+         * @return the number of bytes to write
+         */
+        private int
+        gatherBatch(int count) {
+            RILWireCapture capture = mWireCapture;
+            long now = System.nanoTime();
+            int offset = 0;
+
+            synchronized (mRequestsList) {
+                for (int i = 0; i < count; i++) {
+                    RILRequest rr = mBatch[i];
+
+                    if (mRequestsList.get(mBatchSerials[i]) != rr) {
+                        mBatch[i] = null;
+                        continue;
+                    }
+
+                    RILParcelWriter w = rr.mp;
+                    int frameLength = w.frame();
+
+                    System.arraycopy(w.buffer(), 0, mSendBuffer, offset, frameLength);
+                    offset += frameLength;
+
+                    if (capture == null) {
+                        continue;
+                    }
+                    if (isCaptureRedacted(rr.mRequest)) {
+                        // Request type and serial
+                        capture.append(RILWireCapture.DIR_OUT_REDACTED, now, w.buffer(),
+                                RILParcelWriter.HEADER_SIZE, 8);
+                    } else {
+                        capture.append(RILWireCapture.DIR_OUT, now, w.buffer(),
+                                RILParcelWriter.HEADER_SIZE, w.dataSize());
+                    }
+                }
+            }
+            return offset;
+        }
+
+        /**
+         * Sets mWriteNanos of the first count requests of mBatch, just
+         * written, and records their queue wait. A request whose response
+         * has already been read is no longer in mRequestsList and is left
+         * alone, as it may have been released.
+         */
+        private void
+        stampWritten(int count) {
+            long now = System.nanoTime();
+
+            synchronized (mRequestsList) {
+                for (int i = 0; i < count; i++) {
+                    RILRequest rr = mBatch[i];
+
+                    if (rr == null || mRequestsList.get(mBatchSerials[i]) != rr) {
+                        continue;
+                    }
+
+                    rr.mWriteNanos = now;
+                    RILRequestStats stats = getRequestStatsFor(rr.mRequest);
+                    if (stats != null) {
+                        stats.recordQueueWait((now - rr.mEnqueueNanos) / 1000);
+                    }
+                }
+            }
+        }
+    }
+
+    class RILDispatcher extends Handler {
+        public RILDispatcher(Looper looper) {
+            super(looper);
+        }
+
+        public void
+        handleMessage(Message msg) {
+            switch (msg.what) {
+                case EVENT_DISPATCH_SOLICITED:
+                    deliverSolicited((RILRequest) msg.obj);
+                    break;
+
+                case EVENT_DISPATCH_UNSOLICITED:
+                    dispatchUnsolicited(msg.arg1, msg.obj);
+                    break;
+
+                case EVENT_DISPATCH_RADIO_UNAVAILABLE:
+                    setRadioState (RadioState.RADIO_UNAVAILABLE);
+                    break;
+
+                case EVENT_DISPATCH_VOICE_PRIVACY:
+                    notifyVoicePrivacy(msg.arg1 != 0);
+                    break;
+
+                case EVENT_CALL_STATE_DEBOUNCE:
+                    // Posted by onCallStateChanged(), not dispatch()
+                    notifyDebouncedCallState();
+                    return;
+            }
+
+            mDispatchDepth.decrementAndGet();
+            if (msg.what == EVENT_DISPATCH_SOLICITED || msg.what == EVENT_DISPATCH_UNSOLICITED) {
+                // arg2 holds the low 32 bits of the read time in us, which
+                // is enough for the difference
+                mDispatchLatencyHistogram.record((int) (System.nanoTime() / 1000) - msg.arg2);
+            }
+        }
     }
 
     /**
-     * Reads in a single RIL message off the wire. A RIL message consists
-     * of a 4-byte little-endian length and a subsequent series of bytes.
-     * The final message (length header omitted) is read into
-     * <code>buffer</code> and the length of the final message (less header)
-     * is returned. A return value of -1 indicates end-of-stream.
-     *
-     * @param is non-null; Stream to read from
-     * @param buffer Buffer to fill in. Must be as large as maximum
-     * message size, or an ArrayOutOfBounds exception will be thrown.
-     * @return Length of message less header, or -1 on end of stream.
-     * @throws IOException
+     * A GSM SMS from rild, decoded at most once by whichever of
+     * mSmsDecoder and mDispatcher gets to it first.
      */
-    private static int readRilMessage(InputStream is, byte[] buffer)
-            throws IOException {
-        int countRead;
-        int offset;
-        int remaining;
-        int messageLength;
+    final class PendingSms {
+        private final String mPdu;
+        private SmsMessage mSms;
 
-        // First, read in the length of the message
-        offset = 0;
-        remaining = 4;
-        do {
-            countRead = is.read(buffer, offset, remaining);
+        PendingSms(String pdu) {
+            mPdu = pdu;
+        }
 
-            if (countRead < 0 ) {
-                Log.e(LOG_TAG, "Hit EOS reading message length");
-                return -1;
+        /** @return true if this call did the decoding */
+        synchronized boolean
+        decode() {
+            if (mSms != null) {
+                return false;
             }
 
-            offset += countRead;
-            remaining -= countRead;
-        } while (remaining > 0);
+            long start = System.nanoTime();
 
-        messageLength = ((buffer[0] & 0xff) << 24)
-                | ((buffer[1] & 0xff) << 16)
-                | ((buffer[2] & 0xff) << 8)
-                | (buffer[3] & 0xff);
+            // FIXME this should move up a layer
+            String a[] = new String[2];
 
-        // Then, re-use the buffer and read in the message itself
-        offset = 0;
-        remaining = messageLength;
-        do {
-            countRead = is.read(buffer, offset, remaining);
+            a[1] = mPdu;
+            mSms = SmsMessage.newFromCMT(a);
 
-            if (countRead < 0 ) {
-                Log.e(LOG_TAG, "Hit EOS reading message.  messageLength=" + messageLength
-                        + " remaining=" + remaining);
-                return -1;
-            }
+            mSmsDecodeNanos.addAndGet(System.nanoTime() - start);
+            mSmsCount.incrementAndGet();
+            return true;
+        }
 
-            offset += countRead;
-            remaining -= countRead;
-        } while (remaining > 0);
+        synchronized SmsMessage
+        get() {
+            decode();
+            return mSms;
+        }
+    }
 
-        return messageLength;
+    class SmsDecoder extends Handler {
+        public SmsDecoder(Looper looper) {
+            super(looper);
+        }
+
+        public void
+        handleMessage(Message msg) {
+            switch (msg.what) {
+                case EVENT_DECODE_SMS:
+                    PendingSms pending = (PendingSms) msg.obj;
+
+                    // Decodes ahead of mDispatcher, which notifies
+                    // mSMSRegistrant in the order the SMS was read
+                    pending.decode();
+
+                    RILEventPublisher publisher =
+                            getEventPublisher(sUnsolRegistry.get(RIL_UNSOL_RESPONSE_NEW_SMS));
+                    if (publisher != null) {
+                        publisher.publish(pending.get());
+                    }
+                    break;
+            }
+        }
     }
 
     class RILReceiver implements Runnable {
-        byte[] buffer;
+        RILFrameReader mFrameReader;
+        RILParcelCursor mCursor;
 
         RILReceiver() {
-            buffer = new byte[RIL_MAX_COMMAND_BYTES];
+            mFrameReader = new RILFrameReader(RIL_MAX_COMMAND_BYTES, RIL_RECEIVE_BUFFER_BYTES);
+            mCursor = new RILParcelCursor();
         }
 
         public void
@@ -473,8 +1135,14 @@ public final class RIL extends BaseCommands implements CommandsInterface {
 
                 try {
                     s = new LocalSocket();
-                    l = new LocalSocketAddress(SOCKET_NAME_RIL,
-                            LocalSocketAddress.Namespace.RESERVED);
+                    if (mSocketName.startsWith(ABSTRACT_SOCKET_PREFIX)) {
+                        l = new LocalSocketAddress(
+                                mSocketName.substring(ABSTRACT_SOCKET_PREFIX.length()),
+                                LocalSocketAddress.Namespace.ABSTRACT);
+                    } else {
+                        l = new LocalSocketAddress(mSocketName,
+                                LocalSocketAddress.Namespace.RESERVED);
+                    }
                     s.connect(l);
                 } catch (IOException ex){
                     try {
@@ -485,22 +1153,10 @@ public final class RIL extends BaseCommands implements CommandsInterface {
                         //ignore failure to close after failure to connect
                     }
 
-                    // don't print an error message after the the first time
-                    // or after the 8th time
-
-                    if (retryCount == 8) {
-                        Log.e (LOG_TAG,
-                            "Couldn't find '" + SOCKET_NAME_RIL
-                            + "' socket after " + retryCount
-                            + " times, continuing to retry silently");
-                    } else if (retryCount > 0 && retryCount < 8) {
-                        Log.i (LOG_TAG,
-                            "Couldn't find '" + SOCKET_NAME_RIL
-                            + "' socket; retrying after timeout");
-                    }
+                    int delay = onConnectFailed(retryCount);
 
                     try {
-                        Thread.sleep(SOCKET_OPEN_RETRY_MILLIS);
+                        Thread.sleep(delay);
                     } catch (InterruptedException er) {
                     }
 
@@ -511,69 +1167,504 @@ public final class RIL extends BaseCommands implements CommandsInterface {
                 retryCount = 0;
 
                 mSocket = s;
-                Log.i(LOG_TAG, "Connected to '" + SOCKET_NAME_RIL + "' socket");
+                Log.i(LOG_TAG, "Connected to '" + mSocketName + "' socket");
+
+                replayRequests();
 
                 int length = 0;
                 try {
-                    InputStream is = mSocket.getInputStream();
+                    mFrameReader.setInputStream(mSocket.getInputStream());
 
                     for (;;) {
-                        Parcel p;
-
-                        length = readRilMessage(is, buffer);
+                        length = mFrameReader.next();
 
                         if (length < 0) {
                             // End-of-stream reached
                             break;
                         }
 
-                        p = Parcel.obtain();
-                        p.unmarshall(buffer, 0, length);
-                        p.setDataPosition(0);
-
-                        //Log.v(LOG_TAG, "Read packet: " + length + " bytes");
-
-                        processResponse(p);
-                        p.recycle();
+                        processFrame(mFrameReader, mCursor, length);
                     }
                 } catch (java.io.IOException ex) {
-                    Log.i(LOG_TAG, "'" + SOCKET_NAME_RIL + "' socket closed",
+                    Log.i(LOG_TAG, "'" + mSocketName + "' socket closed",
                           ex);
                 } catch (Throwable tr) {
                     Log.e(LOG_TAG, "Uncaught exception read length=" + length +
                         "Exception:" + tr.toString());
                 }
 
-                Log.i(LOG_TAG, "Disconnected from '" + SOCKET_NAME_RIL
-                      + "' socket");
-
-                setRadioState (RadioState.RADIO_UNAVAILABLE);
-
                 try {
                     mSocket.close();
                 } catch (IOException ex) {
                 }
 
                 mSocket = null;
-                RILRequest.resetSerial();
+                onDisconnected(mFrameReader);
+            }} catch (Throwable tr) {
+                Log.e(LOG_TAG,"Uncaught exception", tr);
+            }
+        }
+    }
 
-                // Clear request list on close
-                synchronized (mRequestsList) {
-                    for (int i = 0, sz = mRequestsList.size() ; i < sz ; i++) {
-                        RILRequest rr = mRequestsList.get(i);
-                        rr.onError(RADIO_NOT_AVAILABLE, null);
-                        rr.release();
+    /**
+     * TRANSPORT_EVENT_LOOP: one thread talks to rild over a non-blocking
+     * channel. Around a Selector it reads and decodes responses, writes
+     * the requests in mSendLanes through RILSender.sendQueued() and
+     * expires them through RILSender.expireRequests(), so a request
+     * needs no handoff to a sender thread and a write never races the
+     * read of its response.
+     *
+     * send() wakes the selector only when it finds mSendScheduled clear,
+     * like the EVENT_SEND it replaces, and the loop is blocked in
+     * select(); otherwise the loop sees the flag before it next selects.
+     * Writes never block: what the
+     * channel doesn't take is kept in mOut and written when it becomes
+     * writable, while responses keep being read.
+     */
+    class RILEventLoop implements Runnable {
+        final InetSocketAddress mAddress;
+        final Selector mSelector;
+        RILFrameReader mFrameReader;
+        RILParcelCursor mCursor;
+
+        // Connected channel and its key; null while disconnected. This
+        // thread only, as is everything below.
+        SocketChannel mChannel;
+        SelectionKey mKey;
+
+        // True from just before the loop checks mSendScheduled until
+        // select() returns; any thread reads it
+        volatile boolean mSelecting;
+
+        // Written by RILSender.flush() and not yet taken by mChannel
+        ByteBuffer mOut = ByteBuffer.allocate(RIL_MAX_COMMAND_BYTES * 2);
+        // Set once a write fails, so the loop disconnects
+        IOException mWriteError;
+
+        // Statistics
+        long mSelectCount;
+        long mPartialWrites;
+
+        RILEventLoop(InetSocketAddress address) throws IOException {
+            mAddress = address;
+            mSelector = Selector.open();
+            mFrameReader = new RILFrameReader(RIL_MAX_COMMAND_BYTES, RIL_RECEIVE_BUFFER_BYTES);
+            mCursor = new RILParcelCursor();
+        }
+
+        /**
+         * Makes the loop drain mSendLanes; call after setting
+         * mSendScheduled. Any thread.
+         */
+        void
+        wakeup() {
+            if (mSelecting) {
+                mSelector.wakeup();
+            }
+        }
+
+        /**
+         * Queues data for rild and writes as much of it as the channel
+         * takes. Called by RILSender.flush() on this thread.
+         */
+        void
+        write(byte[] data, int length) throws IOException {
+            if (mChannel == null) {
+                throw new IOException("'" + mSocketName + "' socket closed");
+            }
+
+            if (mOut.remaining() < length) {
+                ByteBuffer out = ByteBuffer.allocate(
+                        Math.max(mOut.capacity() * 2, mOut.position() + length));
+
+                mOut.flip();
+                out.put(mOut);
+                mOut = out;
+            }
+            mOut.put(data, 0, length);
+
+            try {
+                writeOut();
+            } catch (IOException ex) {
+                mWriteError = ex;
+                throw ex;
+            }
+        }
+
+        public void
+        run() {
+            int retryCount = 0;
+
+            try {for (;;) {
+                SocketChannel ch = null;
+
+                try {
+                    ch = SocketChannel.open();
+                    ch.connect(mAddress);
+                    ch.configureBlocking(false);
+                    ch.socket().setTcpNoDelay(true);
+                } catch (IOException ex) {
+                    try {
+                        if (ch != null) {
+                            ch.close();
+                        }
+                    } catch (IOException ex2) {
+                        //ignore failure to close after failure to connect
                     }
 
-                    mRequestsList.clear();
+                    waitForRetry(onConnectFailed(retryCount));
+                    retryCount++;
+                    continue;
                 }
+
+                retryCount = 0;
+
+                mChannel = ch;
+                mKey = ch.register(mSelector, SelectionKey.OP_READ);
+                mFrameReader.setChannel(ch);
+                Log.i(LOG_TAG, "Connected to '" + mSocketName + "' socket");
+
+                replayRequests();
+
+                try {
+                    loop();
+                } catch (IOException ex) {
+                    Log.i(LOG_TAG, "'" + mSocketName + "' socket closed", ex);
+                } catch (Throwable tr) {
+                    Log.e(LOG_TAG, "Uncaught exception in event loop", tr);
+                }
+
+                mKey.cancel();
+                try {
+                    mChannel.close();
+                } catch (IOException ex) {
+                }
+
+                mChannel = null;
+                mKey = null;
+                mOut.clear();
+                mWriteError = null;
+
+                // Deregisters the cancelled key
+                mSelector.selectNow();
+
+                onDisconnected(mFrameReader);
             }} catch (Throwable tr) {
                 Log.e(LOG_TAG,"Uncaught exception", tr);
             }
         }
+
+        @Override
+        public String
+        toString() {
+            return "event loop: selects=" + mSelectCount + " partialWrites=" + mPartialWrites;
+        }
+
+        //***** Private Methods
+
+        /**
+         * Runs until rild disconnects or a read or write fails.
+         */
+        private void
+        loop() throws IOException {
+            for (;;) {
+                long expiry = mSender.mExpiryTime;
+                long now = SystemClock.uptimeMillis();
+
+                mSelecting = true;
+                try {
+                    if (mSendScheduled.get() || expiry <= now) {
+                        mSelector.selectNow();
+                    } else {
+                        // 0 waits until woken
+                        mSelector.select(expiry == Long.MAX_VALUE ? 0 : expiry - now);
+                    }
+                } finally {
+                    mSelecting = false;
+                }
+                mSelectCount++;
+
+                // A key's ready set is only current if it was selected
+                // this time
+                boolean ready = mSelector.selectedKeys().remove(mKey);
+
+                if (ready && mKey.isReadable() && !readResponses()) {
+                    // End-of-stream reached
+                    return;
+                }
+
+                if (ready && mKey.isWritable()) {
+                    writeOut();
+                }
+
+                if (mSender.mExpiryTime <= SystemClock.uptimeMillis()) {
+                    mSender.expireRequests();
+                }
+
+                if (mSendScheduled.get()) {
+                    // Cleared first, as in RILSender.handleMessage()
+                    mSendScheduled.set(false);
+                    mSender.sendQueued();
+
+                    if (mWriteError != null) {
+                        throw mWriteError;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Decodes every message the channel has for us.
+         *
+         * @return false at end-of-stream
+         */
+        private boolean
+        readResponses() throws IOException {
+            for (;;) {
+                int length = mFrameReader.next();
+
+                if (length == RILFrameReader.NEED_MORE) {
+                    return true;
+                }
+                if (length < 0) {
+                    return false;
+                }
+
+                processFrame(mFrameReader, mCursor, length);
+            }
+        }
+
+        /**
+         * Writes what mOut holds, and asks for OP_WRITE if the channel
+         * doesn't take all of it.
+         */
+        private void
+        writeOut() throws IOException {
+            mOut.flip();
+            try {
+                mChannel.write(mOut);
+            } finally {
+                mOut.compact();
+            }
+
+            if (mOut.position() > 0) {
+                mPartialWrites++;
+                mKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            } else {
+                mKey.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        /**
+         * Waits delay ms before reconnecting, failing whatever send()
+         * queues meanwhile as RILSender does while rild is away.
+         */
+        private void
+        waitForRetry(int delay) throws IOException {
+            long end = SystemClock.uptimeMillis() + delay;
+
+            for (;;) {
+                if (mSendScheduled.get()) {
+                    mSendScheduled.set(false);
+                    mSender.sendQueued();
+                }
+
+                long remaining = end - SystemClock.uptimeMillis();
+                if (remaining <= 0) {
+                    return;
+                }
+
+                mSelecting = true;
+                try {
+                    if (!mSendScheduled.get()) {
+                        mSelector.select(remaining);
+                    }
+                } finally {
+                    mSelecting = false;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if requests can be written to rild
+     */
+    private boolean
+    isConnected() {
+        if (mEventLoop != null) {
+            return mEventLoop.mChannel != null;
+        }
+        return mSocket != null;
+    }
+
+    private int
+    getRetryDelay(int retryCount) {
+        if (!mReconnectMode) {
+            return SOCKET_OPEN_RETRY_MILLIS;
+        }
+
+        int shift = Math.min(retryCount, 16);
+        return (int) Math.min((long) SOCKET_OPEN_MIN_RETRY_MILLIS << shift,
+                SOCKET_OPEN_RETRY_MILLIS);
+    }
+
+    /**
+     * Logs a failed attempt to connect to rild and gives up on held
+     * requests that waited too long for it.
+     *
+     * @return how long to wait before trying again, in ms
+     */
+    private int
+    onConnectFailed(int retryCount) {
+        // don't print an error message after the the first time
+        // or after the 8th time
+
+        if (retryCount == 8) {
+            Log.e (LOG_TAG,
+                "Couldn't find '" + mSocketName
+                + "' socket after " + retryCount
+                + " times, continuing to retry silently");
+        } else if (retryCount > 0 && retryCount < 8) {
+            Log.i (LOG_TAG,
+                "Couldn't find '" + mSocketName
+                + "' socket; retrying after timeout");
+        }
+
+        if (!mReplayList.isEmpty() && SystemClock.uptimeMillis()
+                - mReplayHeldSince > RIL_REPLAY_MAX_WAIT_MILLIS) {
+            failReplayList();
+        }
+
+        return getRetryDelay(retryCount);
+    }
+
+    /**
+     * Sends the requests held at disconnect again, with new serials.
+     */
+    private void
+    replayRequests() {
+        for (int i = 0, s = mReplayList.size(); i < s; i++) {
+            RILRequest rr = mReplayList.get(i);
+
+            rr.renumber(mNextSerial);
+            mReplayCount++;
+
+            if (RILJ_LOGD) riljLog(rr.serialString() + "> "
+                    + requestToString(rr.mRequest) + " (replay)");
+
+            send(rr);
+        }
+        mReplayList.clear();
+    }
+
+    private void
+    failReplayList() {
+        for (int i = 0, s = mReplayList.size(); i < s; i++) {
+            RILRequest rr = mReplayList.get(i);
+
+            rr.onError(RADIO_NOT_AVAILABLE, null);
+            rr.release();
+        }
+        mReplayList.clear();
     }
 
+    /**
+     * Captures and decodes the message reader has just framed.
+     */
+    private void
+    processFrame(RILFrameReader reader, RILParcelCursor cursor, int length) {
+        long readTime = System.nanoTime();
+
+        RILWireCapture capture = mWireCapture;
+        if (capture != null) {
+            captureResponse(capture, readTime, reader.buffer(), reader.frameOffset(), length);
+        }
+
+        // Decode in place; the frame stays valid until the next read
+        cursor.reset(reader.buffer(), reader.frameOffset(), length);
+
+        //Log.v(LOG_TAG, "Read packet: " + length + " bytes");
+
+        processResponse(cursor, readTime);
+    }
 
+    /**
+     * Cleans up after the connection to rild is lost, once the socket
+     * is closed: requests in flight are failed or held for replay and
+     * state learnt from rild is forgotten.
+     */
+    private void
+    onDisconnected(RILFrameReader reader) {
+        Log.i(LOG_TAG, "Disconnected from '" + mSocketName
+              + "' socket");
+
+        if (RILJ_LOGD) riljLog("Receiver stats: reads=" + reader.getReadCount()
+                + " frames=" + reader.getFrameCount()
+                + " bytes=" + reader.getByteCount()
+                + " maxFramesPerRead=" + reader.getMaxFramesPerRead()
+                + "; sender stats: writes=" + mSender.mWriteCount
+                + " requests=" + mSender.mRequestsWritten
+                + " bytes=" + mSender.mBytesWritten
+                + "; " + mSender.laneStatsToString()
+                + (mEventLoop != null ? "; " + mEventLoop : "")
+                + "; " + mCoalescer
+                + "; call state collapse ratio=" + getCallStateCollapseRatio()
+                + "; unchanged signal strength=" + mSignalStrengthUnchanged
+                + "; calls decoded=" + mCallListDecoder.mCallsDecoded
+                + " reused=" + mCallListDecoder.mCallsReused
+                + "; " + smsStatsToString()
+                + "; dispatch depth: " + mDispatchDepthHistogram
+                + "; dispatch latency us: " + mDispatchLatencyHistogram
+                + "; replayed=" + mReplayCount);
+
+        if (RILJ_LOGD) {
+            ArrayList<RILRequestStats> stats = getRequestStats();
+
+            for (int i = 0, n = stats.size(); i < n; i++) {
+                riljLog("Request stats " + stats.get(i));
+            }
+        }
+
+        // Queued behind any radio state change already read
+        dispatch(EVENT_DISPATCH_RADIO_UNAVAILABLE, 0, 0, null);
+
+        mNextSerial.set(0);
+        mSignalStrengthValid = false;
+        mVoicePrivacyState = VOICE_PRIVACY_UNKNOWN;
+        mCallListDecoder.reset();
+        mAsyncCallListDecoder.reset();
+        mRadioTypeResolver.invalidate();
+
+        // Clear request list on close; the requests are failed
+        // once the lock is released, since completing them may
+        // run code that sends the next request
+        ArrayList<RILRequest> failed = new ArrayList<RILRequest>();
+
+        synchronized (mRequestsList) {
+            RILRequest rr = mRequestsList.clear();
+
+            while (rr != null) {
+                RILRequest next = mRequestsList.next(rr);
+                mRequestTimers.cancel(rr);
+                if (mReconnectMode && rr.mReplayable) {
+                    if (mReplayList.isEmpty()) {
+                        mReplayHeldSince = SystemClock.uptimeMillis();
+                    }
+                    mReplayList.add(rr);
+                } else {
+                    failed.add(rr);
+                }
+                rr = next;
+            }
+        }
+
+        for (int i = 0, n = failed.size(); i < n; i++) {
+            RILRequest rr = failed.get(i);
+
+            rr.onError(RADIO_NOT_AVAILABLE, null);
+            rr.release();
+        }
+    }
 
     //***** Constructors
     public
@@ -583,7 +1674,46 @@ public final class RIL extends BaseCommands implements CommandsInterface {
     }
 
     public RIL(Context context, int networkMode, int cdmaSubscription) {
+        this(context, networkMode, cdmaSubscription, SOCKET_NAME_RIL, null);
+    }
+
+    /**
+     * Creates a RIL talking to the given rild socket, e.g. one of several
+     * modems.
+     *
+     * @param socketName socket in the reserved namespace, or in the
+     *        abstract one if it starts with "@"
+     * @param runtime threads to share with other RIL instances, or null
+     *        to start private ones
+     */
+    public RIL(Context context, int networkMode, int cdmaSubscription,
+            String socketName, RILTransportRuntime runtime) {
+        this(context, networkMode, cdmaSubscription, socketName, runtime,
+                TRANSPORT_THREADED, false);
+    }
+
+    /**
+     * Creates a RIL with the given transport.
+     *
+     * TRANSPORT_THREADED reads rild's local socket on a thread of its own
+     * and writes from the runtime's sender thread. TRANSPORT_EVENT_LOOP
+     * does both, and request timeouts, from one thread over a
+     * non-blocking TCP connection, see RILEventLoop. Local sockets
+     * can't be selected on, so for it socketName is "host:port" of rild
+     * or a stand-in such as RILFakeRild.startTcp().
+     */
+    public RIL(Context context, int networkMode, int cdmaSubscription,
+            String socketName, RILTransportRuntime runtime, int transport) {
+        this(context, networkMode, cdmaSubscription, socketName, runtime, transport, false);
+    }
+
+    private RIL(Context context, int networkMode, int cdmaSubscription,
+            String socketName, RILTransportRuntime runtime, int transport,
+            boolean replayOnly) {
         super(context);
+        mSocketName = socketName;
+        mReplayOnly = replayOnly;
+        mRuntime = (runtime != null) ? runtime : new RILTransportRuntime("RIL");
         mCdmaSubscription  = cdmaSubscription;
         mNetworkMode = networkMode;
         //At startup mPhoneType is first set from networkMode
@@ -613,16 +1743,33 @@ public final class RIL extends BaseCommands implements CommandsInterface {
                 DEFAULT_WAKE_LOCK_TIMEOUT);
         mRequestMessagesPending = 0;
 
+        mRequestTimers = new RILTimerWheel(REQUEST_TIMER_BUCKETS, REQUEST_TIMER_TICK_MILLIS,
+                SystemClock.uptimeMillis());
+
         mContext = context;
 
-        mSenderThread = new HandlerThread("RILSender");
-        mSenderThread.start();
+        mSender = new RILSender(mRuntime.getSenderLooper());
+        mDispatcher = new RILDispatcher(mRuntime.getDispatcherLooper());
+        mSmsDecoder = new SmsDecoder(mRuntime.getSmsDecoderLooper());
+
+        if (replayOnly) {
+            return;
+        }
 
-        Looper looper = mSenderThread.getLooper();
-        mSender = new RILSender(looper);
+        String threadSuffix = socketName.equals(SOCKET_NAME_RIL) ? "" : "-" + socketName;
 
-        mReceiver = new RILReceiver();
-        mReceiverThread = new Thread(mReceiver, "RILReceiver");
+        if (transport == TRANSPORT_EVENT_LOOP) {
+            try {
+                mEventLoop = new RILEventLoop(parseTcpAddress(socketName));
+            } catch (IOException ex) {
+                throw new RuntimeException("Can't open selector for '" + socketName + "'", ex);
+            }
+            mReceiverThread = new Thread(mEventLoop, "RILEventLoop" + threadSuffix);
+        } else {
+            // Reads block, so each socket needs a thread of its own
+            mReceiver = new RILReceiver();
+            mReceiverThread = new Thread(mReceiver, "RILReceiver" + threadSuffix);
+        }
         mReceiverThread.start();
 
         IntentFilter filter = new IntentFilter();
@@ -631,8 +1778,43 @@ public final class RIL extends BaseCommands implements CommandsInterface {
         context.registerReceiver(mIntentReceiver, filter);
     }
 
+    /**
+     * Creates a RIL for RILWireReplay. It never connects to rild: no
+     * receiver thread is started, requests made through it fail with
+     * RADIO_NOT_AVAILABLE, and the unsolicited responses it is fed are
+     * decoded without notifying anyone.
+     */
+    public static RIL
+    createForReplay(Context context) {
+        return new RIL(context, RILConstants.PREFERRED_NETWORK_MODE,
+                RILConstants.PREFERRED_CDMA_SUBSCRIPTION, SOCKET_NAME_RIL, null,
+                TRANSPORT_THREADED, true);
+    }
+
+    /**
+     * @param address "host:port"
+     */
+    private static InetSocketAddress
+    parseTcpAddress(String address) {
+        int colon = address.lastIndexOf(':');
+
+        if (colon <= 0) {
+            throw new IllegalArgumentException("Not host:port: " + address);
+        }
+        return new InetSocketAddress(address.substring(0, colon),
+                Integer.parseInt(address.substring(colon + 1)));
+    }
+
     //***** CommandsInterface implementation
 
+    @Override public void
+    setOnSignalStrengthUpdate(Handler h, int what, Object obj) {
+        super.setOnSignalStrengthUpdate(h, what, obj);
+
+        // A new listener gets the next reading even if it is unchanged
+        mSignalStrengthValid = false;
+    }
+
     @Override public void
     setOnNITZTime(Handler h, int what, Object obj) {
         super.setOnNITZTime(h, what, obj);
@@ -648,34 +1830,61 @@ public final class RIL extends BaseCommands implements CommandsInterface {
 
     public void
     getIccCardStatus(Message result) {
+        send(obtainGetIccCardStatus(result));
+    }
+
+    /**
+     * Future-returning form of {@link #getIccCardStatus(Message)}.
+     */
+    public RILFuture<IccCardStatus>
+    getIccCardStatusAsync() {
+        return sendAsync(obtainGetIccCardStatus(null), new RILFuture<IccCardStatus>(mDispatcher));
+    }
+
+    private RILRequest
+    obtainGetIccCardStatus(Message result) {
         //Note: This RIL request has not been renamed to ICC,
         //       but this request is also valid for SIM and RUIM
-        RILRequest rr = RILRequest.obtain(RIL_REQUEST_GET_SIM_STATUS, result);
+        RILRequest rr = RILRequest.obtain(mNextSerial, RIL_REQUEST_GET_SIM_STATUS, result);
 
         if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
-        send(rr);
+        return rr;
     }
 
     public void
     supplyIccPin(String pin, Message result) {
+        send(obtainSupplyIccPin(pin, result));
+    }
+
+    /**
+     * Future-returning form of {@link #supplyIccPin(String, Message)}.
+     * The result is the int[] of remaining retries, if rild sends it.
+     */
+    public RILFuture<int[]>
+    supplyIccPinAsync(String pin) {
+        return sendAsync(obtainSupplyIccPin(pin, null), new RILFuture<int[]>(mDispatcher));
+    }
+
+    private RILRequest
+    obtainSupplyIccPin(String pin, Message result) {
         //Note: This RIL request has not been renamed to ICC,
         //       but this request is also valid for SIM and RUIM
-        RILRequest rr = RILRequest.obtain(RIL_REQUEST_ENTER_SIM_PIN, result);
+        RILRequest rr = RILRequest.obtain(mNextSerial, RIL_REQUEST_ENTER_SIM_PIN, result);
 
         if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
         rr.mp.writeInt(1);
         rr.mp.writeString(pin);
 
-        send(rr);
+        return rr;
     }
 
     public void
     supplyIccPuk(String puk, String newPin, Message result) {
         //Note: This RIL request has not been renamed to ICC,
         //       but this request is also valid for SIM and RUIM
-        RILRequest rr = RILRequest.obtain(RIL_REQUEST_ENTER_SIM_PUK, result);
+        RILRequest rr = RILRequest.obtain(mNextSerial, RIL_REQUEST_ENTER_SIM_PUK, result);
 
         if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
@@ -690,7 +1899,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
     supplyIccPin2(String pin, Message result) {
         //Note: This RIL request has not been renamed to ICC,
         //       but this request is also valid for SIM and RUIM
-        RILRequest rr = RILRequest.obtain(RIL_REQUEST_ENTER_SIM_PIN2, result);
+        RILRequest rr = RILRequest.obtain(mNextSerial, RIL_REQUEST_ENTER_SIM_PIN2, result);
 
         if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
@@ -704,7 +1913,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
     supplyIccPuk2(String puk, String newPin2, Message result) {
         //Note: This RIL request has not been renamed to ICC,
         //       but this request is also valid for SIM and RUIM
-        RILRequest rr = RILRequest.obtain(RIL_REQUEST_ENTER_SIM_PUK2, result);
+        RILRequest rr = RILRequest.obtain(mNextSerial, RIL_REQUEST_ENTER_SIM_PUK2, result);
 
         if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
@@ -719,7 +1928,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
     changeIccPin(String oldPin, String newPin, Message result) {
         //Note: This RIL request has not been renamed to ICC,
         //       but this request is also valid for SIM and RUIM
-        RILRequest rr = RILRequest.obtain(RIL_REQUEST_CHANGE_SIM_PIN, result);
+        RILRequest rr = RILRequest.obtain(mNextSerial, RIL_REQUEST_CHANGE_SIM_PIN, result);
 
         if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
@@ -734,7 +1943,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
     changeIccPin2(String oldPin2, String newPin2, Message result) {
         //Note: This RIL request has not been renamed to ICC,
         //       but this request is also valid for SIM and RUIM
-        RILRequest rr = RILRequest.obtain(RIL_REQUEST_CHANGE_SIM_PIN2, result);
+        RILRequest rr = RILRequest.obtain(mNextSerial, RIL_REQUEST_CHANGE_SIM_PIN2, result);
 
         if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
@@ -747,7 +1956,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
 
     public void
     changeBarringPassword(String facility, String oldPwd, String newPwd, Message result) {
-        RILRequest rr = RILRequest.obtain(RIL_REQUEST_CHANGE_BARRING_PASSWORD, result);
+        RILRequest rr = RILRequest.obtain(mNextSerial, RIL_REQUEST_CHANGE_BARRING_PASSWORD, result);
 
         if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
@@ -761,7 +1970,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
 
     public void
     supplyNetworkDepersonalization(String netpin, Message result) {
-        RILRequest rr = RILRequest.obtain(RIL_REQUEST_ENTER_NETWORK_DEPERSONALIZATION, result);
+        RILRequest rr = RILRequest.obtain(mNextSerial, RIL_REQUEST_ENTER_NETWORK_DEPERSONALIZATION, result);
 
         if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
@@ -773,11 +1982,24 @@ public final class RIL extends BaseCommands implements CommandsInterface {
 
     public void
     getCurrentCalls (Message result) {
-        RILRequest rr = RILRequest.obtain(RIL_REQUEST_GET_CURRENT_CALLS, result);
+        sendCoalesced(RIL_REQUEST_GET_CURRENT_CALLS, result);
+    }
+
+    /**
+     * Future-returning form of {@link #getCurrentCalls(Message)}. Not
+     * shared with other callers' polls; the added, removed and changed
+     * calls are relative to the previous getCurrentCallsAsync().
+     */
+    public RILFuture<DriverCallList>
+    getCurrentCallsAsync() {
+        RILRequest rr = RILRequest.obtain(mNextSerial, RIL_REQUEST_GET_CURRENT_CALLS, null);
+
+        // Keep the baseline of getCurrentCalls(Message) pollers intact
+        rr.mParser = PARSE_CALL_LIST_ASYNC;
 
         if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
-        send(rr);
+        return sendAsync(rr, new RILFuture<DriverCallList>(mDispatcher));
     }
 
     public void
@@ -787,7 +2009,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
 
     public void
     getDataCallList(Message result) {
-        RILRequest rr = RILRequest.obtain(RIL_REQUEST_DATA_CALL_LIST, result);
+        RILRequest rr = RILRequest.obtain(mNextSerial, RIL_REQUEST_DATA_CALL_LIST, result);
 
         if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
@@ -796,7 +2018,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
 
     public void
     dial (String address, int clirMode, Message result) {
-        RILRequest rr = RILRequest.obtain(RIL_REQUEST_DIAL, result);
+        RILRequest rr = RILRequest.obtain(mNextSerial, RIL_REQUEST_DIAL, result);
 
         rr.mp.writeString(address);
         rr.mp.writeInt(clirMode);
@@ -809,19 +2031,32 @@ public final class RIL extends BaseCommands implements CommandsInterface {
 
     public void
     getIMSI(Message result) {
-        RILRequest rr = RILRequest.obtain(RIL_REQUEST_GET_IMSI, result);
+        send(obtainGetIMSI(result));
+    }
+
+    /**
+     * Future-returning form of {@link #getIMSI(Message)}.
+     */
+    public RILFuture<String>
+    getIMSIAsync() {
+        return sendAsync(obtainGetIMSI(null), new RILFuture<String>(mDispatcher));
+    }
+
+    private RILRequest
+    obtainGetIMSI(Message result) {
+        RILRequest rr = RILRequest.obtain(mNextSerial, RIL_REQUEST_GET_IMSI, result);
 
         if (RILJ_LOGD) riljLog(rr.serialString() +
                               "> getIMSI:RIL_REQUEST_GET_IMSI " +
                               RIL_REQUEST_GET_IMSI +
                               " " + requestToString(rr.mRequest));
 
-        send(rr);
+        return rr;
     }
 
     public void
     getIMEI(Message result) {
-        RILRequest rr = RILRequest.obtain(RIL_REQUEST_GET_IMEI, result);
+        RILRequest rr = RILRequest.obtain(mNextSerial, RIL_REQUEST_GET_IMEI, result);
 
         if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
@@ -830,7 +2065,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
 
     public void
     getIMEISV(Message result) {
-        RILRequest rr = RILRequest.obtain(RIL_REQUEST_GET_IMEISV, result);
+        RILRequest rr = RILRequest.obtain(mNextSerial, RIL_REQUEST_GET_IMEISV, result);
 
         if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
@@ -842,7 +2077,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
     hangupConnection (int gsmIndex, Message result) {
         if (RILJ_LOGD) riljLog("hangupConnection: gsmIndex=" + gsmIndex);
 
-        RILRequest rr = RILRequest.obtain(RIL_REQUEST_HANGUP, result);
+        RILRequest rr = RILRequest.obtain(mNextSerial, RIL_REQUEST_HANGUP, result);
 
         if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest) + " " +
                 gsmIndex);
@@ -855,7 +2090,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
 
     public void
     hangupWaitingOrBackground (Message result) {
-        RILRequest rr = RILRequest.obtain(RIL_REQUEST_HANGUP_WAITING_OR_BACKGROUND,
+        RILRequest rr = RILRequest.obtain(mNextSerial, RIL_REQUEST_HANGUP_WAITING_OR_BACKGROUND,
                                         result);
 
         if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
@@ -866,7 +2101,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
     public void
     hangupForegroundResumeBackground (Message result) {
         RILRequest rr
-                = RILRequest.obtain(
+                = RILRequest.obtain(mNextSerial, 
                         RIL_REQUEST_HANGUP_FOREGROUND_RESUME_BACKGROUND,
                                         result);
         if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
@@ -877,7 +2112,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
     public void
     switchWaitingOrHoldingAndActive (Message result) {
         RILRequest rr
-                = RILRequest.obtain(
+                = RILRequest.obtain(mNextSerial, 
                         RIL_REQUEST_SWITCH_WAITING_OR_HOLDING_AND_ACTIVE,
                                         result);
         if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
@@ -888,7 +2123,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
     public void
     conference (Message result) {
         RILRequest rr
-                = RILRequest.obtain(RIL_REQUEST_CONFERENCE, result);
+                = RILRequest.obtain(mNextSerial, RIL_REQUEST_CONFERENCE, result);
 
         if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
@@ -897,7 +2132,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
 
 
     public void setPreferredVoicePrivacy(boolean enable, Message result) {
-        RILRequest rr = RILRequest.obtain(RIL_REQUEST_CDMA_SET_PREFERRED_VOICE_PRIVACY_MODE,
+        RILRequest rr = RILRequest.obtain(mNextSerial, RIL_REQUEST_CDMA_SET_PREFERRED_VOICE_PRIVACY_MODE,
                 result);
 
         rr.mp.writeInt(1);
@@ -907,7 +2142,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
     }
 
     public void getPreferredVoicePrivacy(Message result) {
-        RILRequest rr = RILRequest.obtain(RIL_REQUEST_CDMA_QUERY_PREFERRED_VOICE_PRIVACY_MODE,
+        RILRequest rr = RILRequest.obtain(mNextSerial, RIL_REQUEST_CDMA_QUERY_PREFERRED_VOICE_PRIVACY_MODE,
                 result);
         send(rr);
     }
@@ -915,7 +2150,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
     public void
     separateConnection (int gsmIndex, Message result) {
         RILRequest rr
-                = RILRequest.obtain(RIL_REQUEST_SEPARATE_CONNECTION, result);
+                = RILRequest.obtain(mNextSerial, RIL_REQUEST_SEPARATE_CONNECTION, result);
 
         if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest)
                             + " " + gsmIndex);
@@ -929,7 +2164,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
     public void
     acceptCall (Message result) {
         RILRequest rr
-                = RILRequest.obtain(RIL_REQUEST_ANSWER, result);
+                = RILRequest.obtain(mNextSerial, RIL_REQUEST_ANSWER, result);
 
         if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
@@ -939,7 +2174,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
     public void
     rejectCall (Message result) {
         RILRequest rr
-                = RILRequest.obtain(RIL_REQUEST_UDUB, result);
+                = RILRequest.obtain(mNextSerial, RIL_REQUEST_UDUB, result);
 
         if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
@@ -949,7 +2184,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
     public void
     explicitCallTransfer (Message result) {
         RILRequest rr
-                = RILRequest.obtain(RIL_REQUEST_EXPLICIT_CALL_TRANSFER, result);
+                = RILRequest.obtain(mNextSerial, RIL_REQUEST_EXPLICIT_CALL_TRANSFER, result);
 
         if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
@@ -959,7 +2194,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
     public void
     getLastCallFailCause (Message result) {
         RILRequest rr
-                = RILRequest.obtain(RIL_REQUEST_LAST_CALL_FAIL_CAUSE, result);
+                = RILRequest.obtain(mNextSerial, RIL_REQUEST_LAST_CALL_FAIL_CAUSE, result);
 
         if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
@@ -980,7 +2215,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
     public void
     getLastDataCallFailCause (Message result) {
         RILRequest rr
-                = RILRequest.obtain(RIL_REQUEST_LAST_DATA_CALL_FAIL_CAUSE, result);
+                = RILRequest.obtain(mNextSerial, RIL_REQUEST_LAST_DATA_CALL_FAIL_CAUSE, result);
 
         if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
@@ -990,7 +2225,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
     public void
     setMute (boolean enableMute, Message response) {
         RILRequest rr
-                = RILRequest.obtain(RIL_REQUEST_SET_MUTE, response);
+                = RILRequest.obtain(mNextSerial, RIL_REQUEST_SET_MUTE, response);
 
         if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest)
                             + " " + enableMute);
@@ -1004,7 +2239,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
     public void
     getMute (Message response) {
         RILRequest rr
-                = RILRequest.obtain(RIL_REQUEST_GET_MUTE, response);
+                = RILRequest.obtain(mNextSerial, RIL_REQUEST_GET_MUTE, response);
 
         if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
@@ -1013,48 +2248,28 @@ public final class RIL extends BaseCommands implements CommandsInterface {
 
     public void
     getSignalStrength (Message result) {
-        RILRequest rr
-                = RILRequest.obtain(RIL_REQUEST_SIGNAL_STRENGTH, result);
-
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
-
-        send(rr);
+        sendCoalesced(RIL_REQUEST_SIGNAL_STRENGTH, result);
     }
 
-    public void
-    getRegistrationState (Message result) {
-        RILRequest rr
-                = RILRequest.obtain(RIL_REQUEST_REGISTRATION_STATE, result);
-
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
-
-        send(rr);
+    public void
+    getRegistrationState (Message result) {
+        sendCoalesced(RIL_REQUEST_REGISTRATION_STATE, result);
     }
 
     public void
     getGPRSRegistrationState (Message result) {
-        RILRequest rr
-                = RILRequest.obtain(RIL_REQUEST_GPRS_REGISTRATION_STATE, result);
-
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
-
-        send(rr);
+        sendCoalesced(RIL_REQUEST_GPRS_REGISTRATION_STATE, result);
     }
 
     public void
     getOperator(Message result) {
-        RILRequest rr
-                = RILRequest.obtain(RIL_REQUEST_OPERATOR, result);
-
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
-
-        send(rr);
+        sendCoalesced(RIL_REQUEST_OPERATOR, result);
     }
 
     public void
     sendDtmf(char c, Message result) {
         RILRequest rr
-                = RILRequest.obtain(RIL_REQUEST_DTMF, result);
+                = RILRequest.obtain(mNextSerial, RIL_REQUEST_DTMF, result);
 
         if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
@@ -1066,7 +2281,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
     public void
     startDtmf(char c, Message result) {
         RILRequest rr
-                = RILRequest.obtain(RIL_REQUEST_DTMF_START, result);
+                = RILRequest.obtain(mNextSerial, RIL_REQUEST_DTMF_START, result);
 
         if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
@@ -1078,7 +2293,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
     public void
     stopDtmf(Message result) {
         RILRequest rr
-                = RILRequest.obtain(RIL_REQUEST_DTMF_STOP, result);
+                = RILRequest.obtain(mNextSerial, RIL_REQUEST_DTMF_STOP, result);
 
         if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
@@ -1087,7 +2302,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
 
     public void
     sendBurstDtmf(String dtmfString, int on, int off, Message result) {
-        RILRequest rr = RILRequest.obtain(RIL_REQUEST_CDMA_BURST_DTMF, result);
+        RILRequest rr = RILRequest.obtain(mNextSerial, RIL_REQUEST_CDMA_BURST_DTMF, result);
 
         rr.mp.writeInt(3);
         rr.mp.writeString(dtmfString);
@@ -1103,7 +2318,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
     public void
     sendSMS (String smscPDU, String pdu, Message result) {
         RILRequest rr
-                = RILRequest.obtain(RIL_REQUEST_SEND_SMS, result);
+                = RILRequest.obtain(mNextSerial, RIL_REQUEST_SEND_SMS, result);
 
         rr.mp.writeInt(2);
         rr.mp.writeString(smscPDU);
@@ -1123,7 +2338,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
         DataInputStream dis = new DataInputStream(bais);
 
         RILRequest rr
-                = RILRequest.obtain(RIL_REQUEST_CDMA_SEND_SMS, result);
+                = RILRequest.obtain(mNextSerial, RIL_REQUEST_CDMA_SEND_SMS, result);
 
         try {
             rr.mp.writeInt(dis.readInt()); //teleServiceId
@@ -1162,7 +2377,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
     }
 
     public void deleteSmsOnSim(int index, Message response) {
-        RILRequest rr = RILRequest.obtain(RIL_REQUEST_DELETE_SMS_ON_SIM,
+        RILRequest rr = RILRequest.obtain(mNextSerial, RIL_REQUEST_DELETE_SMS_ON_SIM,
                 response);
 
         rr.mp.writeInt(1);
@@ -1178,7 +2393,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
     }
 
     public void deleteSmsOnRuim(int index, Message response) {
-        RILRequest rr = RILRequest.obtain(RIL_REQUEST_CDMA_DELETE_SMS_ON_RUIM,
+        RILRequest rr = RILRequest.obtain(mNextSerial, RIL_REQUEST_CDMA_DELETE_SMS_ON_RUIM,
                 response);
 
         rr.mp.writeInt(1);
@@ -1196,7 +2411,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
     public void writeSmsToSim(int status, String smsc, String pdu, Message response) {
         status = translateStatus(status);
 
-        RILRequest rr = RILRequest.obtain(RIL_REQUEST_WRITE_SMS_TO_SIM,
+        RILRequest rr = RILRequest.obtain(mNextSerial, RIL_REQUEST_WRITE_SMS_TO_SIM,
                 response);
 
         rr.mp.writeInt(status);
@@ -1215,7 +2430,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
     public void writeSmsToRuim(int status, String pdu, Message response) {
         status = translateStatus(status);
 
-        RILRequest rr = RILRequest.obtain(RIL_REQUEST_CDMA_WRITE_SMS_TO_RUIM,
+        RILRequest rr = RILRequest.obtain(mNextSerial, RIL_REQUEST_CDMA_WRITE_SMS_TO_RUIM,
                 response);
 
         rr.mp.writeInt(status);
@@ -1285,8 +2500,26 @@ public final class RIL extends BaseCommands implements CommandsInterface {
     public void
     setupDataCall(String radioTechnology, String profile, String apn,
             String user, String password, String authType, Message result) {
+        send(obtainSetupDataCall(radioTechnology, profile, apn, user, password, authType,
+                result));
+    }
+
+    /**
+     * Future-returning form of {@link #setupDataCall}. The result is
+     * the String[] of cid, interface name and address.
+     */
+    public RILFuture<String[]>
+    setupDataCallAsync(String radioTechnology, String profile, String apn,
+            String user, String password, String authType) {
+        return sendAsync(obtainSetupDataCall(radioTechnology, profile, apn, user, password,
+                authType, null), new RILFuture<String[]>(mDispatcher));
+    }
+
+    private RILRequest
+    obtainSetupDataCall(String radioTechnology, String profile, String apn,
+            String user, String password, String authType, Message result) {
         RILRequest rr
-                = RILRequest.obtain(RIL_REQUEST_SETUP_DATA_CALL, result);
+                = RILRequest.obtain(mNextSerial, RIL_REQUEST_SETUP_DATA_CALL, result);
 
         rr.mp.writeInt(6);
 
@@ -1302,13 +2535,13 @@ public final class RIL extends BaseCommands implements CommandsInterface {
                 + profile + " " + apn + " " + user + " "
                 + password + " " + authType);
 
-        send(rr);
+        return rr;
     }
 
     public void
     deactivateDataCall(int cid, Message result) {
         RILRequest rr
-                = RILRequest.obtain(RIL_REQUEST_DEACTIVATE_DATA_CALL, result);
+                = RILRequest.obtain(mNextSerial, RIL_REQUEST_DEACTIVATE_DATA_CALL, result);
 
         rr.mp.writeInt(1);
         rr.mp.writeString(Integer.toString(cid));
@@ -1325,7 +2558,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
         if(mInitialRadioStateChange) {
             synchronized (mStateMonitor) {
                 if (!mState.isOn()) {
-                    RILRequest rrPnt = RILRequest.obtain(
+                    RILRequest rrPnt = RILRequest.obtain(mNextSerial, 
                                    RIL_REQUEST_SET_PREFERRED_NETWORK_TYPE, null);
 
                     rrPnt.mp.writeInt(1);
@@ -1335,7 +2568,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
 
                     send(rrPnt);
 
-                    RILRequest rrCs = RILRequest.obtain(
+                    RILRequest rrCs = RILRequest.obtain(mNextSerial, 
                                    RIL_REQUEST_CDMA_SET_SUBSCRIPTION, null);
                     rrCs.mp.writeInt(1);
                     rrCs.mp.writeInt(mCdmaSubscription);
@@ -1346,7 +2579,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
             }
         }
         RILRequest rr
-                = RILRequest.obtain(RIL_REQUEST_RADIO_POWER, result);
+                = RILRequest.obtain(mNextSerial, RIL_REQUEST_RADIO_POWER, result);
 
         rr.mp.writeInt(1);
         rr.mp.writeInt(on ? 1 : 0);
@@ -1359,7 +2592,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
     public void
     setSuppServiceNotifications(boolean enable, Message result) {
         RILRequest rr
-                = RILRequest.obtain(RIL_REQUEST_SET_SUPP_SVC_NOTIFICATION, result);
+                = RILRequest.obtain(mNextSerial, RIL_REQUEST_SET_SUPP_SVC_NOTIFICATION, result);
 
         rr.mp.writeInt(1);
         rr.mp.writeInt(enable ? 1 : 0);
@@ -1373,7 +2606,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
     public void
     acknowledgeLastIncomingGsmSms(boolean success, int cause, Message result) {
         RILRequest rr
-                = RILRequest.obtain(RIL_REQUEST_SMS_ACKNOWLEDGE, result);
+                = RILRequest.obtain(mNextSerial, RIL_REQUEST_SMS_ACKNOWLEDGE, result);
 
         rr.mp.writeInt(2);
         rr.mp.writeInt(success ? 1 : 0);
@@ -1388,7 +2621,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
     public void
     acknowledgeLastIncomingCdmaSms(boolean success, int cause, Message result) {
         RILRequest rr
-                = RILRequest.obtain(RIL_REQUEST_CDMA_SMS_ACKNOWLEDGE, result);
+                = RILRequest.obtain(mNextSerial, RIL_REQUEST_CDMA_SMS_ACKNOWLEDGE, result);
 
         rr.mp.writeInt(success ? 0 : 1); //RIL_CDMA_SMS_ErrorClass
         // cause code according to X.S004-550E
@@ -1404,10 +2637,30 @@ public final class RIL extends BaseCommands implements CommandsInterface {
     public void
     iccIO (int command, int fileid, String path, int p1, int p2, int p3,
             String data, String pin2, Message result) {
+        send(obtainIccIO(command, fileid, path, p1, p2, p3, data, pin2, result));
+    }
+
+    /**
+     * Future-returning form of {@link #iccIO}.
+     */
+    public RILFuture<IccIoResult>
+    iccIOAsync(int command, int fileid, String path, int p1, int p2, int p3,
+            String data, String pin2) {
+        return sendAsync(obtainIccIO(command, fileid, path, p1, p2, p3, data, pin2, null),
+                new RILFuture<IccIoResult>(mDispatcher));
+    }
+
+    private RILRequest
+    obtainIccIO(int command, int fileid, String path, int p1, int p2, int p3,
+            String data, String pin2, Message result) {
         //Note: This RIL request has not been renamed to ICC,
         //       but this request is also valid for SIM and RUIM
         RILRequest rr
-                = RILRequest.obtain(RIL_REQUEST_SIM_IO, result);
+                = RILRequest.obtain(mNextSerial, RIL_REQUEST_SIM_IO, result);
+
+        rr.mReplayable = (command == COMMAND_READ_BINARY
+                || command == COMMAND_READ_RECORD
+                || command == COMMAND_GET_RESPONSE);
 
         rr.mp.writeInt(command);
         rr.mp.writeInt(fileid);
@@ -1425,13 +2678,13 @@ public final class RIL extends BaseCommands implements CommandsInterface {
                 + " path: " + path + ","
                 + p1 + "," + p2 + "," + p3);
 
-        send(rr);
+        return rr;
     }
 
     public void
     getCLIR(Message result) {
         RILRequest rr
-                = RILRequest.obtain(RIL_REQUEST_GET_CLIR, result);
+                = RILRequest.obtain(mNextSerial, RIL_REQUEST_GET_CLIR, result);
 
         if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
@@ -1441,7 +2694,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
     public void
     setCLIR(int clirMode, Message result) {
         RILRequest rr
-                = RILRequest.obtain(RIL_REQUEST_SET_CLIR, result);
+                = RILRequest.obtain(mNextSerial, RIL_REQUEST_SET_CLIR, result);
 
         // count ints
         rr.mp.writeInt(1);
@@ -1457,7 +2710,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
     public void
     queryCallWaiting(int serviceClass, Message response) {
         RILRequest rr
-                = RILRequest.obtain(RIL_REQUEST_QUERY_CALL_WAITING, response);
+                = RILRequest.obtain(mNextSerial, RIL_REQUEST_QUERY_CALL_WAITING, response);
 
         rr.mp.writeInt(1);
         rr.mp.writeInt(serviceClass);
@@ -1471,7 +2724,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
     public void
     setCallWaiting(boolean enable, int serviceClass, Message response) {
         RILRequest rr
-                = RILRequest.obtain(RIL_REQUEST_SET_CALL_WAITING, response);
+                = RILRequest.obtain(mNextSerial, RIL_REQUEST_SET_CALL_WAITING, response);
 
         rr.mp.writeInt(2);
         rr.mp.writeInt(enable ? 1 : 0);
@@ -1486,7 +2739,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
     public void
     setNetworkSelectionModeAutomatic(Message response) {
         RILRequest rr
-                = RILRequest.obtain(RIL_REQUEST_SET_NETWORK_SELECTION_AUTOMATIC,
+                = RILRequest.obtain(mNextSerial, RIL_REQUEST_SET_NETWORK_SELECTION_AUTOMATIC,
                                     response);
 
         if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
@@ -1497,7 +2750,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
     public void
     setNetworkSelectionModeManual(String operatorNumeric, Message response) {
         RILRequest rr
-                = RILRequest.obtain(RIL_REQUEST_SET_NETWORK_SELECTION_MANUAL,
+                = RILRequest.obtain(mNextSerial, RIL_REQUEST_SET_NETWORK_SELECTION_MANUAL,
                                     response);
 
         if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest)
@@ -1511,7 +2764,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
     public void
     getNetworkSelectionMode(Message response) {
         RILRequest rr
-                = RILRequest.obtain(RIL_REQUEST_QUERY_NETWORK_SELECTION_MODE,
+                = RILRequest.obtain(mNextSerial, RIL_REQUEST_QUERY_NETWORK_SELECTION_MODE,
                                     response);
 
         if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
@@ -1522,7 +2775,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
     public void
     getAvailableNetworks(Message response) {
         RILRequest rr
-                = RILRequest.obtain(RIL_REQUEST_QUERY_AVAILABLE_NETWORKS,
+                = RILRequest.obtain(mNextSerial, RIL_REQUEST_QUERY_AVAILABLE_NETWORKS,
                                     response);
 
         if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
@@ -1534,7 +2787,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
     setCallForward(int action, int cfReason, int serviceClass,
                 String number, int timeSeconds, Message response) {
         RILRequest rr
-                = RILRequest.obtain(RIL_REQUEST_SET_CALL_FORWARD, response);
+                = RILRequest.obtain(mNextSerial, RIL_REQUEST_SET_CALL_FORWARD, response);
 
         rr.mp.writeInt(action);
         rr.mp.writeInt(cfReason);
@@ -1554,7 +2807,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
     queryCallForwardStatus(int cfReason, int serviceClass,
                 String number, Message response) {
         RILRequest rr
-            = RILRequest.obtain(RIL_REQUEST_QUERY_CALL_FORWARD_STATUS, response);
+            = RILRequest.obtain(mNextSerial, RIL_REQUEST_QUERY_CALL_FORWARD_STATUS, response);
 
         rr.mp.writeInt(2); // 2 is for query action, not in used anyway
         rr.mp.writeInt(cfReason);
@@ -1572,7 +2825,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
     public void
     queryCLIP(Message response) {
         RILRequest rr
-            = RILRequest.obtain(RIL_REQUEST_QUERY_CLIP, response);
+            = RILRequest.obtain(mNextSerial, RIL_REQUEST_QUERY_CLIP, response);
 
         if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
@@ -1583,7 +2836,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
     public void
     getBasebandVersion (Message response) {
         RILRequest rr
-                = RILRequest.obtain(RIL_REQUEST_BASEBAND_VERSION, response);
+                = RILRequest.obtain(mNextSerial, RIL_REQUEST_BASEBAND_VERSION, response);
 
         if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
@@ -1593,7 +2846,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
     public void
     queryFacilityLock (String facility, String password, int serviceClass,
                             Message response) {
-        RILRequest rr = RILRequest.obtain(RIL_REQUEST_QUERY_FACILITY_LOCK, response);
+        RILRequest rr = RILRequest.obtain(mNextSerial, RIL_REQUEST_QUERY_FACILITY_LOCK, response);
 
         if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
@@ -1613,7 +2866,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
                         int serviceClass, Message response) {
         String lockString;
          RILRequest rr
-                = RILRequest.obtain(RIL_REQUEST_SET_FACILITY_LOCK, response);
+                = RILRequest.obtain(mNextSerial, RIL_REQUEST_SET_FACILITY_LOCK, response);
 
         if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
@@ -1633,7 +2886,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
     public void
     sendUSSD (String ussdString, Message response) {
         RILRequest rr
-                = RILRequest.obtain(RIL_REQUEST_SEND_USSD, response);
+                = RILRequest.obtain(mNextSerial, RIL_REQUEST_SEND_USSD, response);
 
         if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest)
                             + " " + ussdString);
@@ -1646,7 +2899,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
     // inherited javadoc suffices
     public void cancelPendingUssd (Message response) {
         RILRequest rr
-                = RILRequest.obtain(RIL_REQUEST_CANCEL_USSD, response);
+                = RILRequest.obtain(mNextSerial, RIL_REQUEST_CANCEL_USSD, response);
 
         if (RILJ_LOGD) riljLog(rr.serialString()
                 + "> " + requestToString(rr.mRequest));
@@ -1657,7 +2910,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
 
     public void resetRadio(Message result) {
         RILRequest rr
-                = RILRequest.obtain(RIL_REQUEST_RESET_RADIO, result);
+                = RILRequest.obtain(mNextSerial, RIL_REQUEST_RESET_RADIO, result);
 
         if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
@@ -1666,7 +2919,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
 
     public void invokeOemRilRequestRaw(byte[] data, Message response) {
         RILRequest rr
-                = RILRequest.obtain(RIL_REQUEST_OEM_HOOK_RAW, response);
+                = RILRequest.obtain(mNextSerial, RIL_REQUEST_OEM_HOOK_RAW, response);
 
         if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest)
                + "[" + IccUtils.bytesToHexString(data) + "]");
@@ -1679,7 +2932,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
 
     public void invokeOemRilRequestStrings(String[] strings, Message response) {
         RILRequest rr
-                = RILRequest.obtain(RIL_REQUEST_OEM_HOOK_STRINGS, response);
+                = RILRequest.obtain(mNextSerial, RIL_REQUEST_OEM_HOOK_STRINGS, response);
 
         if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
@@ -1696,7 +2949,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
      */
     public void setBandMode (int bandMode, Message response) {
         RILRequest rr
-                = RILRequest.obtain(RIL_REQUEST_SET_BAND_MODE, response);
+                = RILRequest.obtain(mNextSerial, RIL_REQUEST_SET_BAND_MODE, response);
 
         rr.mp.writeInt(1);
         rr.mp.writeInt(bandMode);
@@ -1716,7 +2969,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
      */
     public void queryAvailableBandMode (Message response) {
         RILRequest rr
-                = RILRequest.obtain(RIL_REQUEST_QUERY_AVAILABLE_BAND_MODE,
+                = RILRequest.obtain(mNextSerial, RIL_REQUEST_QUERY_AVAILABLE_BAND_MODE,
                 response);
 
         if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
@@ -1728,7 +2981,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
      * {@inheritDoc}
      */
     public void sendTerminalResponse(String contents, Message response) {
-        RILRequest rr = RILRequest.obtain(
+        RILRequest rr = RILRequest.obtain(mNextSerial, 
                 RILConstants.RIL_REQUEST_STK_SEND_TERMINAL_RESPONSE, response);
 
         if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
@@ -1741,7 +2994,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
      * {@inheritDoc}
      */
     public void sendEnvelope(String contents, Message response) {
-        RILRequest rr = RILRequest.obtain(
+        RILRequest rr = RILRequest.obtain(mNextSerial, 
                 RILConstants.RIL_REQUEST_STK_SEND_ENVELOPE_COMMAND, response);
 
         if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
@@ -1756,7 +3009,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
     public void handleCallSetupRequestFromSim(
             boolean accept, Message response) {
 
-        RILRequest rr = RILRequest.obtain(
+        RILRequest rr = RILRequest.obtain(mNextSerial, 
             RILConstants.RIL_REQUEST_STK_HANDLE_CALL_SETUP_REQUESTED_FROM_SIM,
             response);
 
@@ -1772,7 +3025,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
      * {@inheritDoc}
      */
     public void setPreferredNetworkType(int networkType , Message response) {
-        RILRequest rr = RILRequest.obtain(
+        RILRequest rr = RILRequest.obtain(mNextSerial, 
                 RILConstants.RIL_REQUEST_SET_PREFERRED_NETWORK_TYPE, response);
 
         rr.mp.writeInt(1);
@@ -1788,7 +3041,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
      * {@inheritDoc}
      */
     public void getPreferredNetworkType(Message response) {
-        RILRequest rr = RILRequest.obtain(
+        RILRequest rr = RILRequest.obtain(mNextSerial, 
                 RILConstants.RIL_REQUEST_GET_PREFERRED_NETWORK_TYPE, response);
 
         if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
@@ -1800,7 +3053,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
      * {@inheritDoc}
      */
     public void getNeighboringCids(Message response) {
-        RILRequest rr = RILRequest.obtain(
+        RILRequest rr = RILRequest.obtain(mNextSerial, 
                 RILConstants.RIL_REQUEST_GET_NEIGHBORING_CELL_IDS, response);
 
         if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
@@ -1808,11 +3061,27 @@ public final class RIL extends BaseCommands implements CommandsInterface {
         send(rr);
     }
 
+    /**
+     * Like {@link #getNeighboringCids}, but the result is a
+     * {@link NeighboringCellList} rather than an
+     * ArrayList&lt;NeighboringCellInfo&gt;.
+     */
+    public void getNeighboringCellList(Message response) {
+        RILRequest rr = RILRequest.obtain(mNextSerial, 
+                RILConstants.RIL_REQUEST_GET_NEIGHBORING_CELL_IDS, response);
+
+        rr.mParser = PARSE_CELL_LIST_COMPACT;
+
+        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
+
+        send(rr);
+    }
+
     /**
      * {@inheritDoc}
      */
     public void setLocationUpdates(boolean enable, Message response) {
-        RILRequest rr = RILRequest.obtain(RIL_REQUEST_SET_LOCATION_UPDATES, response);
+        RILRequest rr = RILRequest.obtain(mNextSerial, RIL_REQUEST_SET_LOCATION_UPDATES, response);
         rr.mp.writeInt(1);
         rr.mp.writeInt(enable ? 1 : 0);
 
@@ -1826,7 +3095,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
      * {@inheritDoc}
      */
     public void getSmscAddress(Message result) {
-        RILRequest rr = RILRequest.obtain(RIL_REQUEST_GET_SMSC_ADDRESS, result);
+        RILRequest rr = RILRequest.obtain(mNextSerial, RIL_REQUEST_GET_SMSC_ADDRESS, result);
 
         if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
@@ -1837,7 +3106,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
      * {@inheritDoc}
      */
     public void setSmscAddress(String address, Message result) {
-        RILRequest rr = RILRequest.obtain(RIL_REQUEST_SET_SMSC_ADDRESS, result);
+        RILRequest rr = RILRequest.obtain(mNextSerial, RIL_REQUEST_SET_SMSC_ADDRESS, result);
 
         rr.mp.writeString(address);
 
@@ -1851,7 +3120,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
      * {@inheritDoc}
      */
     public void reportSmsMemoryStatus(boolean available, Message result) {
-        RILRequest rr = RILRequest.obtain(RIL_REQUEST_REPORT_SMS_MEMORY_STATUS, result);
+        RILRequest rr = RILRequest.obtain(mNextSerial, RIL_REQUEST_REPORT_SMS_MEMORY_STATUS, result);
         rr.mp.writeInt(1);
         rr.mp.writeInt(available ? 1 : 0);
 
@@ -1865,7 +3134,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
      * {@inheritDoc}
      */
     public void reportStkServiceIsRunning(Message result) {
-        RILRequest rr = RILRequest.obtain(RIL_REQUEST_REPORT_STK_SERVICE_IS_RUNNING, result);
+        RILRequest rr = RILRequest.obtain(mNextSerial, RIL_REQUEST_REPORT_STK_SERVICE_IS_RUNNING, result);
 
         if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
@@ -1876,7 +3145,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
      * {@inheritDoc}
      */
     public void getGsmBroadcastConfig(Message response) {
-        RILRequest rr = RILRequest.obtain(RIL_REQUEST_GSM_GET_BROADCAST_CONFIG, response);
+        RILRequest rr = RILRequest.obtain(mNextSerial, RIL_REQUEST_GSM_GET_BROADCAST_CONFIG, response);
 
         if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
@@ -1887,7 +3156,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
      * {@inheritDoc}
      */
     public void setGsmBroadcastConfig(SmsBroadcastConfigInfo[] config, Message response) {
-        RILRequest rr = RILRequest.obtain(RIL_REQUEST_GSM_SET_BROADCAST_CONFIG, response);
+        RILRequest rr = RILRequest.obtain(mNextSerial, RIL_REQUEST_GSM_SET_BROADCAST_CONFIG, response);
 
         int numOfConfig = config.length;
         rr.mp.writeInt(numOfConfig);
@@ -1915,7 +3184,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
      * {@inheritDoc}
      */
     public void setGsmBroadcastActivation(boolean activate, Message response) {
-        RILRequest rr = RILRequest.obtain(RIL_REQUEST_GSM_BROADCAST_ACTIVATION, response);
+        RILRequest rr = RILRequest.obtain(mNextSerial, RIL_REQUEST_GSM_BROADCAST_ACTIVATION, response);
 
         rr.mp.writeInt(1);
         rr.mp.writeInt(activate ? 0 : 1);
@@ -1928,7 +3197,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
     //***** Private Methods
 
     private void sendScreenState(boolean on) {
-        RILRequest rr = RILRequest.obtain(RIL_REQUEST_SCREEN_STATE, null);
+        RILRequest rr = RILRequest.obtain(mNextSerial, RIL_REQUEST_SCREEN_STATE, null);
         rr.mp.writeInt(1);
         rr.mp.writeInt(on ? 1 : 0);
 
@@ -1998,73 +3267,634 @@ public final class RIL extends BaseCommands implements CommandsInterface {
      * happen often.
      */
 
-    private void
-    acquireWakeLock() {
-        synchronized (mWakeLock) {
-            mWakeLock.acquire();
-            mRequestMessagesPending++;
+    private void
+    acquireWakeLock() {
+        synchronized (mWakeLock) {
+            mWakeLock.acquire();
+            mRequestMessagesPending++;
+
+            mSender.removeMessages(EVENT_WAKE_LOCK_TIMEOUT);
+            Message msg = mSender.obtainMessage(EVENT_WAKE_LOCK_TIMEOUT);
+            mSender.sendMessageDelayed(msg, mWakeLockTimeout);
+        }
+    }
+
+    private void
+    releaseWakeLockIfDone() {
+        synchronized (mWakeLock) {
+            if (mWakeLock.isHeld() &&
+                (mRequestMessagesPending == 0) &&
+                (mRequestsList.size() == 0)) {
+                mSender.removeMessages(EVENT_WAKE_LOCK_TIMEOUT);
+                mWakeLock.release();
+            }
+        }
+    }
+
+    private void
+    send(RILRequest rr) {
+        acquireWakeLock();
+
+        rr.mLane = sendLaneOf(rr.mRequest);
+        rr.mEnqueueTime = SystemClock.uptimeMillis();
+        rr.mEnqueueNanos = System.nanoTime();
+        mTrace.record(RILTrace.DIR_REQUEST, rr.mSerial, rr.mRequest, 0, rr.mp.dataSize() - 8);
+        mSendLanes[rr.mLane].add(rr);
+        if (mSendScheduled.compareAndSet(false, true)) {
+            if (mEventLoop != null) {
+                mEventLoop.wakeup();
+            } else if (!mSender.sendEmptyMessage(EVENT_SEND)) {
+                // The sender looper has quit; don't leave the flag set, or
+                // no later send() would post again
+                mSendScheduled.set(false);
+                Log.e(LOG_TAG, "Can't post EVENT_SEND; " + requestToString(rr.mRequest)
+                        + " left queued");
+            }
+        }
+    }
+
+    /**
+     * Sends rr, which has no result Message, completing future instead.
+     */
+    private <T> RILFuture<T>
+    sendAsync(RILRequest rr, RILFuture<T> future) {
+        rr.mFuture = future;
+        send(rr);
+        return future;
+    }
+
+    /**
+     * Sends a parameterless query, or attaches result to an identical
+     * query that is already outstanding.
+     */
+    private void
+    sendCoalesced(int request, Message result) {
+        RILRequest rr = mCoalescer.obtain(request, result);
+
+        // These are polled often, so they only go to mTrace, not the log
+        if (rr == null) {
+            mTrace.record(RILTrace.DIR_COALESCED, 0, request, 0, 0);
+            return;
+        }
+
+        send(rr);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ConcurrentLinkedQueue<RILRequest>[]
+    newSendLanes() {
+        ConcurrentLinkedQueue<RILRequest>[] lanes = new ConcurrentLinkedQueue[SEND_LANES];
+
+        for (int i = 0; i < SEND_LANES; i++) {
+            lanes[i] = new ConcurrentLinkedQueue<RILRequest>();
+        }
+        return lanes;
+    }
+
+    /**
+     * @return the SEND_LANE_* that requests of this type are written from
+     */
+    static int
+    sendLaneOf(int request) {
+        switch (request) {
+            case RIL_REQUEST_DIAL:
+            case RIL_REQUEST_HANGUP:
+            case RIL_REQUEST_HANGUP_WAITING_OR_BACKGROUND:
+            case RIL_REQUEST_HANGUP_FOREGROUND_RESUME_BACKGROUND:
+            case RIL_REQUEST_SWITCH_WAITING_OR_HOLDING_AND_ACTIVE:
+            case RIL_REQUEST_CONFERENCE:
+            case RIL_REQUEST_UDUB:
+            case RIL_REQUEST_ANSWER:
+            case RIL_REQUEST_SEPARATE_CONNECTION:
+            case RIL_REQUEST_EXPLICIT_CALL_TRANSFER:
+            case RIL_REQUEST_GET_CURRENT_CALLS:
+            case RIL_REQUEST_LAST_CALL_FAIL_CAUSE:
+            case RIL_REQUEST_DTMF:
+            case RIL_REQUEST_DTMF_START:
+            case RIL_REQUEST_DTMF_STOP:
+            case RIL_REQUEST_CDMA_FLASH:
+            case RIL_REQUEST_CDMA_BURST_DTMF:
+            case RIL_REQUEST_SET_MUTE:
+                return SEND_LANE_CALL;
+
+            case RIL_REQUEST_SIM_IO:
+            case RIL_REQUEST_WRITE_SMS_TO_SIM:
+            case RIL_REQUEST_DELETE_SMS_ON_SIM:
+            case RIL_REQUEST_CDMA_WRITE_SMS_TO_RUIM:
+            case RIL_REQUEST_CDMA_DELETE_SMS_ON_RUIM:
+            case RIL_REQUEST_OEM_HOOK_RAW:
+            case RIL_REQUEST_OEM_HOOK_STRINGS:
+            case RIL_REQUEST_QUERY_AVAILABLE_NETWORKS:
+                return SEND_LANE_BULK;
+
+            default:
+                return SEND_LANE_NORMAL;
+        }
+    }
+
+    /**
+     * @return true if requests of this type, or their responses, carry
+     *         a PIN, password, message or identity, which a wire capture
+     *         must not keep
+     */
+    static boolean
+    isCaptureRedacted(int request) {
+        switch (request) {
+            case RIL_REQUEST_ENTER_SIM_PIN:
+            case RIL_REQUEST_ENTER_SIM_PUK:
+            case RIL_REQUEST_ENTER_SIM_PIN2:
+            case RIL_REQUEST_ENTER_SIM_PUK2:
+            case RIL_REQUEST_CHANGE_SIM_PIN:
+            case RIL_REQUEST_CHANGE_SIM_PIN2:
+            case RIL_REQUEST_CHANGE_BARRING_PASSWORD:
+            case RIL_REQUEST_ENTER_NETWORK_DEPERSONALIZATION:
+            case RIL_REQUEST_QUERY_FACILITY_LOCK:
+            case RIL_REQUEST_SET_FACILITY_LOCK:
+            case RIL_REQUEST_SIM_IO:
+            case RIL_REQUEST_SEND_SMS:
+            case RIL_REQUEST_SEND_SMS_EXPECT_MORE:
+            case RIL_REQUEST_WRITE_SMS_TO_SIM:
+            case RIL_REQUEST_CDMA_SEND_SMS:
+            case RIL_REQUEST_CDMA_WRITE_SMS_TO_RUIM:
+            case RIL_REQUEST_SEND_USSD:
+                return true;
+
+            default:
+                RILRequestRegistry.Entry info = sRequestRegistry.get(request);
+
+                return (info != null) && info.isRedacted();
+        }
+    }
+
+    /**
+     * @return true if unsolicited responses of this type carry a
+     *         message, which a wire capture must not keep
+     */
+    static boolean
+    isCaptureRedactedUnsol(int response) {
+        switch (response) {
+            case RIL_UNSOL_RESPONSE_NEW_SMS:
+            case RIL_UNSOL_RESPONSE_NEW_SMS_STATUS_REPORT:
+            case RIL_UNSOL_RESPONSE_CDMA_NEW_SMS:
+            case RIL_UNSOL_RESPONSE_NEW_BROADCAST_SMS:
+            case RIL_UNSOL_ON_USSD:
+                return true;
+
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Decodes one message from rild and queues its delivery on
+     * mDispatcher.
+     *
+     * @param readTime System.nanoTime() when the message was read
+     */
+    void
+    processResponse (RILParcelCursor p, long readTime) {
+        int type;
+
+        type = p.readInt();
+
+        if (type == RESPONSE_UNSOLICITED) {
+            processUnsolicited (p, readTime);
+        } else if (type == RESPONSE_SOLICITED) {
+            processSolicited (p, readTime);
+        }
+
+        releaseWakeLockIfDone();
+    }
+
+    private void
+    dispatch(int what, int arg1, long readTime, Object obj) {
+        mDispatchDepthHistogram.record(mDispatchDepth.incrementAndGet());
+        mDispatcher.obtainMessage(what, arg1, (int) (readTime / 1000), obj).sendToTarget();
+    }
+
+    /**
+     * Starts copying every message to and from rild to rotating files
+     * dir/prefix.NNNNNN, for RILWireReplay. Replaces any capture
+     * already running. PINs, passwords, messages and identities are
+     * left out, see isCaptureRedacted().
+     *
+     * @param fileBytes size of each file
+     * @param maxFiles files kept, the oldest being deleted
+     */
+    public void
+    startWireCapture(File dir, String prefix, int fileBytes, int maxFiles)
+            throws IOException {
+        RILWireCapture capture = new RILWireCapture(dir, prefix, fileBytes, maxFiles);
+
+        capture = swapWireCapture(capture);
+        if (capture != null) {
+            capture.close();
+        }
+    }
+
+    public void
+    stopWireCapture() {
+        RILWireCapture capture = swapWireCapture(null);
+
+        if (capture != null) {
+            if (RILJ_LOGD) riljLog(capture.toString());
+            capture.close();
+        }
+    }
+
+    private synchronized RILWireCapture
+    swapWireCapture(RILWireCapture capture) {
+        RILWireCapture old = mWireCapture;
+
+        mWireCapture = capture;
+        return old;
+    }
+
+    /**
+     * Enters a request read from a capture in the table of outstanding
+     * requests, so its captured response is decoded like the original.
+     * See RILWireReplay.
+     */
+    void
+    addReplayedRequest(int request, int serial) {
+        RILRequest rr = RILRequest.obtain(mReplaySerial, request, null);
+
+        rr.mSerial = serial;
+        rr.mWriteNanos = System.nanoTime();
+
+        // A serial reused after a reconnect in the capture
+        RILRequest stale = findAndRemoveRequestFromList(serial);
+        if (stale != null) {
+            stale.release();
+        }
+
+        synchronized (mRequestsList) {
+            mRequestsList.add(rr);
+        }
+    }
+
+    /**
+     * Forgets a request entered by addReplayedRequest whose response was
+     * redacted from the capture, so can't be replayed.
+     */
+    void
+    dropReplayedRequest(int serial) {
+        RILRequest rr = findAndRemoveRequestFromList(serial);
+
+        if (rr != null) {
+            rr.release();
+        }
+    }
+
+    /**
+     * Appends a message read from rild to capture, keeping only its
+     * header if it answers a request isCaptureRedacted() covers or is an
+     * unsolicited response isCaptureRedactedUnsol() covers.
+     */
+    private void
+    captureResponse(RILWireCapture capture, long readTime, byte[] data, int offset,
+            int length) {
+        boolean redact = false;
+
+        if (length >= 8) {
+            int type = RILWireCapture.readInt(data, offset);
+            int id = RILWireCapture.readInt(data, offset + 4);
+
+            if (type == RESPONSE_UNSOLICITED) {
+                redact = isCaptureRedactedUnsol(id);
+            } else {
+                synchronized (mRequestsList) {
+                    RILRequest rr = mRequestsList.get(id);
+
+                    redact = (rr != null) && isCaptureRedacted(rr.mRequest);
+                }
+            }
+        }
+
+        if (redact) {
+            capture.append(RILWireCapture.DIR_IN_REDACTED, readTime, data, offset, 8);
+        } else {
+            capture.append(RILWireCapture.DIR_IN, readTime, data, offset, length);
+        }
+    }
+
+    /**
+     * Writes the recent requests and responses in binary, to be
+     * rendered by RILTrace.decode().
+     */
+    public void
+    dumpTrace(OutputStream out) throws IOException {
+        mTrace.writeTo(out);
+    }
+
+    /**
+     * Prints the recent requests and responses and the statistics of each
+     * request type, for dumpsys of the service owning this RIL.
+     */
+    public void
+    dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        pw.println("RIL:");
+        pw.println(" mSocketName=" + mSocketName);
+
+        pw.println(" Request stats:");
+        ArrayList<RILRequestStats> stats = getRequestStats();
+        for (int i = 0, n = stats.size(); i < n; i++) {
+            pw.println("  " + stats.get(i));
+        }
+
+        pw.println(" Trace:");
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+            dumpTrace(out);
+            RILTrace.decode(new ByteArrayInputStream(out.toByteArray()), pw);
+        } catch (IOException ex) {
+            pw.println("  unavailable: " + ex);
+        }
+        pw.flush();
+    }
+
+    /**
+     * Returns a copy of the statistics of a request type, or null if
+     * none was sent yet.
+     *
+     * @param request RIL_REQUEST_*
+     */
+    public RILRequestStats
+    getRequestStats(int request) {
+        RILRequestRegistry.Entry info = sRequestRegistry.get(request);
+        RILRequestStats[] all = mRequestStats;
+
+        if (info == null || info.mMetricSlot >= all.length || all[info.mMetricSlot] == null) {
+            return null;
+        }
+        return all[info.mMetricSlot].snapshot();
+    }
+
+    /**
+     * Returns copies of the statistics of every request type sent so
+     * far. Each is copied separately while requests keep flowing, so
+     * they may be a few requests apart.
+     */
+    public ArrayList<RILRequestStats>
+    getRequestStats() {
+        RILRequestStats[] all = mRequestStats;
+        ArrayList<RILRequestStats> snapshots = new ArrayList<RILRequestStats>(all.length);
+
+        for (int i = 0; i < all.length; i++) {
+            if (all[i] != null) {
+                snapshots.add(all[i].snapshot());
+            }
+        }
+        return snapshots;
+    }
+
+    /**
+     * @return the statistics of request, created on first use, or null
+     *         if request is not registered
+     */
+    private RILRequestStats
+    getRequestStatsFor(int request) {
+        RILRequestRegistry.Entry info = sRequestRegistry.get(request);
+
+        if (info == null) {
+            return null;
+        }
+
+        RILRequestStats[] all = mRequestStats;
+        int slot = info.mMetricSlot;
+
+        if (slot < all.length && all[slot] != null) {
+            return all[slot];
+        }
+
+        synchronized (mRequestStatsLock) {
+            all = mRequestStats;
+            if (slot < all.length && all[slot] != null) {
+                return all[slot];
+            }
+
+            RILRequestStats[] copy = new RILRequestStats[
+                    Math.max(all.length, sRequestRegistry.getMetricSlotCount())];
+            System.arraycopy(all, 0, copy, 0, all.length);
+            copy[slot] = new RILRequestStats(request, info.mName);
+            mRequestStats = copy;
+
+            return copy[slot];
+        }
+    }
+
+    /**
+     * Returns the publisher of an unsolicited response, e.g.
+     * RIL_UNSOL_SIGNAL_STRENGTH, as an alternative to registering for
+     * it. Events are published from the thread reading rild, before the
+     * Registrants are notified; see RILEventPublisher for how slow
+     * subscribers are handled.
+     *
+     * @param response RIL_UNSOL_*
+     */
+    public synchronized RILEventPublisher
+    getEventPublisher(int response) {
+        RILRequestRegistry.Entry info = sUnsolRegistry.get(response);
+
+        if (info == null) {
+            throw new IllegalArgumentException("Unknown unsol response: " + response);
+        }
+
+        RILEventPublisher[] publishers = mEventPublishers;
+        int slot = info.mMetricSlot;
+
+        if (slot < publishers.length && publishers[slot] != null) {
+            return publishers[slot];
+        }
+
+        RILEventPublisher[] copy = new RILEventPublisher[
+                Math.max(publishers.length, sUnsolRegistry.getMetricSlotCount())];
+        System.arraycopy(publishers, 0, copy, 0, publishers.length);
+        copy[slot] = new RILEventPublisher(response);
+        mEventPublishers = copy;
+
+        return copy[slot];
+    }
+
+    /**
+     * Selects how a lost connection to rild is handled. Normally the
+     * socket is reopened every SOCKET_OPEN_RETRY_MILLIS and everything
+     * outstanding fails with RADIO_NOT_AVAILABLE. In reconnect mode the
+     * first retries come quickly, backing off exponentially, and
+     * read-only requests that were outstanding are sent again once
+     * rild is back, without the caller noticing.
+     */
+    public void
+    setReconnectMode(boolean enabled) {
+        mReconnectMode = enabled;
+    }
+
+    /**
+     * @return true for requests that only read state, so that sending
+     *         them twice is harmless. SIM_IO depends on the command and
+     *         is decided in iccIO.
+     */
+    static boolean
+    isReplayable(int request) {
+        switch (request) {
+            case RIL_REQUEST_GET_SIM_STATUS:
+            case RIL_REQUEST_GET_CURRENT_CALLS:
+            case RIL_REQUEST_GET_IMSI:
+            case RIL_REQUEST_SIGNAL_STRENGTH:
+            case RIL_REQUEST_REGISTRATION_STATE:
+            case RIL_REQUEST_GPRS_REGISTRATION_STATE:
+            case RIL_REQUEST_OPERATOR:
+            case RIL_REQUEST_GET_IMEI:
+            case RIL_REQUEST_GET_IMEISV:
+            case RIL_REQUEST_QUERY_NETWORK_SELECTION_MODE:
+            case RIL_REQUEST_BASEBAND_VERSION:
+            case RIL_REQUEST_GET_PREFERRED_NETWORK_TYPE:
+            case RIL_REQUEST_GET_NEIGHBORING_CELL_IDS:
+            case RIL_REQUEST_DEVICE_IDENTITY:
+                return true;
+
+            default:
+                return false;
+        }
+    }
 
-            mSender.removeMessages(EVENT_WAKE_LOCK_TIMEOUT);
-            Message msg = mSender.obtainMessage(EVENT_WAKE_LOCK_TIMEOUT);
-            mSender.sendMessageDelayed(msg, mWakeLockTimeout);
+    /**
+     * Collapses bursts of call state change notifications, each of which
+     * usually costs the listener a GET_CURRENT_CALLS round trip.
+     *
+     * @param windowMillis quiet time after the last change before
+     *        listeners are notified, or 0 to notify on every change
+     * @param maxDelayMillis longest a notification may be held back by
+     *        a continuing burst
+     */
+    public void
+    setCallStateDebounce(int windowMillis, int maxDelayMillis) {
+        synchronized (mCallStateLock) {
+            mCallStateWindow = Math.max(windowMillis, 0);
+            mCallStateMaxDelay = Math.max(maxDelayMillis, mCallStateWindow);
         }
     }
 
-    private void
-    releaseWakeLockIfDone() {
-        synchronized (mWakeLock) {
-            if (mWakeLock.isHeld() &&
-                (mRequestMessagesPending == 0) &&
-                (mRequestsList.size() == 0)) {
-                mSender.removeMessages(EVENT_WAKE_LOCK_TIMEOUT);
-                mWakeLock.release();
+    /**
+     * @return call state changes received per notification sent, 1 when
+     *         nothing was collapsed
+     */
+    public float
+    getCallStateCollapseRatio() {
+        synchronized (mCallStateLock) {
+            if (mCallStateNotifications == 0) {
+                return 1;
             }
+            return (float) mCallStateEvents / mCallStateNotifications;
         }
     }
 
     private void
-    send(RILRequest rr) {
-        Message msg;
+    onCallStateChanged() {
+        synchronized (mCallStateLock) {
+            mCallStateEvents++;
 
-        msg = mSender.obtainMessage(EVENT_SEND, rr);
+            if (mCallStateWindow > 0) {
+                long now = SystemClock.uptimeMillis();
 
-        acquireWakeLock();
+                if (!mCallStatePending) {
+                    mCallStatePending = true;
+                    mCallStateBurstStart = now;
+                }
+
+                long due = Math.min(now + mCallStateWindow,
+                        mCallStateBurstStart + mCallStateMaxDelay);
+
+                mDispatcher.removeMessages(EVENT_CALL_STATE_DEBOUNCE);
+                mDispatcher.sendEmptyMessageAtTime(EVENT_CALL_STATE_DEBOUNCE, due);
+                return;
+            }
+
+            mCallStateNotifications++;
+        }
 
-        msg.sendToTarget();
+        mCallStateRegistrants
+            .notifyRegistrants(new AsyncResult(null, null, null));
     }
 
+    /**
+     * Sends the call state change held back by onCallStateChanged().
+     * Runs on mDispatcher, like the other notifications.
+     */
     private void
-    processResponse (Parcel p) {
-        int type;
+    notifyDebouncedCallState() {
+        synchronized (mCallStateLock) {
+            if (!mCallStatePending) {
+                return;
+            }
+            mCallStatePending = false;
+            mCallStateNotifications++;
+        }
 
-        type = p.readInt();
+        mCallStateRegistrants
+            .notifyRegistrants(new AsyncResult(null, null, null));
+    }
 
-        if (type == RESPONSE_UNSOLICITED) {
-            processUnsolicited (p);
-        } else if (type == RESPONSE_SOLICITED) {
-            processSolicited (p);
-        }
+    private String
+    smsStatsToString() {
+        long count = mSmsCount.get();
 
-        releaseWakeLockIfDone();
+        if (count == 0) {
+            return "sms: none";
+        }
+        return "sms: n=" + count
+                + " receiverUs/sms=" + (mSmsReceiverNanos / count / 1000)
+                + " decodeUs/sms=" + (mSmsDecodeNanos.get() / count / 1000);
     }
 
     private RILRequest findAndRemoveRequestFromList(int serial) {
         synchronized (mRequestsList) {
-            for (int i = 0, s = mRequestsList.size() ; i < s ; i++) {
-                RILRequest rr = mRequestsList.get(i);
+            RILRequest rr = mRequestsList.remove(serial);
 
-                if (rr.mSerial == serial) {
-                    mRequestsList.remove(i);
-                    return rr;
-                }
+            if (rr != null) {
+                mRequestTimers.cancel(rr);
             }
+            return rr;
         }
+    }
 
-        return null;
+    /**
+     * Sets how long requests of one type may wait for a response before
+     * they fail with a {@link CommandTimeoutException}.
+     *
+     * Request types have no deadline unless one is set here.
+     *
+     * @param request RIL_REQUEST_*
+     * @param timeoutMillis deadline after the request is written, or 0
+     *        to wait for as long as it takes
+     */
+    public void
+    setRequestTimeout(int request, int timeoutMillis) {
+        if (request < 0 || request >= RILRequestRegistry.MAX_IDS) {
+            throw new IllegalArgumentException("Invalid request " + request);
+        }
+
+        synchronized (mRequestsList) {
+            if (request >= mRequestTimeouts.length) {
+                int[] timeouts = new int[request + 1];
+                System.arraycopy(mRequestTimeouts, 0, timeouts, 0, mRequestTimeouts.length);
+                mRequestTimeouts = timeouts;
+            }
+            mRequestTimeouts[request] = timeoutMillis;
+        }
+    }
+
+    private int
+    getRequestTimeoutLocked(int request) {
+        if (request >= 0 && request < mRequestTimeouts.length) {
+            return mRequestTimeouts[request];
+        }
+        return 0;
     }
 
     private void
-    processSolicited (Parcel p) {
+    processSolicited (RILParcelCursor p, long readTime) {
         int serial, error;
         boolean found = false;
 
@@ -2075,6 +3905,9 @@ public final class RIL extends BaseCommands implements CommandsInterface {
 
         rr = findAndRemoveRequestFromList(serial);
 
+        mTrace.record(RILTrace.DIR_RESPONSE, serial, (rr == null) ? -1 : rr.mRequest,
+                error, p.dataAvail());
+
         if (rr == null) {
             Log.w(LOG_TAG, "Unexpected solicited response! sn: "
                             + serial + " error: " + error);
@@ -2083,162 +3916,94 @@ public final class RIL extends BaseCommands implements CommandsInterface {
 
         Object ret = null;
 
+        rr.mResponseNanos = readTime;
+        long parseStart = System.nanoTime();
+
         if (error == 0 || p.dataAvail() > 0) {
             // either command succeeds or command fails but with data payload
-            try {switch (rr.mRequest) {
-            /*
- cat libs/telephony/ril_commands.h \
- | egrep "^ *{RIL_" \
- | sed -re 's/\{([^,]+),[^,]+,([^}]+).+/case \1: ret = \2(p); break;/'
-             */
-            case RIL_REQUEST_GET_SIM_STATUS: ret =  responseIccCardStatus(p); break;
-            case RIL_REQUEST_ENTER_SIM_PIN: ret =  responseInts(p); break;
-            case RIL_REQUEST_ENTER_SIM_PUK: ret =  responseInts(p); break;
-            case RIL_REQUEST_ENTER_SIM_PIN2: ret =  responseInts(p); break;
-            case RIL_REQUEST_ENTER_SIM_PUK2: ret =  responseInts(p); break;
-            case RIL_REQUEST_CHANGE_SIM_PIN: ret =  responseInts(p); break;
-            case RIL_REQUEST_CHANGE_SIM_PIN2: ret =  responseInts(p); break;
-            case RIL_REQUEST_ENTER_NETWORK_DEPERSONALIZATION: ret =  responseInts(p); break;
-            case RIL_REQUEST_GET_CURRENT_CALLS: ret =  responseCallList(p); break;
-            case RIL_REQUEST_DIAL: ret =  responseVoid(p); break;
-            case RIL_REQUEST_GET_IMSI: ret =  responseString(p); break;
-            case RIL_REQUEST_HANGUP: ret =  responseVoid(p); break;
-            case RIL_REQUEST_HANGUP_WAITING_OR_BACKGROUND: ret =  responseVoid(p); break;
-            case RIL_REQUEST_HANGUP_FOREGROUND_RESUME_BACKGROUND: ret =  responseVoid(p); break;
-            case RIL_REQUEST_SWITCH_WAITING_OR_HOLDING_AND_ACTIVE: ret =  responseVoid(p); break;
-            case RIL_REQUEST_CONFERENCE: ret =  responseVoid(p); break;
-            case RIL_REQUEST_UDUB: ret =  responseVoid(p); break;
-            case RIL_REQUEST_LAST_CALL_FAIL_CAUSE: ret =  responseInts(p); break;
-            case RIL_REQUEST_SIGNAL_STRENGTH: ret =  responseSignalStrength(p); break;
-            case RIL_REQUEST_REGISTRATION_STATE: ret =  responseStrings(p); break;
-            case RIL_REQUEST_GPRS_REGISTRATION_STATE: ret =  responseStrings(p); break;
-            case RIL_REQUEST_OPERATOR: ret =  responseStrings(p); break;
-            case RIL_REQUEST_RADIO_POWER: ret =  responseVoid(p); break;
-            case RIL_REQUEST_DTMF: ret =  responseVoid(p); break;
-            case RIL_REQUEST_SEND_SMS: ret =  responseSMS(p); break;
-            case RIL_REQUEST_SEND_SMS_EXPECT_MORE: ret =  responseSMS(p); break;
-            case RIL_REQUEST_SETUP_DATA_CALL: ret =  responseStrings(p); break;
-            case RIL_REQUEST_SIM_IO: ret =  responseICC_IO(p); break;
-            case RIL_REQUEST_SEND_USSD: ret =  responseVoid(p); break;
-            case RIL_REQUEST_CANCEL_USSD: ret =  responseVoid(p); break;
-            case RIL_REQUEST_GET_CLIR: ret =  responseInts(p); break;
-            case RIL_REQUEST_SET_CLIR: ret =  responseVoid(p); break;
-            case RIL_REQUEST_QUERY_CALL_FORWARD_STATUS: ret =  responseCallForward(p); break;
-            case RIL_REQUEST_SET_CALL_FORWARD: ret =  responseVoid(p); break;
-            case RIL_REQUEST_QUERY_CALL_WAITING: ret =  responseInts(p); break;
-            case RIL_REQUEST_SET_CALL_WAITING: ret =  responseVoid(p); break;
-            case RIL_REQUEST_SMS_ACKNOWLEDGE: ret =  responseVoid(p); break;
-            case RIL_REQUEST_GET_IMEI: ret =  responseString(p); break;
-            case RIL_REQUEST_GET_IMEISV: ret =  responseString(p); break;
-            case RIL_REQUEST_ANSWER: ret =  responseVoid(p); break;
-            case RIL_REQUEST_DEACTIVATE_DATA_CALL: ret =  responseVoid(p); break;
-            case RIL_REQUEST_QUERY_FACILITY_LOCK: ret =  responseInts(p); break;
-            case RIL_REQUEST_SET_FACILITY_LOCK: ret =  responseInts(p); break;
-            case RIL_REQUEST_CHANGE_BARRING_PASSWORD: ret =  responseVoid(p); break;
-            case RIL_REQUEST_QUERY_NETWORK_SELECTION_MODE: ret =  responseInts(p); break;
-            case RIL_REQUEST_SET_NETWORK_SELECTION_AUTOMATIC: ret =  responseVoid(p); break;
-            case RIL_REQUEST_SET_NETWORK_SELECTION_MANUAL: ret =  responseVoid(p); break;
-            case RIL_REQUEST_QUERY_AVAILABLE_NETWORKS : ret =  responseNetworkInfos(p); break;
-            case RIL_REQUEST_DTMF_START: ret =  responseVoid(p); break;
-            case RIL_REQUEST_DTMF_STOP: ret =  responseVoid(p); break;
-            case RIL_REQUEST_BASEBAND_VERSION: ret =  responseString(p); break;
-            case RIL_REQUEST_SEPARATE_CONNECTION: ret =  responseVoid(p); break;
-            case RIL_REQUEST_SET_MUTE: ret =  responseVoid(p); break;
-            case RIL_REQUEST_GET_MUTE: ret =  responseInts(p); break;
-            case RIL_REQUEST_QUERY_CLIP: ret =  responseInts(p); break;
-            case RIL_REQUEST_LAST_DATA_CALL_FAIL_CAUSE: ret =  responseInts(p); break;
-            case RIL_REQUEST_DATA_CALL_LIST: ret =  responseDataCallList(p); break;
-            case RIL_REQUEST_RESET_RADIO: ret =  responseVoid(p); break;
-            case RIL_REQUEST_OEM_HOOK_RAW: ret =  responseRaw(p); break;
-            case RIL_REQUEST_OEM_HOOK_STRINGS: ret =  responseStrings(p); break;
-            case RIL_REQUEST_SCREEN_STATE: ret =  responseVoid(p); break;
-            case RIL_REQUEST_SET_SUPP_SVC_NOTIFICATION: ret =  responseVoid(p); break;
-            case RIL_REQUEST_WRITE_SMS_TO_SIM: ret =  responseInts(p); break;
-            case RIL_REQUEST_DELETE_SMS_ON_SIM: ret =  responseVoid(p); break;
-            case RIL_REQUEST_SET_BAND_MODE: ret =  responseVoid(p); break;
-            case RIL_REQUEST_QUERY_AVAILABLE_BAND_MODE: ret =  responseInts(p); break;
-            case RIL_REQUEST_STK_GET_PROFILE: ret =  responseString(p); break;
-            case RIL_REQUEST_STK_SET_PROFILE: ret =  responseVoid(p); break;
-            case RIL_REQUEST_STK_SEND_ENVELOPE_COMMAND: ret =  responseString(p); break;
-            case RIL_REQUEST_STK_SEND_TERMINAL_RESPONSE: ret =  responseVoid(p); break;
-            case RIL_REQUEST_STK_HANDLE_CALL_SETUP_REQUESTED_FROM_SIM: ret =  responseInts(p); break;
-            case RIL_REQUEST_EXPLICIT_CALL_TRANSFER: ret =  responseVoid(p); break;
-            case RIL_REQUEST_SET_PREFERRED_NETWORK_TYPE: ret =  responseVoid(p); break;
-            case RIL_REQUEST_GET_PREFERRED_NETWORK_TYPE: ret =  responseInts(p); break;
-            case RIL_REQUEST_GET_NEIGHBORING_CELL_IDS: ret = responseCellList(p); break;
-            case RIL_REQUEST_SET_LOCATION_UPDATES: ret =  responseVoid(p); break;
-            case RIL_REQUEST_CDMA_SET_SUBSCRIPTION: ret =  responseVoid(p); break;
-            case RIL_REQUEST_CDMA_SET_ROAMING_PREFERENCE: ret =  responseVoid(p); break;
-            case RIL_REQUEST_CDMA_QUERY_ROAMING_PREFERENCE: ret =  responseInts(p); break;
-            case RIL_REQUEST_SET_TTY_MODE: ret =  responseVoid(p); break;
-            case RIL_REQUEST_QUERY_TTY_MODE: ret =  responseInts(p); break;
-            case RIL_REQUEST_CDMA_SET_PREFERRED_VOICE_PRIVACY_MODE: ret =  responseVoid(p); break;
-            case RIL_REQUEST_CDMA_QUERY_PREFERRED_VOICE_PRIVACY_MODE: ret =  responseInts(p); break;
-            case RIL_REQUEST_CDMA_FLASH: ret =  responseVoid(p); break;
-            case RIL_REQUEST_CDMA_BURST_DTMF: ret =  responseVoid(p); break;
-            case RIL_REQUEST_CDMA_SEND_SMS: ret =  responseSMS(p); break;
-            case RIL_REQUEST_CDMA_SMS_ACKNOWLEDGE: ret =  responseVoid(p); break;
-            case RIL_REQUEST_GSM_GET_BROADCAST_CONFIG: ret =  responseGmsBroadcastConfig(p); break;
-            case RIL_REQUEST_GSM_SET_BROADCAST_CONFIG: ret =  responseVoid(p); break;
-            case RIL_REQUEST_GSM_BROADCAST_ACTIVATION: ret =  responseVoid(p); break;
-            case RIL_REQUEST_CDMA_GET_BROADCAST_CONFIG: ret =  responseCdmaBroadcastConfig(p); break;
-            case RIL_REQUEST_CDMA_SET_BROADCAST_CONFIG: ret =  responseVoid(p); break;
-            case RIL_REQUEST_CDMA_BROADCAST_ACTIVATION: ret =  responseVoid(p); break;
-            case RIL_REQUEST_CDMA_VALIDATE_AND_WRITE_AKEY: ret =  responseVoid(p); break;
-            case RIL_REQUEST_CDMA_SUBSCRIPTION: ret =  responseStrings(p); break;
-            case RIL_REQUEST_CDMA_WRITE_SMS_TO_RUIM: ret =  responseInts(p); break;
-            case RIL_REQUEST_CDMA_DELETE_SMS_ON_RUIM: ret =  responseVoid(p); break;
-            case RIL_REQUEST_DEVICE_IDENTITY: ret =  responseStrings(p); break;
-            case RIL_REQUEST_GET_SMSC_ADDRESS: ret = responseString(p); break;
-            case RIL_REQUEST_SET_SMSC_ADDRESS: ret = responseVoid(p); break;
-            case RIL_REQUEST_EXIT_EMERGENCY_CALLBACK_MODE: ret = responseVoid(p); break;
-            case RIL_REQUEST_REPORT_SMS_MEMORY_STATUS: ret = responseVoid(p); break;
-            case RIL_REQUEST_REPORT_STK_SERVICE_IS_RUNNING: ret = responseVoid(p); break;
-            default:
-                throw new RuntimeException("Unrecognized solicited response: " + rr.mRequest);
-            //break;
-            }} catch (Throwable tr) {
+            try {
+                RILRequestRegistry.Entry info = sRequestRegistry.get(rr.mRequest);
+
+                RILRequestRegistry.ResponseParser parser =
+                        (info == null) ? null : info.mParser;
+
+                if (rr.mParser != null) {
+                    parser = rr.mParser;
+                }
+                if (parser == null) {
+                    throw new RuntimeException("Unrecognized solicited response: "
+                            + rr.mRequest);
+                }
+                ret = parser.parse(this, p);
+            } catch (Throwable tr) {
                 // Exceptions here usually mean invalid RIL responses
 
                 Log.w(LOG_TAG, rr.serialString() + "< "
                         + requestToString(rr.mRequest)
                         + " exception, possible invalid RIL response", tr);
 
-                if (rr.mResult != null) {
-                    AsyncResult.forMessage(rr.mResult, null, tr);
-                    rr.mResult.sendToTarget();
-                }
-                rr.release();
-                return;
+                rr.mResponseException = tr;
             }
         }
 
-        if (error != 0) {
-            rr.onError(error, ret);
+        RILRequestStats stats = getRequestStatsFor(rr.mRequest);
+        if (stats != null) {
+            // mWriteNanos is still 0 if the response beat RILSender back
+            // from the write
+            long roundTrip = (rr.mWriteNanos == 0) ? -1 : (readTime - rr.mWriteNanos) / 1000;
+
+            stats.recordResponse(roundTrip, (System.nanoTime() - parseStart) / 1000, error);
+        }
+
+        if (error == 0 && rr.mResponseException == null
+                && rr.mRequest == RIL_REQUEST_GPRS_REGISTRATION_STATE) {
+            mRadioTypeResolver.onDataRegistrationState((String[]) ret);
+        }
+
+        rr.mResponse = ret;
+        rr.mResponseError = error;
+        dispatch(EVENT_DISPATCH_SOLICITED, 0, readTime, rr);
+    }
+
+    /**
+     * Completes a request decoded by processSolicited. Runs on
+     * mDispatcher.
+     */
+    private void
+    deliverSolicited(RILRequest rr) {
+        Object ret = rr.mResponse;
+
+        if (rr.mResponseException != null) {
+            rr.sendResult(null, rr.mResponseException);
             rr.release();
             return;
         }
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "< " + requestToString(rr.mRequest)
-            + " " + retToString(rr.mRequest, ret));
+        if (rr.mResponseError != 0) {
+            rr.onError(rr.mResponseError, ret);
+            rr.release();
+            return;
+        }
 
-        if (rr.mResult != null) {
-            AsyncResult.forMessage(rr.mResult, ret, null);
-            rr.mResult.sendToTarget();
+        // Polled responses are only in mTrace
+        if (RILJ_LOGD && rr.mCoalescer == null) {
+            riljLog(rr.serialString() + "< " + requestToString(rr.mRequest)
+                + " " + retToString(rr.mRequest, ret));
         }
 
+        rr.sendResult(ret, null);
+
         rr.release();
     }
 
     private String
     retToString(int req, Object ret) {
         if (ret == null) return "";
-        switch (req) {
-            // Don't log these return values, for privacy's sake.
-            case RIL_REQUEST_GET_IMSI:
-            case RIL_REQUEST_GET_IMEI:
-            case RIL_REQUEST_GET_IMEISV:
-                return "";
+
+        // Don't log redacted return values, for privacy's sake.
+        RILRequestRegistry.Entry info = sRequestRegistry.get(req);
+        if (info != null && info.isRedacted()) {
+            return "";
         }
 
         StringBuilder sb;
@@ -2292,71 +4057,128 @@ public final class RIL extends BaseCommands implements CommandsInterface {
     }
 
     private void
-    processUnsolicited (Parcel p) {
+    processUnsolicited (RILParcelCursor p, long readTime) {
         int response;
         Object ret;
+        RILRequestRegistry.Entry info;
 
         response = p.readInt();
+        mTrace.record(RILTrace.DIR_UNSOL, 0, response, 0, p.dataAvail());
 
-        try {switch(response) {
-/*
- cat libs/telephony/ril_unsol_commands.h \
- | egrep "^ *{RIL_" \
- | sed -re 's/\{([^,]+),[^,]+,([^}]+).+/case \1: \2(rr, p); break;/'
-*/
-
-            case RIL_UNSOL_RESPONSE_RADIO_STATE_CHANGED: ret =  responseVoid(p); break;
-            case RIL_UNSOL_RESPONSE_CALL_STATE_CHANGED: ret =  responseVoid(p); break;
-            case RIL_UNSOL_RESPONSE_NETWORK_STATE_CHANGED: ret =  responseVoid(p); break;
-            case RIL_UNSOL_RESPONSE_NEW_SMS: ret =  responseString(p); break;
-            case RIL_UNSOL_RESPONSE_NEW_SMS_STATUS_REPORT: ret =  responseString(p); break;
-            case RIL_UNSOL_RESPONSE_NEW_SMS_ON_SIM: ret =  responseInts(p); break;
-            case RIL_UNSOL_ON_USSD: ret =  responseStrings(p); break;
-            case RIL_UNSOL_NITZ_TIME_RECEIVED: ret =  responseString(p); break;
-            case RIL_UNSOL_SIGNAL_STRENGTH: ret = responseSignalStrength(p); break;
-            case RIL_UNSOL_DATA_CALL_LIST_CHANGED: ret = responseDataCallList(p);break;
-            case RIL_UNSOL_SUPP_SVC_NOTIFICATION: ret = responseSuppServiceNotification(p); break;
-            case RIL_UNSOL_STK_SESSION_END: ret = responseVoid(p); break;
-            case RIL_UNSOL_STK_PROACTIVE_COMMAND: ret = responseString(p); break;
-            case RIL_UNSOL_STK_EVENT_NOTIFY: ret = responseString(p); break;
-            case RIL_UNSOL_STK_CALL_SETUP: ret = responseInts(p); break;
-            case RIL_UNSOL_SIM_SMS_STORAGE_FULL: ret =  responseVoid(p); break;
-            case RIL_UNSOL_SIM_REFRESH: ret =  responseInts(p); break;
-            case RIL_UNSOL_CALL_RING: ret =  responseCallRing(p); break;
-            case RIL_UNSOL_RESTRICTED_STATE_CHANGED: ret = responseInts(p); break;
-            case RIL_UNSOL_RESPONSE_SIM_STATUS_CHANGED:  ret =  responseVoid(p); break;
-            case RIL_UNSOL_RESPONSE_CDMA_NEW_SMS:  ret =  responseCdmaSms(p); break;
-            case RIL_UNSOL_RESPONSE_NEW_BROADCAST_SMS:  ret =  responseString(p); break;
-            case RIL_UNSOL_CDMA_RUIM_SMS_STORAGE_FULL:  ret =  responseVoid(p); break;
-            case RIL_UNSOL_ENTER_EMERGENCY_CALLBACK_MODE: ret = responseVoid(p); break;
-            case RIL_UNSOL_CDMA_CALL_WAITING: ret = responseCdmaCallWaiting(p); break;
-            case RIL_UNSOL_CDMA_OTA_PROVISION_STATUS: ret = responseInts(p); break;
-            case RIL_UNSOL_CDMA_INFO_REC: ret = responseCdmaInformationRecord(p); break;
-            case RIL_UNSOL_OEM_HOOK_RAW: ret = responseRaw(p); break;
-            case RIL_UNSOL_RINGBACK_TONE: ret = responseInts(p); break;
-            case RIL_UNSOL_RESEND_INCALL_MUTE: ret = responseVoid(p); break;
+        try {
+            info = sUnsolRegistry.get(response);
 
-            default:
+            if (info == null || info.mParser == null) {
                 throw new RuntimeException("Unrecognized unsol response: " + response);
-            //break; (implied)
-        }} catch (Throwable tr) {
+            }
+            ret = info.mParser.parse(this, p);
+        } catch (Throwable tr) {
             Log.e(LOG_TAG, "Exception processing unsol response: " + response +
                 "Exception:" + tr.toString());
             return;
         }
 
+        if (mReplayOnly) {
+            // Captured events must not reach anyone
+            return;
+        }
+
+        // Whatever still needs the message, or must happen before the
+        // next message is read, is done here on the receiver thread
         switch(response) {
             case RIL_UNSOL_RESPONSE_RADIO_STATE_CHANGED:
                 /* has bonus radio state int */
-                setRadioStateFromRILInt(p.readInt());
+                ret = Integer.valueOf(p.readInt());
+            break;
+            case RIL_UNSOL_RESPONSE_CALL_STATE_CHANGED:
+                mCoalescer.invalidate(RIL_REQUEST_GET_CURRENT_CALLS);
+            break;
+            case RIL_UNSOL_RESPONSE_NETWORK_STATE_CHANGED:
+                mCoalescer.invalidate(RIL_REQUEST_REGISTRATION_STATE);
+                mCoalescer.invalidate(RIL_REQUEST_GPRS_REGISTRATION_STATE);
+                mCoalescer.invalidate(RIL_REQUEST_OPERATOR);
+                mRadioTypeResolver.invalidate();
+            break;
+            case RIL_UNSOL_RESPONSE_NEW_SMS:
+                if (RILJ_LOGD) unsljLog(response);
+
+                // Decoded by mSmsDecoder so a burst of SMS doesn't hold
+                // up the receiver; mDispatcher still gets it in order and
+                // decodes it itself if mSmsDecoder hasn't yet
+                long start = System.nanoTime();
+                PendingSms pending = new PendingSms((String) ret);
+                mSmsDecoder.obtainMessage(EVENT_DECODE_SMS, pending).sendToTarget();
+                mSmsReceiverNanos += System.nanoTime() - start;
+
+                dispatch(EVENT_DISPATCH_UNSOLICITED, response, readTime, pending);
+            return;
+            case RIL_UNSOL_NITZ_TIME_RECEIVED:
+                // has bonus long containing milliseconds since boot that the NITZ
+                // time was received
+                long nitzReceiveTime = p.readLong();
+
+                Object[] result = new Object[2];
+
+                result[0] = ret;
+                result[1] = Long.valueOf(nitzReceiveTime);
+                ret = result;
+            break;
+            case RIL_UNSOL_SIGNAL_STRENGTH:
+                if (mSignalStrengthRegistrant == null && getEventPublisher(info) == null) {
+                    return;
+                }
+
+                if (mSignalStrengthValid && mSignalStrength.equals(mLastSignalStrength)) {
+                    mSignalStrengthUnchanged++;
+                    return;
+                }
+
+                mLastSignalStrength.set(mSignalStrength);
+                mSignalStrengthValid = true;
+                ret = mSignalStrength.copy();
+            break;
+        }
+
+        RILEventPublisher publisher = getEventPublisher(info);
+        if (publisher != null) {
+            publisher.publish(ret);
+        }
+
+        dispatch(EVENT_DISPATCH_UNSOLICITED, response, readTime, ret);
+    }
+
+    /**
+     * @return the publisher of the unsolicited response described by info
+     *         if it has subscribers, else null
+     */
+    private RILEventPublisher
+    getEventPublisher(RILRequestRegistry.Entry info) {
+        RILEventPublisher[] publishers = mEventPublishers;
+        int slot = info.mMetricSlot;
+
+        if (slot >= publishers.length || publishers[slot] == null
+                || !publishers[slot].hasSubscribers()) {
+            return null;
+        }
+        return publishers[slot];
+    }
+
+    /**
+     * Notifies the listeners of an unsolicited response decoded by
+     * processUnsolicited. Runs on mDispatcher.
+     */
+    private void
+    dispatchUnsolicited(int response, Object ret) {
+        switch(response) {
+            case RIL_UNSOL_RESPONSE_RADIO_STATE_CHANGED:
+                setRadioStateFromRILInt(((Integer) ret).intValue());
 
                 if (RILJ_LOGD) unsljLogMore(response, mState.toString());
             break;
             case RIL_UNSOL_RESPONSE_CALL_STATE_CHANGED:
                 if (RILJ_LOGD) unsljLog(response);
 
-                mCallStateRegistrants
-                    .notifyRegistrants(new AsyncResult(null, null, null));
+                onCallStateChanged();
             break;
             case RIL_UNSOL_RESPONSE_NETWORK_STATE_CHANGED:
                 if (RILJ_LOGD) unsljLog(response);
@@ -2364,23 +4186,15 @@ public final class RIL extends BaseCommands implements CommandsInterface {
                 mNetworkStateRegistrants
                     .notifyRegistrants(new AsyncResult(null, null, null));
             break;
-            case RIL_UNSOL_RESPONSE_NEW_SMS: {
-                if (RILJ_LOGD) unsljLog(response);
-
-                // FIXME this should move up a layer
-                String a[] = new String[2];
-
-                a[1] = (String)ret;
+            case RIL_UNSOL_RESPONSE_NEW_SMS:
+                // Normally already decoded by mSmsDecoder
+                SmsMessage gsmSms = ((PendingSms) ret).get();
 
-                SmsMessage sms;
-
-                sms = SmsMessage.newFromCMT(a);
                 if (mSMSRegistrant != null) {
                     mSMSRegistrant
-                        .notifyRegistrant(new AsyncResult(null, sms, null));
+                        .notifyRegistrant(new AsyncResult(null, gsmSms, null));
                 }
             break;
-            }
             case RIL_UNSOL_RESPONSE_NEW_SMS_STATUS_REPORT:
                 if (RILJ_LOGD) unsljLogRet(response, ret);
 
@@ -2419,16 +4233,9 @@ public final class RIL extends BaseCommands implements CommandsInterface {
                 }
             break;
             case RIL_UNSOL_NITZ_TIME_RECEIVED:
-                if (RILJ_LOGD) unsljLogRet(response, ret);
+                Object[] result = (Object[]) ret;
 
-                // has bonus long containing milliseconds since boot that the NITZ
-                // time was received
-                long nitzReceiveTime = p.readLong();
-
-                Object[] result = new Object[2];
-
-                result[0] = ret;
-                result[1] = Long.valueOf(nitzReceiveTime);
+                if (RILJ_LOGD) unsljLogRet(response, result[0]);
 
                 if (mNITZTimeRegistrant != null) {
 
@@ -2446,8 +4253,8 @@ public final class RIL extends BaseCommands implements CommandsInterface {
                 if (RILJ_LOGV) unsljLogvRet(response, ret);
 
                 if (mSignalStrengthRegistrant != null) {
-                    mSignalStrengthRegistrant.notifyRegistrant(
-                                        new AsyncResult (null, ret, null));
+                    mSignalStrengthRegistrant.notifyRegistrant(new AsyncResult (null,
+                            ((RILSignalStrength) ret).toIntArray(), null));
                 }
             break;
             case RIL_UNSOL_DATA_CALL_LIST_CHANGED:
@@ -2640,7 +4447,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
     }
 
     private Object
-    responseInts(Parcel p) {
+    responseInts(RILParcelCursor p) {
         int numInts;
         int response[];
 
@@ -2657,12 +4464,12 @@ public final class RIL extends BaseCommands implements CommandsInterface {
 
 
     private Object
-    responseVoid(Parcel p) {
+    responseVoid(RILParcelCursor p) {
         return null;
     }
 
     private Object
-    responseCallForward(Parcel p) {
+    responseCallForward(RILParcelCursor p) {
         int numInfos;
         CallForwardInfo infos[];
 
@@ -2685,7 +4492,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
     }
 
     private Object
-    responseSuppServiceNotification(Parcel p) {
+    responseSuppServiceNotification(RILParcelCursor p) {
         SuppServiceNotification notification = new SuppServiceNotification();
 
         notification.notificationType = p.readInt();
@@ -2698,15 +4505,21 @@ public final class RIL extends BaseCommands implements CommandsInterface {
     }
 
     private Object
-    responseCdmaSms(Parcel p) {
+    responseCdmaSms(RILParcelCursor p) {
         SmsMessage sms;
-        sms = SmsMessage.newFromParcel(p);
+        Parcel parcel = p.obtainParcel();
+
+        try {
+            sms = SmsMessage.newFromParcel(parcel);
+        } finally {
+            p.recycleParcel(parcel);
+        }
 
         return sms;
     }
 
     private Object
-    responseString(Parcel p) {
+    responseString(RILParcelCursor p) {
         String response;
 
         response = p.readString();
@@ -2715,7 +4528,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
     }
 
     private Object
-    responseStrings(Parcel p) {
+    responseStrings(RILParcelCursor p) {
         int num;
         String response[];
 
@@ -2734,7 +4547,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
     }
 
     private Object
-    responseRaw(Parcel p) {
+    responseRaw(RILParcelCursor p) {
         int num;
         byte response[];
 
@@ -2744,7 +4557,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
     }
 
     private Object
-    responseSMS(Parcel p) {
+    responseSMS(RILParcelCursor p) {
         int messageRef, errorCode;
         String ackPDU;
 
@@ -2759,7 +4572,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
 
 
     private Object
-     responseICC_IO(Parcel p) {
+     responseICC_IO(RILParcelCursor p) {
         int sw1, sw2;
         byte data[] = null;
         Message ret;
@@ -2778,7 +4591,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
     }
 
     private Object
-    responseIccCardStatus(Parcel p) {
+    responseIccCardStatus(RILParcelCursor p) {
         IccCardApplication ca;
 
         IccCardStatus status = new IccCardStatus();
@@ -2810,61 +4623,67 @@ public final class RIL extends BaseCommands implements CommandsInterface {
     }
 
     private Object
-    responseCallList(Parcel p) {
-        int num;
-        int voiceSettings;
-        ArrayList<DriverCall> response;
-        DriverCall dc;
+    responseCallList(RILParcelCursor p) {
+        return responseCallList(p, mCallListDecoder);
+    }
 
-        num = p.readInt();
-        response = new ArrayList<DriverCall>(num);
+    private Object
+    responseCallListAsync(RILParcelCursor p) {
+        return responseCallList(p, mAsyncCallListDecoder);
+    }
 
-        for (int i = 0 ; i < num ; i++) {
-            dc = new DriverCall();
-
-            dc.state = DriverCall.stateFromCLCC(p.readInt());
-            dc.index = p.readInt();
-            dc.TOA = p.readInt();
-            dc.isMpty = (0 != p.readInt());
-            dc.isMT = (0 != p.readInt());
-            dc.als = p.readInt();
-            voiceSettings = p.readInt();
-            dc.isVoice = (0 == voiceSettings) ? false : true;
-            dc.isVoicePrivacy = (0 != p.readInt());
-            dc.number = p.readString();
-            int np = p.readInt();
-            dc.numberPresentation = DriverCall.presentationFromCLIP(np);
-            dc.name = p.readString();
-            dc.namePresentation = p.readInt();
-            int uusInfoPresent = p.readInt();
-            if (uusInfoPresent == 1) {
-                // TODO: Copy the data to dc to forward to the apps.
-                p.readInt();
-                p.readInt();
-                p.createByteArray();
-            }
-
-            // Make sure there's a leading + on addresses with a TOA of 145
-            dc.number = PhoneNumberUtils.stringFromStringAndTOA(dc.number, dc.TOA);
-
-            response.add(dc);
-
-            if (dc.isVoicePrivacy) {
-                mVoicePrivacyOnRegistrants.notifyRegistrants();
-                Log.d(LOG_TAG, "InCall VoicePrivacy is enabled");
-            } else {
-                mVoicePrivacyOffRegistrants.notifyRegistrants();
-                Log.d(LOG_TAG, "InCall VoicePrivacy is disabled");
-            }
+    /**
+     * @param decoder the baseline to decode against, which is advanced
+     */
+    private Object
+    responseCallList(RILParcelCursor p, RILCallListDecoder decoder) {
+        DriverCallList response = decoder.decode(p);
+        boolean voicePrivacy = false;
+
+        for (int i = 0, s = response.size(); i < s; i++) {
+            voicePrivacy |= response.get(i).isVoicePrivacy;
         }
 
-        Collections.sort(response);
+        if (response.isEmpty()) {
+            // Report the state of the next call, whatever it is
+            mVoicePrivacyState = VOICE_PRIVACY_UNKNOWN;
+        } else {
+            updateVoicePrivacy(voicePrivacy);
+        }
 
         return response;
     }
 
+    /**
+     * Has voice privacy listeners notified when the state of the
+     * current calls differs from what was last reported.
+     */
+    private void
+    updateVoicePrivacy(boolean enabled) {
+        int state = enabled ? VOICE_PRIVACY_ON : VOICE_PRIVACY_OFF;
+
+        if (state == mVoicePrivacyState) {
+            return;
+        }
+        mVoicePrivacyState = state;
+
+        // Ahead of the call list that reported it
+        dispatch(EVENT_DISPATCH_VOICE_PRIVACY, enabled ? 1 : 0, System.nanoTime(), null);
+    }
+
+    private void
+    notifyVoicePrivacy(boolean enabled) {
+        if (enabled) {
+            mVoicePrivacyOnRegistrants.notifyRegistrants();
+            Log.d(LOG_TAG, "InCall VoicePrivacy is enabled");
+        } else {
+            mVoicePrivacyOffRegistrants.notifyRegistrants();
+            Log.d(LOG_TAG, "InCall VoicePrivacy is disabled");
+        }
+    }
+
     private Object
-    responseDataCallList(Parcel p) {
+    responseDataCallList(RILParcelCursor p) {
         int num;
         ArrayList<DataCallState> response;
 
@@ -2887,7 +4706,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
     }
 
     private Object
-    responseNetworkInfos(Parcel p) {
+    responseNetworkInfos(RILParcelCursor p) {
         String strings[] = (String [])responseStrings(p);
         ArrayList<NetworkInfo> ret;
 
@@ -2912,7 +4731,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
     }
 
    private Object
-   responseCellList(Parcel p) {
+   responseCellList(RILParcelCursor p) {
        int num, rssi;
        String location;
        ArrayList<NeighboringCellInfo> response;
@@ -2922,24 +4741,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
        response = new ArrayList<NeighboringCellInfo>();
 
        // Determine the radio access type
-       String radioString = SystemProperties.get(
-               TelephonyProperties.PROPERTY_DATA_NETWORK_TYPE, "unknown");
-       int radioType;
-       if (radioString.equals("GPRS")) {
-           radioType = NETWORK_TYPE_GPRS;
-       } else if (radioString.equals("EDGE")) {
-           radioType = NETWORK_TYPE_EDGE;
-       } else if (radioString.equals("UMTS")) {
-           radioType = NETWORK_TYPE_UMTS;
-       } else if (radioString.equals("HSDPA")) {
-           radioType = NETWORK_TYPE_HSDPA;
-       } else if (radioString.equals("HSUPA")) {
-           radioType = NETWORK_TYPE_HSUPA;
-       } else if (radioString.equals("HSPA")) {
-           radioType = NETWORK_TYPE_HSPA;
-       } else {
-           radioType = NETWORK_TYPE_UNKNOWN;
-       }
+       int radioType = mRadioTypeResolver.getRadioType();
 
        // Interpret the location based on radio access type
        if (radioType != NETWORK_TYPE_UNKNOWN) {
@@ -2953,7 +4755,30 @@ public final class RIL extends BaseCommands implements CommandsInterface {
        return response;
     }
 
-    private Object responseGmsBroadcastConfig(Parcel p) {
+    private Object
+    responseCellListCompact(RILParcelCursor p) {
+        int num = p.readInt();
+        int radioType = mRadioTypeResolver.getRadioType();
+        NeighboringCellList response;
+
+        // Every cell takes at least 8 bytes, so a larger count is garbage
+        if (num < 0 || num > p.dataAvail() / 8) {
+            num = 0;
+        }
+
+        if (radioType == NETWORK_TYPE_UNKNOWN) {
+            return new NeighboringCellList(radioType, 0);
+        }
+
+        response = new NeighboringCellList(radioType, num);
+        for (int i = 0 ; i < num ; i++) {
+            int rssi = p.readInt();
+            response.add(rssi, p.readString());
+        }
+        return response;
+    }
+
+    private Object responseGmsBroadcastConfig(RILParcelCursor p) {
         int num;
         ArrayList<SmsBroadcastConfigInfo> response;
         SmsBroadcastConfigInfo info;
@@ -2976,7 +4801,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
     }
 
     private Object
-    responseCdmaBroadcastConfig(Parcel p) {
+    responseCdmaBroadcastConfig(RILParcelCursor p) {
         int numServiceCategories;
         int response[];
 
@@ -3015,21 +4840,25 @@ public final class RIL extends BaseCommands implements CommandsInterface {
     }
 
     private Object
-    responseSignalStrength(Parcel p) {
-        int numInts = 7;
-        int response[];
+    responseSignalStrength(RILParcelCursor p) {
+        RILSignalStrength s = new RILSignalStrength();
 
-        /* TODO: Add SignalStrength class to match RIL_SignalStrength */
-        response = new int[numInts];
-        for (int i = 0 ; i < numInts ; i++) {
-            response[i] = p.readInt();
-        }
+        s.readFrom(p);
+        return s.toIntArray();
+    }
 
-        return response;
+    /**
+     * Decodes RIL_UNSOL_SIGNAL_STRENGTH into mSignalStrength, which is
+     * reused for every reading; see processUnsolicited.
+     */
+    private Object
+    responseSignalStrengthUnsol(RILParcelCursor p) {
+        mSignalStrength.readFrom(p);
+        return mSignalStrength;
     }
 
     private ArrayList<CdmaInformationRecords>
-    responseCdmaInformationRecord(Parcel p) {
+    responseCdmaInformationRecord(RILParcelCursor p) {
         int numberOfInfoRecs;
         ArrayList<CdmaInformationRecords> response;
 
@@ -3040,16 +4869,21 @@ public final class RIL extends BaseCommands implements CommandsInterface {
         numberOfInfoRecs = p.readInt();
         response = new ArrayList<CdmaInformationRecords>(numberOfInfoRecs);
 
-        for (int i = 0; i < numberOfInfoRecs; i++) {
-            CdmaInformationRecords InfoRec = new CdmaInformationRecords(p);
-            response.add(InfoRec);
+        Parcel parcel = p.obtainParcel();
+        try {
+            for (int i = 0; i < numberOfInfoRecs; i++) {
+                CdmaInformationRecords InfoRec = new CdmaInformationRecords(parcel);
+                response.add(InfoRec);
+            }
+        } finally {
+            p.recycleParcel(parcel);
         }
 
         return response;
     }
 
     private Object
-    responseCdmaCallWaiting(Parcel p) {
+    responseCdmaCallWaiting(RILParcelCursor p) {
         CdmaCallWaitingNotification notification = new CdmaCallWaitingNotification();
 
         notification.number = p.readString();
@@ -3065,7 +4899,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
     }
 
     private Object
-    responseCallRing(Parcel p){
+    responseCallRing(RILParcelCursor p){
         char response[] = new char[4];
 
         response[0] = (char) p.readInt();    // isPresent
@@ -3124,163 +4958,368 @@ public final class RIL extends BaseCommands implements CommandsInterface {
         }
     }
 
+    //***** Request and response registries
+
+    /*
+     * One parser per response* method. They are shared by every RIL
+     * instance and take the instance to decode with.
+     */
+    private static final RILRequestRegistry.ResponseParser PARSE_CALL_FORWARD =
+            new RILRequestRegistry.ResponseParser() {
+        public Object parse(RIL ril, RILParcelCursor p) { return ril.responseCallForward(p); }
+    };
+    private static final RILRequestRegistry.ResponseParser PARSE_CALL_LIST =
+            new RILRequestRegistry.ResponseParser() {
+        public Object parse(RIL ril, RILParcelCursor p) { return ril.responseCallList(p); }
+    };
+    private static final RILRequestRegistry.ResponseParser PARSE_CALL_LIST_ASYNC =
+            new RILRequestRegistry.ResponseParser() {
+        public Object parse(RIL ril, RILParcelCursor p) { return ril.responseCallListAsync(p); }
+    };
+    private static final RILRequestRegistry.ResponseParser PARSE_CALL_RING =
+            new RILRequestRegistry.ResponseParser() {
+        public Object parse(RIL ril, RILParcelCursor p) { return ril.responseCallRing(p); }
+    };
+    private static final RILRequestRegistry.ResponseParser PARSE_CDMA_BROADCAST_CONFIG =
+            new RILRequestRegistry.ResponseParser() {
+        public Object parse(RIL ril, RILParcelCursor p) { return ril.responseCdmaBroadcastConfig(p); }
+    };
+    private static final RILRequestRegistry.ResponseParser PARSE_CDMA_CALL_WAITING =
+            new RILRequestRegistry.ResponseParser() {
+        public Object parse(RIL ril, RILParcelCursor p) { return ril.responseCdmaCallWaiting(p); }
+    };
+    private static final RILRequestRegistry.ResponseParser PARSE_CDMA_INFORMATION_RECORD =
+            new RILRequestRegistry.ResponseParser() {
+        public Object parse(RIL ril, RILParcelCursor p) { return ril.responseCdmaInformationRecord(p); }
+    };
+    private static final RILRequestRegistry.ResponseParser PARSE_CDMA_SMS =
+            new RILRequestRegistry.ResponseParser() {
+        public Object parse(RIL ril, RILParcelCursor p) { return ril.responseCdmaSms(p); }
+    };
+    private static final RILRequestRegistry.ResponseParser PARSE_CELL_LIST =
+            new RILRequestRegistry.ResponseParser() {
+        public Object parse(RIL ril, RILParcelCursor p) { return ril.responseCellList(p); }
+    };
+    private static final RILRequestRegistry.ResponseParser PARSE_DATA_CALL_LIST =
+            new RILRequestRegistry.ResponseParser() {
+        public Object parse(RIL ril, RILParcelCursor p) { return ril.responseDataCallList(p); }
+    };
+    private static final RILRequestRegistry.ResponseParser PARSE_GMS_BROADCAST_CONFIG =
+            new RILRequestRegistry.ResponseParser() {
+        public Object parse(RIL ril, RILParcelCursor p) { return ril.responseGmsBroadcastConfig(p); }
+    };
+    private static final RILRequestRegistry.ResponseParser PARSE_ICC_IO =
+            new RILRequestRegistry.ResponseParser() {
+        public Object parse(RIL ril, RILParcelCursor p) { return ril.responseICC_IO(p); }
+    };
+    private static final RILRequestRegistry.ResponseParser PARSE_ICC_CARD_STATUS =
+            new RILRequestRegistry.ResponseParser() {
+        public Object parse(RIL ril, RILParcelCursor p) { return ril.responseIccCardStatus(p); }
+    };
+    private static final RILRequestRegistry.ResponseParser PARSE_INTS =
+            new RILRequestRegistry.ResponseParser() {
+        public Object parse(RIL ril, RILParcelCursor p) { return ril.responseInts(p); }
+    };
+    private static final RILRequestRegistry.ResponseParser PARSE_NETWORK_INFOS =
+            new RILRequestRegistry.ResponseParser() {
+        public Object parse(RIL ril, RILParcelCursor p) { return ril.responseNetworkInfos(p); }
+    };
+    private static final RILRequestRegistry.ResponseParser PARSE_RAW =
+            new RILRequestRegistry.ResponseParser() {
+        public Object parse(RIL ril, RILParcelCursor p) { return ril.responseRaw(p); }
+    };
+    private static final RILRequestRegistry.ResponseParser PARSE_SMS =
+            new RILRequestRegistry.ResponseParser() {
+        public Object parse(RIL ril, RILParcelCursor p) { return ril.responseSMS(p); }
+    };
+    private static final RILRequestRegistry.ResponseParser PARSE_SIGNAL_STRENGTH =
+            new RILRequestRegistry.ResponseParser() {
+        public Object parse(RIL ril, RILParcelCursor p) { return ril.responseSignalStrength(p); }
+    };
+    private static final RILRequestRegistry.ResponseParser PARSE_SIGNAL_STRENGTH_UNSOL =
+            new RILRequestRegistry.ResponseParser() {
+        public Object parse(RIL ril, RILParcelCursor p) {
+            return ril.responseSignalStrengthUnsol(p);
+        }
+    };
+    private static final RILRequestRegistry.ResponseParser PARSE_CELL_LIST_COMPACT =
+            new RILRequestRegistry.ResponseParser() {
+        public Object parse(RIL ril, RILParcelCursor p) {
+            return ril.responseCellListCompact(p);
+        }
+    };
+    private static final RILRequestRegistry.ResponseParser PARSE_STRING =
+            new RILRequestRegistry.ResponseParser() {
+        public Object parse(RIL ril, RILParcelCursor p) { return ril.responseString(p); }
+    };
+    private static final RILRequestRegistry.ResponseParser PARSE_STRINGS =
+            new RILRequestRegistry.ResponseParser() {
+        public Object parse(RIL ril, RILParcelCursor p) { return ril.responseStrings(p); }
+    };
+    private static final RILRequestRegistry.ResponseParser PARSE_SUPP_SERVICE_NOTIFICATION =
+            new RILRequestRegistry.ResponseParser() {
+        public Object parse(RIL ril, RILParcelCursor p) { return ril.responseSuppServiceNotification(p); }
+    };
+    private static final RILRequestRegistry.ResponseParser PARSE_VOID =
+            new RILRequestRegistry.ResponseParser() {
+        public Object parse(RIL ril, RILParcelCursor p) { return ril.responseVoid(p); }
+    };
+
+    static final RILRequestRegistry sRequestRegistry =
+            new RILRequestRegistry(0, "<unknown request>");
+    static final RILRequestRegistry sUnsolRegistry =
+            new RILRequestRegistry(RIL_UNSOL_RESPONSE_BASE, "<unknown reponse>");
+
+    static {
+        // Parsers follow the response functions in libs/telephony/ril_commands.h
+        sRequestRegistry.register(RIL_REQUEST_GET_SIM_STATUS, "GET_SIM_STATUS",
+                PARSE_ICC_CARD_STATUS);
+        sRequestRegistry.register(RIL_REQUEST_ENTER_SIM_PIN, "ENTER_SIM_PIN", PARSE_INTS);
+        sRequestRegistry.register(RIL_REQUEST_ENTER_SIM_PUK, "ENTER_SIM_PUK", PARSE_INTS);
+        sRequestRegistry.register(RIL_REQUEST_ENTER_SIM_PIN2, "ENTER_SIM_PIN2", PARSE_INTS);
+        sRequestRegistry.register(RIL_REQUEST_ENTER_SIM_PUK2, "ENTER_SIM_PUK2", PARSE_INTS);
+        sRequestRegistry.register(RIL_REQUEST_CHANGE_SIM_PIN, "CHANGE_SIM_PIN", PARSE_INTS);
+        sRequestRegistry.register(RIL_REQUEST_CHANGE_SIM_PIN2, "CHANGE_SIM_PIN2", PARSE_INTS);
+        sRequestRegistry.register(RIL_REQUEST_ENTER_NETWORK_DEPERSONALIZATION, "ENTER_NETWORK_DEPERSONALIZATION",
+                PARSE_INTS);
+        sRequestRegistry.register(RIL_REQUEST_GET_CURRENT_CALLS, "GET_CURRENT_CALLS",
+                PARSE_CALL_LIST);
+        sRequestRegistry.register(RIL_REQUEST_DIAL, "DIAL", PARSE_VOID);
+        sRequestRegistry.register(RIL_REQUEST_GET_IMSI, "GET_IMSI", PARSE_STRING,
+                RILRequestRegistry.LOG_REDACTED);
+        sRequestRegistry.register(RIL_REQUEST_HANGUP, "HANGUP", PARSE_VOID);
+        sRequestRegistry.register(RIL_REQUEST_HANGUP_WAITING_OR_BACKGROUND, "HANGUP_WAITING_OR_BACKGROUND",
+                PARSE_VOID);
+        sRequestRegistry.register(RIL_REQUEST_HANGUP_FOREGROUND_RESUME_BACKGROUND, "HANGUP_FOREGROUND_RESUME_BACKGROUND",
+                PARSE_VOID);
+        sRequestRegistry.register(RIL_REQUEST_SWITCH_WAITING_OR_HOLDING_AND_ACTIVE, "REQUEST_SWITCH_WAITING_OR_HOLDING_AND_ACTIVE",
+                PARSE_VOID);
+        sRequestRegistry.register(RIL_REQUEST_CONFERENCE, "CONFERENCE", PARSE_VOID);
+        sRequestRegistry.register(RIL_REQUEST_UDUB, "UDUB", PARSE_VOID);
+        sRequestRegistry.register(RIL_REQUEST_LAST_CALL_FAIL_CAUSE, "LAST_CALL_FAIL_CAUSE",
+                PARSE_INTS);
+        sRequestRegistry.register(RIL_REQUEST_SIGNAL_STRENGTH, "SIGNAL_STRENGTH",
+                PARSE_SIGNAL_STRENGTH);
+        sRequestRegistry.register(RIL_REQUEST_REGISTRATION_STATE, "REGISTRATION_STATE",
+                PARSE_STRINGS);
+        sRequestRegistry.register(RIL_REQUEST_GPRS_REGISTRATION_STATE, "GPRS_REGISTRATION_STATE",
+                PARSE_STRINGS);
+        sRequestRegistry.register(RIL_REQUEST_OPERATOR, "OPERATOR", PARSE_STRINGS);
+        sRequestRegistry.register(RIL_REQUEST_RADIO_POWER, "RADIO_POWER", PARSE_VOID);
+        sRequestRegistry.register(RIL_REQUEST_DTMF, "DTMF", PARSE_VOID);
+        sRequestRegistry.register(RIL_REQUEST_SEND_SMS, "SEND_SMS", PARSE_SMS);
+        sRequestRegistry.register(RIL_REQUEST_SEND_SMS_EXPECT_MORE, "SEND_SMS_EXPECT_MORE",
+                PARSE_SMS);
+        sRequestRegistry.register(RIL_REQUEST_SETUP_DATA_CALL, "SETUP_DATA_CALL", PARSE_STRINGS);
+        sRequestRegistry.register(RIL_REQUEST_SIM_IO, "SIM_IO", PARSE_ICC_IO);
+        sRequestRegistry.register(RIL_REQUEST_SEND_USSD, "SEND_USSD", PARSE_VOID);
+        sRequestRegistry.register(RIL_REQUEST_CANCEL_USSD, "CANCEL_USSD", PARSE_VOID);
+        sRequestRegistry.register(RIL_REQUEST_GET_CLIR, "GET_CLIR", PARSE_INTS);
+        sRequestRegistry.register(RIL_REQUEST_SET_CLIR, "SET_CLIR", PARSE_VOID);
+        sRequestRegistry.register(RIL_REQUEST_QUERY_CALL_FORWARD_STATUS, "QUERY_CALL_FORWARD_STATUS",
+                PARSE_CALL_FORWARD);
+        sRequestRegistry.register(RIL_REQUEST_SET_CALL_FORWARD, "SET_CALL_FORWARD", PARSE_VOID);
+        sRequestRegistry.register(RIL_REQUEST_QUERY_CALL_WAITING, "QUERY_CALL_WAITING", PARSE_INTS);
+        sRequestRegistry.register(RIL_REQUEST_SET_CALL_WAITING, "SET_CALL_WAITING", PARSE_VOID);
+        sRequestRegistry.register(RIL_REQUEST_SMS_ACKNOWLEDGE, "SMS_ACKNOWLEDGE", PARSE_VOID);
+        sRequestRegistry.register(RIL_REQUEST_GET_IMEI, "GET_IMEI", PARSE_STRING,
+                RILRequestRegistry.LOG_REDACTED);
+        sRequestRegistry.register(RIL_REQUEST_GET_IMEISV, "GET_IMEISV", PARSE_STRING,
+                RILRequestRegistry.LOG_REDACTED);
+        sRequestRegistry.register(RIL_REQUEST_ANSWER, "ANSWER", PARSE_VOID);
+        sRequestRegistry.register(RIL_REQUEST_DEACTIVATE_DATA_CALL, "DEACTIVATE_DATA_CALL",
+                PARSE_VOID);
+        sRequestRegistry.register(RIL_REQUEST_QUERY_FACILITY_LOCK, "QUERY_FACILITY_LOCK",
+                PARSE_INTS);
+        sRequestRegistry.register(RIL_REQUEST_SET_FACILITY_LOCK, "SET_FACILITY_LOCK", PARSE_INTS);
+        sRequestRegistry.register(RIL_REQUEST_CHANGE_BARRING_PASSWORD, "CHANGE_BARRING_PASSWORD",
+                PARSE_VOID);
+        sRequestRegistry.register(RIL_REQUEST_QUERY_NETWORK_SELECTION_MODE, "QUERY_NETWORK_SELECTION_MODE",
+                PARSE_INTS);
+        sRequestRegistry.register(RIL_REQUEST_SET_NETWORK_SELECTION_AUTOMATIC, "SET_NETWORK_SELECTION_AUTOMATIC",
+                PARSE_VOID);
+        sRequestRegistry.register(RIL_REQUEST_SET_NETWORK_SELECTION_MANUAL, "SET_NETWORK_SELECTION_MANUAL",
+                PARSE_VOID);
+        sRequestRegistry.register(RIL_REQUEST_QUERY_AVAILABLE_NETWORKS, "QUERY_AVAILABLE_NETWORKS ",
+                PARSE_NETWORK_INFOS);
+        sRequestRegistry.register(RIL_REQUEST_DTMF_START, "DTMF_START", PARSE_VOID);
+        sRequestRegistry.register(RIL_REQUEST_DTMF_STOP, "DTMF_STOP", PARSE_VOID);
+        sRequestRegistry.register(RIL_REQUEST_BASEBAND_VERSION, "BASEBAND_VERSION", PARSE_STRING);
+        sRequestRegistry.register(RIL_REQUEST_SEPARATE_CONNECTION, "SEPARATE_CONNECTION",
+                PARSE_VOID);
+        sRequestRegistry.register(RIL_REQUEST_SET_MUTE, "SET_MUTE", PARSE_VOID);
+        sRequestRegistry.register(RIL_REQUEST_GET_MUTE, "GET_MUTE", PARSE_INTS);
+        sRequestRegistry.register(RIL_REQUEST_QUERY_CLIP, "QUERY_CLIP", PARSE_INTS);
+        sRequestRegistry.register(RIL_REQUEST_LAST_DATA_CALL_FAIL_CAUSE, "LAST_DATA_CALL_FAIL_CAUSE",
+                PARSE_INTS);
+        sRequestRegistry.register(RIL_REQUEST_DATA_CALL_LIST, "DATA_CALL_LIST",
+                PARSE_DATA_CALL_LIST);
+        sRequestRegistry.register(RIL_REQUEST_RESET_RADIO, "RESET_RADIO", PARSE_VOID);
+        sRequestRegistry.register(RIL_REQUEST_OEM_HOOK_RAW, "OEM_HOOK_RAW", PARSE_RAW);
+        sRequestRegistry.register(RIL_REQUEST_OEM_HOOK_STRINGS, "OEM_HOOK_STRINGS", PARSE_STRINGS);
+        sRequestRegistry.register(RIL_REQUEST_SCREEN_STATE, "SCREEN_STATE", PARSE_VOID);
+        sRequestRegistry.register(RIL_REQUEST_SET_SUPP_SVC_NOTIFICATION, "SET_SUPP_SVC_NOTIFICATION",
+                PARSE_VOID);
+        sRequestRegistry.register(RIL_REQUEST_WRITE_SMS_TO_SIM, "WRITE_SMS_TO_SIM", PARSE_INTS);
+        sRequestRegistry.register(RIL_REQUEST_DELETE_SMS_ON_SIM, "DELETE_SMS_ON_SIM", PARSE_VOID);
+        sRequestRegistry.register(RIL_REQUEST_SET_BAND_MODE, "SET_BAND_MODE", PARSE_VOID);
+        sRequestRegistry.register(RIL_REQUEST_QUERY_AVAILABLE_BAND_MODE, "QUERY_AVAILABLE_BAND_MODE",
+                PARSE_INTS);
+        sRequestRegistry.register(RIL_REQUEST_STK_GET_PROFILE, "REQUEST_STK_GET_PROFILE",
+                PARSE_STRING);
+        sRequestRegistry.register(RIL_REQUEST_STK_SET_PROFILE, "REQUEST_STK_SET_PROFILE",
+                PARSE_VOID);
+        sRequestRegistry.register(RIL_REQUEST_STK_SEND_ENVELOPE_COMMAND, "REQUEST_STK_SEND_ENVELOPE_COMMAND",
+                PARSE_STRING);
+        sRequestRegistry.register(RIL_REQUEST_STK_SEND_TERMINAL_RESPONSE, "REQUEST_STK_SEND_TERMINAL_RESPONSE",
+                PARSE_VOID);
+        sRequestRegistry.register(RIL_REQUEST_STK_HANDLE_CALL_SETUP_REQUESTED_FROM_SIM, "REQUEST_STK_HANDLE_CALL_SETUP_REQUESTED_FROM_SIM",
+                PARSE_INTS);
+        sRequestRegistry.register(RIL_REQUEST_EXPLICIT_CALL_TRANSFER, "REQUEST_EXPLICIT_CALL_TRANSFER",
+                PARSE_VOID);
+        sRequestRegistry.register(RIL_REQUEST_SET_PREFERRED_NETWORK_TYPE, "REQUEST_SET_PREFERRED_NETWORK_TYPE",
+                PARSE_VOID);
+        sRequestRegistry.register(RIL_REQUEST_GET_PREFERRED_NETWORK_TYPE, "REQUEST_GET_PREFERRED_NETWORK_TYPE",
+                PARSE_INTS);
+        sRequestRegistry.register(RIL_REQUEST_GET_NEIGHBORING_CELL_IDS, "REQUEST_GET_NEIGHBORING_CELL_IDS",
+                PARSE_CELL_LIST);
+        sRequestRegistry.register(RIL_REQUEST_SET_LOCATION_UPDATES, "REQUEST_SET_LOCATION_UPDATES",
+                PARSE_VOID);
+        sRequestRegistry.register(RIL_REQUEST_CDMA_SET_SUBSCRIPTION, "RIL_REQUEST_CDMA_SET_SUBSCRIPTION",
+                PARSE_VOID);
+        sRequestRegistry.register(RIL_REQUEST_CDMA_SET_ROAMING_PREFERENCE, "RIL_REQUEST_CDMA_SET_ROAMING_PREFERENCE",
+                PARSE_VOID);
+        sRequestRegistry.register(RIL_REQUEST_CDMA_QUERY_ROAMING_PREFERENCE, "RIL_REQUEST_CDMA_QUERY_ROAMING_PREFERENCE",
+                PARSE_INTS);
+        sRequestRegistry.register(RIL_REQUEST_SET_TTY_MODE, "RIL_REQUEST_SET_TTY_MODE", PARSE_VOID);
+        sRequestRegistry.register(RIL_REQUEST_QUERY_TTY_MODE, "RIL_REQUEST_QUERY_TTY_MODE",
+                PARSE_INTS);
+        sRequestRegistry.register(RIL_REQUEST_CDMA_SET_PREFERRED_VOICE_PRIVACY_MODE, "RIL_REQUEST_CDMA_SET_PREFERRED_VOICE_PRIVACY_MODE",
+                PARSE_VOID);
+        sRequestRegistry.register(RIL_REQUEST_CDMA_QUERY_PREFERRED_VOICE_PRIVACY_MODE, "RIL_REQUEST_CDMA_QUERY_PREFERRED_VOICE_PRIVACY_MODE",
+                PARSE_INTS);
+        sRequestRegistry.register(RIL_REQUEST_CDMA_FLASH, "RIL_REQUEST_CDMA_FLASH", PARSE_VOID);
+        sRequestRegistry.register(RIL_REQUEST_CDMA_BURST_DTMF, "RIL_REQUEST_CDMA_BURST_DTMF",
+                PARSE_VOID);
+        sRequestRegistry.register(RIL_REQUEST_CDMA_SEND_SMS, "RIL_REQUEST_CDMA_SEND_SMS",
+                PARSE_SMS);
+        sRequestRegistry.register(RIL_REQUEST_CDMA_SMS_ACKNOWLEDGE, "RIL_REQUEST_CDMA_SMS_ACKNOWLEDGE",
+                PARSE_VOID);
+        sRequestRegistry.register(RIL_REQUEST_GSM_GET_BROADCAST_CONFIG, "RIL_REQUEST_GSM_GET_BROADCAST_CONFIG",
+                PARSE_GMS_BROADCAST_CONFIG);
+        sRequestRegistry.register(RIL_REQUEST_GSM_SET_BROADCAST_CONFIG, "RIL_REQUEST_GSM_SET_BROADCAST_CONFIG",
+                PARSE_VOID);
+        sRequestRegistry.register(RIL_REQUEST_CDMA_GET_BROADCAST_CONFIG, "RIL_REQUEST_CDMA_GET_BROADCAST_CONFIG",
+                PARSE_CDMA_BROADCAST_CONFIG);
+        sRequestRegistry.register(RIL_REQUEST_CDMA_SET_BROADCAST_CONFIG, "RIL_REQUEST_CDMA_SET_BROADCAST_CONFIG",
+                PARSE_VOID);
+        sRequestRegistry.register(RIL_REQUEST_GSM_BROADCAST_ACTIVATION, "RIL_REQUEST_GSM_BROADCAST_ACTIVATION",
+                PARSE_VOID);
+        sRequestRegistry.register(RIL_REQUEST_CDMA_VALIDATE_AND_WRITE_AKEY, "RIL_REQUEST_CDMA_VALIDATE_AND_WRITE_AKEY",
+                PARSE_VOID);
+        sRequestRegistry.register(RIL_REQUEST_CDMA_BROADCAST_ACTIVATION, "RIL_REQUEST_CDMA_BROADCAST_ACTIVATION",
+                PARSE_VOID);
+        sRequestRegistry.register(RIL_REQUEST_CDMA_SUBSCRIPTION, "RIL_REQUEST_CDMA_SUBSCRIPTION",
+                PARSE_STRINGS);
+        sRequestRegistry.register(RIL_REQUEST_CDMA_WRITE_SMS_TO_RUIM, "RIL_REQUEST_CDMA_WRITE_SMS_TO_RUIM",
+                PARSE_INTS);
+        sRequestRegistry.register(RIL_REQUEST_CDMA_DELETE_SMS_ON_RUIM, "RIL_REQUEST_CDMA_DELETE_SMS_ON_RUIM",
+                PARSE_VOID);
+        sRequestRegistry.register(RIL_REQUEST_DEVICE_IDENTITY, "RIL_REQUEST_DEVICE_IDENTITY",
+                PARSE_STRINGS);
+        sRequestRegistry.register(RIL_REQUEST_GET_SMSC_ADDRESS, "RIL_REQUEST_GET_SMSC_ADDRESS",
+                PARSE_STRING);
+        sRequestRegistry.register(RIL_REQUEST_SET_SMSC_ADDRESS, "RIL_REQUEST_SET_SMSC_ADDRESS",
+                PARSE_VOID);
+        sRequestRegistry.register(RIL_REQUEST_EXIT_EMERGENCY_CALLBACK_MODE, "REQUEST_EXIT_EMERGENCY_CALLBACK_MODE",
+                PARSE_VOID);
+        sRequestRegistry.register(RIL_REQUEST_REPORT_SMS_MEMORY_STATUS, "RIL_REQUEST_REPORT_SMS_MEMORY_STATUS",
+                PARSE_VOID);
+        sRequestRegistry.register(RIL_REQUEST_REPORT_STK_SERVICE_IS_RUNNING, "RIL_REQUEST_REPORT_STK_SERVICE_IS_RUNNING",
+                PARSE_VOID);
+
+        // Parsers follow the response functions in libs/telephony/ril_unsol_commands.h
+        sUnsolRegistry.register(RIL_UNSOL_RESPONSE_RADIO_STATE_CHANGED, "UNSOL_RESPONSE_RADIO_STATE_CHANGED",
+                PARSE_VOID);
+        sUnsolRegistry.register(RIL_UNSOL_RESPONSE_CALL_STATE_CHANGED, "UNSOL_RESPONSE_CALL_STATE_CHANGED",
+                PARSE_VOID);
+        sUnsolRegistry.register(RIL_UNSOL_RESPONSE_NETWORK_STATE_CHANGED, "UNSOL_RESPONSE_NETWORK_STATE_CHANGED",
+                PARSE_VOID);
+        sUnsolRegistry.register(RIL_UNSOL_RESPONSE_NEW_SMS, "UNSOL_RESPONSE_NEW_SMS", PARSE_STRING);
+        sUnsolRegistry.register(RIL_UNSOL_RESPONSE_NEW_SMS_STATUS_REPORT, "UNSOL_RESPONSE_NEW_SMS_STATUS_REPORT",
+                PARSE_STRING);
+        sUnsolRegistry.register(RIL_UNSOL_RESPONSE_NEW_SMS_ON_SIM, "UNSOL_RESPONSE_NEW_SMS_ON_SIM",
+                PARSE_INTS);
+        sUnsolRegistry.register(RIL_UNSOL_ON_USSD, "UNSOL_ON_USSD", PARSE_STRINGS);
+        sUnsolRegistry.register(RIL_UNSOL_ON_USSD_REQUEST, "UNSOL_ON_USSD_REQUEST", null);
+        sUnsolRegistry.register(RIL_UNSOL_NITZ_TIME_RECEIVED, "UNSOL_NITZ_TIME_RECEIVED",
+                PARSE_STRING);
+        sUnsolRegistry.register(RIL_UNSOL_SIGNAL_STRENGTH, "UNSOL_SIGNAL_STRENGTH",
+                PARSE_SIGNAL_STRENGTH_UNSOL);
+        sUnsolRegistry.register(RIL_UNSOL_DATA_CALL_LIST_CHANGED, "UNSOL_DATA_CALL_LIST_CHANGED",
+                PARSE_DATA_CALL_LIST);
+        sUnsolRegistry.register(RIL_UNSOL_SUPP_SVC_NOTIFICATION, "UNSOL_SUPP_SVC_NOTIFICATION",
+                PARSE_SUPP_SERVICE_NOTIFICATION);
+        sUnsolRegistry.register(RIL_UNSOL_STK_SESSION_END, "UNSOL_STK_SESSION_END", PARSE_VOID);
+        sUnsolRegistry.register(RIL_UNSOL_STK_PROACTIVE_COMMAND, "UNSOL_STK_PROACTIVE_COMMAND",
+                PARSE_STRING);
+        sUnsolRegistry.register(RIL_UNSOL_STK_EVENT_NOTIFY, "UNSOL_STK_EVENT_NOTIFY", PARSE_STRING);
+        sUnsolRegistry.register(RIL_UNSOL_STK_CALL_SETUP, "UNSOL_STK_CALL_SETUP", PARSE_INTS);
+        sUnsolRegistry.register(RIL_UNSOL_SIM_SMS_STORAGE_FULL, "UNSOL_SIM_SMS_STORAGE_FULL",
+                PARSE_VOID);
+        sUnsolRegistry.register(RIL_UNSOL_SIM_REFRESH, "UNSOL_SIM_REFRESH", PARSE_INTS);
+        sUnsolRegistry.register(RIL_UNSOL_CALL_RING, "UNSOL_CALL_RING", PARSE_CALL_RING);
+        sUnsolRegistry.register(RIL_UNSOL_RESPONSE_SIM_STATUS_CHANGED, "UNSOL_RESPONSE_SIM_STATUS_CHANGED",
+                PARSE_VOID);
+        sUnsolRegistry.register(RIL_UNSOL_RESPONSE_CDMA_NEW_SMS, "UNSOL_RESPONSE_CDMA_NEW_SMS",
+                PARSE_CDMA_SMS);
+        sUnsolRegistry.register(RIL_UNSOL_RESPONSE_NEW_BROADCAST_SMS, "UNSOL_RESPONSE_NEW_BROADCAST_SMS",
+                PARSE_STRING);
+        sUnsolRegistry.register(RIL_UNSOL_CDMA_RUIM_SMS_STORAGE_FULL, "UNSOL_CDMA_RUIM_SMS_STORAGE_FULL",
+                PARSE_VOID);
+        sUnsolRegistry.register(RIL_UNSOL_RESTRICTED_STATE_CHANGED, "UNSOL_RESTRICTED_STATE_CHANGED",
+                PARSE_INTS);
+        sUnsolRegistry.register(RIL_UNSOL_ENTER_EMERGENCY_CALLBACK_MODE, "UNSOL_ENTER_EMERGENCY_CALLBACK_MODE",
+                PARSE_VOID);
+        sUnsolRegistry.register(RIL_UNSOL_CDMA_CALL_WAITING, "UNSOL_CDMA_CALL_WAITING",
+                PARSE_CDMA_CALL_WAITING);
+        sUnsolRegistry.register(RIL_UNSOL_CDMA_OTA_PROVISION_STATUS, "UNSOL_CDMA_OTA_PROVISION_STATUS",
+                PARSE_INTS);
+        sUnsolRegistry.register(RIL_UNSOL_CDMA_INFO_REC, "UNSOL_CDMA_INFO_REC",
+                PARSE_CDMA_INFORMATION_RECORD);
+        sUnsolRegistry.register(RIL_UNSOL_OEM_HOOK_RAW, "UNSOL_OEM_HOOK_RAW", PARSE_RAW);
+        sUnsolRegistry.register(RIL_UNSOL_RINGBACK_TONE, "UNSOL_RINGBACK_TONG", PARSE_INTS);
+        sUnsolRegistry.register(RIL_UNSOL_RESEND_INCALL_MUTE, "UNSOL_RESEND_INCALL_MUTE",
+                PARSE_VOID);
+    }
+
+    /**
+     * Registers the parser and log name for a solicited request type,
+     * typically an OEM extension. Replaces any existing entry for
+     * request, so it can also be used to override a built-in parser.
+     *
+     * @param request RIL_REQUEST_* id, or a vendor defined id
+     * @param name name used in the radio log
+     * @param parser decodes the response payload
+     * @param redactResult true if the result must not be logged
+     */
+    static void
+    registerRequestType(int request, String name,
+            RILRequestRegistry.ResponseParser parser, boolean redactResult) {
+        sRequestRegistry.register(request, name, parser,
+                redactResult ? RILRequestRegistry.LOG_REDACTED
+                        : RILRequestRegistry.LOG_RESULT);
+    }
+
     static String
     requestToString(int request) {
-/*
- cat libs/telephony/ril_commands.h \
- | egrep "^ *{RIL_" \
- | sed -re 's/\{RIL_([^,]+),[^,]+,([^}]+).+/case RIL_\1: return "\1";/'
-*/
-        switch(request) {
-            case RIL_REQUEST_GET_SIM_STATUS: return "GET_SIM_STATUS";
-            case RIL_REQUEST_ENTER_SIM_PIN: return "ENTER_SIM_PIN";
-            case RIL_REQUEST_ENTER_SIM_PUK: return "ENTER_SIM_PUK";
-            case RIL_REQUEST_ENTER_SIM_PIN2: return "ENTER_SIM_PIN2";
-            case RIL_REQUEST_ENTER_SIM_PUK2: return "ENTER_SIM_PUK2";
-            case RIL_REQUEST_CHANGE_SIM_PIN: return "CHANGE_SIM_PIN";
-            case RIL_REQUEST_CHANGE_SIM_PIN2: return "CHANGE_SIM_PIN2";
-            case RIL_REQUEST_ENTER_NETWORK_DEPERSONALIZATION: return "ENTER_NETWORK_DEPERSONALIZATION";
-            case RIL_REQUEST_GET_CURRENT_CALLS: return "GET_CURRENT_CALLS";
-            case RIL_REQUEST_DIAL: return "DIAL";
-            case RIL_REQUEST_GET_IMSI: return "GET_IMSI";
-            case RIL_REQUEST_HANGUP: return "HANGUP";
-            case RIL_REQUEST_HANGUP_WAITING_OR_BACKGROUND: return "HANGUP_WAITING_OR_BACKGROUND";
-            case RIL_REQUEST_HANGUP_FOREGROUND_RESUME_BACKGROUND: return "HANGUP_FOREGROUND_RESUME_BACKGROUND";
-            case RIL_REQUEST_SWITCH_WAITING_OR_HOLDING_AND_ACTIVE: return "REQUEST_SWITCH_WAITING_OR_HOLDING_AND_ACTIVE";
-            case RIL_REQUEST_CONFERENCE: return "CONFERENCE";
-            case RIL_REQUEST_UDUB: return "UDUB";
-            case RIL_REQUEST_LAST_CALL_FAIL_CAUSE: return "LAST_CALL_FAIL_CAUSE";
-            case RIL_REQUEST_SIGNAL_STRENGTH: return "SIGNAL_STRENGTH";
-            case RIL_REQUEST_REGISTRATION_STATE: return "REGISTRATION_STATE";
-            case RIL_REQUEST_GPRS_REGISTRATION_STATE: return "GPRS_REGISTRATION_STATE";
-            case RIL_REQUEST_OPERATOR: return "OPERATOR";
-            case RIL_REQUEST_RADIO_POWER: return "RADIO_POWER";
-            case RIL_REQUEST_DTMF: return "DTMF";
-            case RIL_REQUEST_SEND_SMS: return "SEND_SMS";
-            case RIL_REQUEST_SEND_SMS_EXPECT_MORE: return "SEND_SMS_EXPECT_MORE";
-            case RIL_REQUEST_SETUP_DATA_CALL: return "SETUP_DATA_CALL";
-            case RIL_REQUEST_SIM_IO: return "SIM_IO";
-            case RIL_REQUEST_SEND_USSD: return "SEND_USSD";
-            case RIL_REQUEST_CANCEL_USSD: return "CANCEL_USSD";
-            case RIL_REQUEST_GET_CLIR: return "GET_CLIR";
-            case RIL_REQUEST_SET_CLIR: return "SET_CLIR";
-            case RIL_REQUEST_QUERY_CALL_FORWARD_STATUS: return "QUERY_CALL_FORWARD_STATUS";
-            case RIL_REQUEST_SET_CALL_FORWARD: return "SET_CALL_FORWARD";
-            case RIL_REQUEST_QUERY_CALL_WAITING: return "QUERY_CALL_WAITING";
-            case RIL_REQUEST_SET_CALL_WAITING: return "SET_CALL_WAITING";
-            case RIL_REQUEST_SMS_ACKNOWLEDGE: return "SMS_ACKNOWLEDGE";
-            case RIL_REQUEST_GET_IMEI: return "GET_IMEI";
-            case RIL_REQUEST_GET_IMEISV: return "GET_IMEISV";
-            case RIL_REQUEST_ANSWER: return "ANSWER";
-            case RIL_REQUEST_DEACTIVATE_DATA_CALL: return "DEACTIVATE_DATA_CALL";
-            case RIL_REQUEST_QUERY_FACILITY_LOCK: return "QUERY_FACILITY_LOCK";
-            case RIL_REQUEST_SET_FACILITY_LOCK: return "SET_FACILITY_LOCK";
-            case RIL_REQUEST_CHANGE_BARRING_PASSWORD: return "CHANGE_BARRING_PASSWORD";
-            case RIL_REQUEST_QUERY_NETWORK_SELECTION_MODE: return "QUERY_NETWORK_SELECTION_MODE";
-            case RIL_REQUEST_SET_NETWORK_SELECTION_AUTOMATIC: return "SET_NETWORK_SELECTION_AUTOMATIC";
-            case RIL_REQUEST_SET_NETWORK_SELECTION_MANUAL: return "SET_NETWORK_SELECTION_MANUAL";
-            case RIL_REQUEST_QUERY_AVAILABLE_NETWORKS : return "QUERY_AVAILABLE_NETWORKS ";
-            case RIL_REQUEST_DTMF_START: return "DTMF_START";
-            case RIL_REQUEST_DTMF_STOP: return "DTMF_STOP";
-            case RIL_REQUEST_BASEBAND_VERSION: return "BASEBAND_VERSION";
-            case RIL_REQUEST_SEPARATE_CONNECTION: return "SEPARATE_CONNECTION";
-            case RIL_REQUEST_SET_MUTE: return "SET_MUTE";
-            case RIL_REQUEST_GET_MUTE: return "GET_MUTE";
-            case RIL_REQUEST_QUERY_CLIP: return "QUERY_CLIP";
-            case RIL_REQUEST_LAST_DATA_CALL_FAIL_CAUSE: return "LAST_DATA_CALL_FAIL_CAUSE";
-            case RIL_REQUEST_DATA_CALL_LIST: return "DATA_CALL_LIST";
-            case RIL_REQUEST_RESET_RADIO: return "RESET_RADIO";
-            case RIL_REQUEST_OEM_HOOK_RAW: return "OEM_HOOK_RAW";
-            case RIL_REQUEST_OEM_HOOK_STRINGS: return "OEM_HOOK_STRINGS";
-            case RIL_REQUEST_SCREEN_STATE: return "SCREEN_STATE";
-            case RIL_REQUEST_SET_SUPP_SVC_NOTIFICATION: return "SET_SUPP_SVC_NOTIFICATION";
-            case RIL_REQUEST_WRITE_SMS_TO_SIM: return "WRITE_SMS_TO_SIM";
-            case RIL_REQUEST_DELETE_SMS_ON_SIM: return "DELETE_SMS_ON_SIM";
-            case RIL_REQUEST_SET_BAND_MODE: return "SET_BAND_MODE";
-            case RIL_REQUEST_QUERY_AVAILABLE_BAND_MODE: return "QUERY_AVAILABLE_BAND_MODE";
-            case RIL_REQUEST_STK_GET_PROFILE: return "REQUEST_STK_GET_PROFILE";
-            case RIL_REQUEST_STK_SET_PROFILE: return "REQUEST_STK_SET_PROFILE";
-            case RIL_REQUEST_STK_SEND_ENVELOPE_COMMAND: return "REQUEST_STK_SEND_ENVELOPE_COMMAND";
-            case RIL_REQUEST_STK_SEND_TERMINAL_RESPONSE: return "REQUEST_STK_SEND_TERMINAL_RESPONSE";
-            case RIL_REQUEST_STK_HANDLE_CALL_SETUP_REQUESTED_FROM_SIM: return "REQUEST_STK_HANDLE_CALL_SETUP_REQUESTED_FROM_SIM";
-            case RIL_REQUEST_EXPLICIT_CALL_TRANSFER: return "REQUEST_EXPLICIT_CALL_TRANSFER";
-            case RIL_REQUEST_SET_PREFERRED_NETWORK_TYPE: return "REQUEST_SET_PREFERRED_NETWORK_TYPE";
-            case RIL_REQUEST_GET_PREFERRED_NETWORK_TYPE: return "REQUEST_GET_PREFERRED_NETWORK_TYPE";
-            case RIL_REQUEST_GET_NEIGHBORING_CELL_IDS: return "REQUEST_GET_NEIGHBORING_CELL_IDS";
-            case RIL_REQUEST_SET_LOCATION_UPDATES: return "REQUEST_SET_LOCATION_UPDATES";
-            case RIL_REQUEST_CDMA_SET_SUBSCRIPTION: return "RIL_REQUEST_CDMA_SET_SUBSCRIPTION";
-            case RIL_REQUEST_CDMA_SET_ROAMING_PREFERENCE: return "RIL_REQUEST_CDMA_SET_ROAMING_PREFERENCE";
-            case RIL_REQUEST_CDMA_QUERY_ROAMING_PREFERENCE: return "RIL_REQUEST_CDMA_QUERY_ROAMING_PREFERENCE";
-            case RIL_REQUEST_SET_TTY_MODE: return "RIL_REQUEST_SET_TTY_MODE";
-            case RIL_REQUEST_QUERY_TTY_MODE: return "RIL_REQUEST_QUERY_TTY_MODE";
-            case RIL_REQUEST_CDMA_SET_PREFERRED_VOICE_PRIVACY_MODE: return "RIL_REQUEST_CDMA_SET_PREFERRED_VOICE_PRIVACY_MODE";
-            case RIL_REQUEST_CDMA_QUERY_PREFERRED_VOICE_PRIVACY_MODE: return "RIL_REQUEST_CDMA_QUERY_PREFERRED_VOICE_PRIVACY_MODE";
-            case RIL_REQUEST_CDMA_FLASH: return "RIL_REQUEST_CDMA_FLASH";
-            case RIL_REQUEST_CDMA_BURST_DTMF: return "RIL_REQUEST_CDMA_BURST_DTMF";
-            case RIL_REQUEST_CDMA_SEND_SMS: return "RIL_REQUEST_CDMA_SEND_SMS";
-            case RIL_REQUEST_CDMA_SMS_ACKNOWLEDGE: return "RIL_REQUEST_CDMA_SMS_ACKNOWLEDGE";
-            case RIL_REQUEST_GSM_GET_BROADCAST_CONFIG: return "RIL_REQUEST_GSM_GET_BROADCAST_CONFIG";
-            case RIL_REQUEST_GSM_SET_BROADCAST_CONFIG: return "RIL_REQUEST_GSM_SET_BROADCAST_CONFIG";
-            case RIL_REQUEST_CDMA_GET_BROADCAST_CONFIG: return "RIL_REQUEST_CDMA_GET_BROADCAST_CONFIG";
-            case RIL_REQUEST_CDMA_SET_BROADCAST_CONFIG: return "RIL_REQUEST_CDMA_SET_BROADCAST_CONFIG";
-            case RIL_REQUEST_GSM_BROADCAST_ACTIVATION: return "RIL_REQUEST_GSM_BROADCAST_ACTIVATION";
-            case RIL_REQUEST_CDMA_VALIDATE_AND_WRITE_AKEY: return "RIL_REQUEST_CDMA_VALIDATE_AND_WRITE_AKEY";
-            case RIL_REQUEST_CDMA_BROADCAST_ACTIVATION: return "RIL_REQUEST_CDMA_BROADCAST_ACTIVATION";
-            case RIL_REQUEST_CDMA_SUBSCRIPTION: return "RIL_REQUEST_CDMA_SUBSCRIPTION";
-            case RIL_REQUEST_CDMA_WRITE_SMS_TO_RUIM: return "RIL_REQUEST_CDMA_WRITE_SMS_TO_RUIM";
-            case RIL_REQUEST_CDMA_DELETE_SMS_ON_RUIM: return "RIL_REQUEST_CDMA_DELETE_SMS_ON_RUIM";
-            case RIL_REQUEST_DEVICE_IDENTITY: return "RIL_REQUEST_DEVICE_IDENTITY";
-            case RIL_REQUEST_GET_SMSC_ADDRESS: return "RIL_REQUEST_GET_SMSC_ADDRESS";
-            case RIL_REQUEST_SET_SMSC_ADDRESS: return "RIL_REQUEST_SET_SMSC_ADDRESS";
-            case RIL_REQUEST_EXIT_EMERGENCY_CALLBACK_MODE: return "REQUEST_EXIT_EMERGENCY_CALLBACK_MODE";
-            case RIL_REQUEST_REPORT_SMS_MEMORY_STATUS: return "RIL_REQUEST_REPORT_SMS_MEMORY_STATUS";
-            case RIL_REQUEST_REPORT_STK_SERVICE_IS_RUNNING: return "RIL_REQUEST_REPORT_STK_SERVICE_IS_RUNNING";
-            default: return "<unknown request>";
-        }
+        return sRequestRegistry.nameOf(request);
     }
 
     static String
     responseToString(int request)
     {
-/*
- cat libs/telephony/ril_unsol_commands.h \
- | egrep "^ *{RIL_" \
- | sed -re 's/\{RIL_([^,]+),[^,]+,([^}]+).+/case RIL_\1: return "\1";/'
-*/
-        switch(request) {
-            case RIL_UNSOL_RESPONSE_RADIO_STATE_CHANGED: return "UNSOL_RESPONSE_RADIO_STATE_CHANGED";
-            case RIL_UNSOL_RESPONSE_CALL_STATE_CHANGED: return "UNSOL_RESPONSE_CALL_STATE_CHANGED";
-            case RIL_UNSOL_RESPONSE_NETWORK_STATE_CHANGED: return "UNSOL_RESPONSE_NETWORK_STATE_CHANGED";
-            case RIL_UNSOL_RESPONSE_NEW_SMS: return "UNSOL_RESPONSE_NEW_SMS";
-            case RIL_UNSOL_RESPONSE_NEW_SMS_STATUS_REPORT: return "UNSOL_RESPONSE_NEW_SMS_STATUS_REPORT";
-            case RIL_UNSOL_RESPONSE_NEW_SMS_ON_SIM: return "UNSOL_RESPONSE_NEW_SMS_ON_SIM";
-            case RIL_UNSOL_ON_USSD: return "UNSOL_ON_USSD";
-            case RIL_UNSOL_ON_USSD_REQUEST: return "UNSOL_ON_USSD_REQUEST";
-            case RIL_UNSOL_NITZ_TIME_RECEIVED: return "UNSOL_NITZ_TIME_RECEIVED";
-            case RIL_UNSOL_SIGNAL_STRENGTH: return "UNSOL_SIGNAL_STRENGTH";
-            case RIL_UNSOL_DATA_CALL_LIST_CHANGED: return "UNSOL_DATA_CALL_LIST_CHANGED";
-            case RIL_UNSOL_SUPP_SVC_NOTIFICATION: return "UNSOL_SUPP_SVC_NOTIFICATION";
-            case RIL_UNSOL_STK_SESSION_END: return "UNSOL_STK_SESSION_END";
-            case RIL_UNSOL_STK_PROACTIVE_COMMAND: return "UNSOL_STK_PROACTIVE_COMMAND";
-            case RIL_UNSOL_STK_EVENT_NOTIFY: return "UNSOL_STK_EVENT_NOTIFY";
-            case RIL_UNSOL_STK_CALL_SETUP: return "UNSOL_STK_CALL_SETUP";
-            case RIL_UNSOL_SIM_SMS_STORAGE_FULL: return "UNSOL_SIM_SMS_STORAGE_FULL";
-            case RIL_UNSOL_SIM_REFRESH: return "UNSOL_SIM_REFRESH";
-            case RIL_UNSOL_CALL_RING: return "UNSOL_CALL_RING";
-            case RIL_UNSOL_RESPONSE_SIM_STATUS_CHANGED: return "UNSOL_RESPONSE_SIM_STATUS_CHANGED";
-            case RIL_UNSOL_RESPONSE_CDMA_NEW_SMS: return "UNSOL_RESPONSE_CDMA_NEW_SMS";
-            case RIL_UNSOL_RESPONSE_NEW_BROADCAST_SMS: return "UNSOL_RESPONSE_NEW_BROADCAST_SMS";
-            case RIL_UNSOL_CDMA_RUIM_SMS_STORAGE_FULL: return "UNSOL_CDMA_RUIM_SMS_STORAGE_FULL";
-            case RIL_UNSOL_RESTRICTED_STATE_CHANGED: return "UNSOL_RESTRICTED_STATE_CHANGED";
-            case RIL_UNSOL_ENTER_EMERGENCY_CALLBACK_MODE: return "UNSOL_ENTER_EMERGENCY_CALLBACK_MODE";
-            case RIL_UNSOL_CDMA_CALL_WAITING: return "UNSOL_CDMA_CALL_WAITING";
-            case RIL_UNSOL_CDMA_OTA_PROVISION_STATUS: return "UNSOL_CDMA_OTA_PROVISION_STATUS";
-            case RIL_UNSOL_CDMA_INFO_REC: return "UNSOL_CDMA_INFO_REC";
-            case RIL_UNSOL_OEM_HOOK_RAW: return "UNSOL_OEM_HOOK_RAW";
-            case RIL_UNSOL_RINGBACK_TONE: return "UNSOL_RINGBACK_TONG";
-            case RIL_UNSOL_RESEND_INCALL_MUTE: return "UNSOL_RESEND_INCALL_MUTE";
-            default: return "<unknown reponse>";
-        }
+        return sUnsolRegistry.nameOf(request);
     }
 
     private void riljLog(String msg) {
@@ -3311,7 +5350,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
     // ***** Methods for CDMA support
     public void
     getDeviceIdentity(Message response) {
-        RILRequest rr = RILRequest.obtain(RIL_REQUEST_DEVICE_IDENTITY, response);
+        RILRequest rr = RILRequest.obtain(mNextSerial, RIL_REQUEST_DEVICE_IDENTITY, response);
 
         if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
@@ -3320,7 +5359,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
 
     public void
     getCDMASubscription(Message response) {
-        RILRequest rr = RILRequest.obtain(RIL_REQUEST_CDMA_SUBSCRIPTION, response);
+        RILRequest rr = RILRequest.obtain(mNextSerial, RIL_REQUEST_CDMA_SUBSCRIPTION, response);
 
         if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
@@ -3335,7 +5374,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
      * {@inheritDoc}
      */
     public void queryCdmaRoamingPreference(Message response) {
-        RILRequest rr = RILRequest.obtain(
+        RILRequest rr = RILRequest.obtain(mNextSerial, 
                 RILConstants.RIL_REQUEST_CDMA_QUERY_ROAMING_PREFERENCE, response);
 
         if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
@@ -3347,7 +5386,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
      * {@inheritDoc}
      */
     public void setCdmaRoamingPreference(int cdmaRoamingType, Message response) {
-        RILRequest rr = RILRequest.obtain(
+        RILRequest rr = RILRequest.obtain(mNextSerial, 
                 RILConstants.RIL_REQUEST_CDMA_SET_ROAMING_PREFERENCE, response);
 
         rr.mp.writeInt(1);
@@ -3363,7 +5402,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
      * {@inheritDoc}
      */
     public void setCdmaSubscription(int cdmaSubscription , Message response) {
-        RILRequest rr = RILRequest.obtain(
+        RILRequest rr = RILRequest.obtain(mNextSerial, 
                 RILConstants.RIL_REQUEST_CDMA_SET_SUBSCRIPTION, response);
 
         rr.mp.writeInt(1);
@@ -3379,7 +5418,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
      * {@inheritDoc}
      */
     public void queryTTYMode(Message response) {
-        RILRequest rr = RILRequest.obtain(
+        RILRequest rr = RILRequest.obtain(mNextSerial, 
                 RILConstants.RIL_REQUEST_QUERY_TTY_MODE, response);
 
         send(rr);
@@ -3389,7 +5428,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
      * {@inheritDoc}
      */
     public void setTTYMode(int ttyMode, Message response) {
-        RILRequest rr = RILRequest.obtain(
+        RILRequest rr = RILRequest.obtain(mNextSerial, 
                 RILConstants.RIL_REQUEST_SET_TTY_MODE, response);
 
         rr.mp.writeInt(1);
@@ -3403,7 +5442,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
      */
     public void
     sendCDMAFeatureCode(String FeatureCode, Message response) {
-        RILRequest rr = RILRequest.obtain(RIL_REQUEST_CDMA_FLASH, response);
+        RILRequest rr = RILRequest.obtain(mNextSerial, RIL_REQUEST_CDMA_FLASH, response);
 
         rr.mp.writeString(FeatureCode);
 
@@ -3414,14 +5453,14 @@ public final class RIL extends BaseCommands implements CommandsInterface {
     }
 
     public void getCdmaBroadcastConfig(Message response) {
-        RILRequest rr = RILRequest.obtain(RIL_REQUEST_CDMA_GET_BROADCAST_CONFIG, response);
+        RILRequest rr = RILRequest.obtain(mNextSerial, RIL_REQUEST_CDMA_GET_BROADCAST_CONFIG, response);
 
         send(rr);
     }
 
     // TODO: Change the configValuesArray to a RIL_BroadcastSMSConfig
     public void setCdmaBroadcastConfig(int[] configValuesArray, Message response) {
-        RILRequest rr = RILRequest.obtain(RIL_REQUEST_CDMA_SET_BROADCAST_CONFIG, response);
+        RILRequest rr = RILRequest.obtain(mNextSerial, RIL_REQUEST_CDMA_SET_BROADCAST_CONFIG, response);
 
         for(int i = 0; i < configValuesArray.length; i++) {
             rr.mp.writeInt(configValuesArray[i]);
@@ -3433,7 +5472,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
     }
 
     public void setCdmaBroadcastActivation(boolean activate, Message response) {
-        RILRequest rr = RILRequest.obtain(RIL_REQUEST_CDMA_BROADCAST_ACTIVATION, response);
+        RILRequest rr = RILRequest.obtain(mNextSerial, RIL_REQUEST_CDMA_BROADCAST_ACTIVATION, response);
 
         rr.mp.writeInt(1);
         rr.mp.writeInt(activate ? 0 :1);
@@ -3447,7 +5486,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
      * {@inheritDoc}
      */
     public void exitEmergencyCallbackMode(Message response) {
-        RILRequest rr = RILRequest.obtain(RIL_REQUEST_EXIT_EMERGENCY_CALLBACK_MODE, response);
+        RILRequest rr = RILRequest.obtain(mNextSerial, RIL_REQUEST_EXIT_EMERGENCY_CALLBACK_MODE, response);
 
         if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.telephony.PhoneNumberUtils;
+
+import java.util.Collections;
+
+/**
+ * Decodes RIL_REQUEST_GET_CURRENT_CALLS responses against the previous
+ * response, keyed by call index.
+ *
+ * A call whose wire fields all match the previous poll is not decoded
+ * again: strings that match are reused without being decoded, and a
+ * number whose raw form and TOA match is not normalized again. The list
+ * is only sorted when rild did not already send the calls in index
+ * order.
+ *
+ * The previous poll is kept in DriverCalls of the decoder's own, and
+ * callers get copies of them, since the call trackers are free to modify
+ * the DriverCalls they are given.
+ *
+ * Not thread safe; used by the thread that decodes responses.
+ *
+ * {@hide}
+ */
+final class RILCallListDecoder {
+    //***** Instance Variables
+    // The previous poll, in wire order; mRawNumbers are as sent by rild
+    private DriverCall[] mCalls = new DriverCall[0];
+    private String[] mRawNumbers = new String[0];
+    private int mCount;
+
+    // Scratch for building the next snapshot; swapped with the above
+    private DriverCall[] mNextCalls = new DriverCall[0];
+    private String[] mNextRawNumbers = new String[0];
+    private boolean[] mSeen = new boolean[0];
+
+    // Statistics
+    long mCallsDecoded;
+    long mCallsReused;
+
+    /** Forgets the previous poll, e.g. when rild restarts. */
+    void reset() {
+        for (int i = 0; i < mCount; i++) {
+            mCalls[i] = null;
+            mRawNumbers[i] = null;
+        }
+        mCount = 0;
+    }
+
+    DriverCallList decode(RILParcelCursor p) {
+        int num = p.readInt();
+        DriverCallList response = new DriverCallList(Math.max(num, 0));
+        boolean ordered = true;
+
+        ensureCapacity(num);
+        for (int i = 0; i < mCount; i++) {
+            mSeen[i] = false;
+        }
+
+        for (int i = 0 ; i < num ; i++) {
+            DriverCall.State state = DriverCall.stateFromCLCC(p.readInt());
+            int index = p.readInt();
+            int toa = p.readInt();
+            boolean isMpty = (0 != p.readInt());
+            boolean isMT = (0 != p.readInt());
+            int als = p.readInt();
+            boolean isVoice = (0 != p.readInt());
+            boolean isVoicePrivacy = (0 != p.readInt());
+
+            int prev = find(index);
+            DriverCall old = (prev < 0) ? null : mCalls[prev];
+            String oldRaw = (prev < 0) ? null : mRawNumbers[prev];
+
+            String rawNumber = p.readString(oldRaw);
+            int numberPresentation = DriverCall.presentationFromCLIP(p.readInt());
+            String name = p.readString(old == null ? null : old.name);
+            int namePresentation = p.readInt();
+
+            int uusInfoPresent = p.readInt();
+            if (uusInfoPresent == 1) {
+                // TODO: Copy the data to dc to forward to the apps.
+                p.readInt();
+                p.readInt();
+                p.skipByteArray();
+            }
+
+            DriverCall dc;
+            DriverCall copy;
+            if (old != null
+                    && old.state == state
+                    && old.TOA == toa
+                    && old.isMpty == isMpty
+                    && old.isMT == isMT
+                    && old.als == als
+                    && old.isVoice == isVoice
+                    && old.isVoicePrivacy == isVoicePrivacy
+                    && rawNumber == oldRaw
+                    && old.numberPresentation == numberPresentation
+                    && old.name == name
+                    && old.namePresentation == namePresentation) {
+                dc = old;
+                copy = copyOf(dc);
+                mCallsReused++;
+            } else {
+                dc = new DriverCall();
+                dc.state = state;
+                dc.index = index;
+                dc.TOA = toa;
+                dc.isMpty = isMpty;
+                dc.isMT = isMT;
+                dc.als = als;
+                dc.isVoice = isVoice;
+                dc.isVoicePrivacy = isVoicePrivacy;
+                dc.numberPresentation = numberPresentation;
+                dc.name = name;
+                dc.namePresentation = namePresentation;
+
+                if (old != null && rawNumber == oldRaw && old.TOA == toa) {
+                    dc.number = old.number;
+                } else {
+                    // Make sure there's a leading + on addresses with a TOA of 145
+                    dc.number = PhoneNumberUtils.stringFromStringAndTOA(rawNumber, toa);
+                }
+
+                copy = copyOf(dc);
+                if (old == null) {
+                    response.addAdded(copy);
+                } else {
+                    response.addChanged(copy);
+                }
+            }
+
+            if (prev >= 0) {
+                mSeen[prev] = true;
+            }
+            if (i > 0 && response.get(i - 1).index > index) {
+                ordered = false;
+            }
+
+            response.add(copy);
+            mNextCalls[i] = dc;
+            mNextRawNumbers[i] = rawNumber;
+            mCallsDecoded++;
+        }
+
+        for (int i = 0; i < mCount; i++) {
+            if (!mSeen[i]) {
+                response.addRemoved(copyOf(mCalls[i]));
+            }
+        }
+
+        swap(Math.max(num, 0));
+
+        if (!ordered) {
+            Collections.sort(response);
+        }
+
+        return response;
+    }
+
+    //***** Private Methods
+
+    private static DriverCall copyOf(DriverCall dc) {
+        DriverCall copy = new DriverCall();
+
+        copy.state = dc.state;
+        copy.index = dc.index;
+        copy.TOA = dc.TOA;
+        copy.isMpty = dc.isMpty;
+        copy.isMT = dc.isMT;
+        copy.als = dc.als;
+        copy.isVoice = dc.isVoice;
+        copy.isVoicePrivacy = dc.isVoicePrivacy;
+        copy.number = dc.number;
+        copy.numberPresentation = dc.numberPresentation;
+        copy.name = dc.name;
+        copy.namePresentation = dc.namePresentation;
+        return copy;
+    }
+
+    private int find(int index) {
+        for (int i = 0; i < mCount; i++) {
+            if (mCalls[i].index == index) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void ensureCapacity(int num) {
+        int n = Math.max(num, mCount);
+
+        if (mNextCalls.length < n) {
+            mNextCalls = new DriverCall[n];
+            mNextRawNumbers = new String[n];
+        }
+        if (mSeen.length < n) {
+            mSeen = new boolean[n];
+        }
+    }
+
+    private void swap(int count) {
+        DriverCall[] calls = mCalls;
+        String[] rawNumbers = mRawNumbers;
+
+        mCalls = mNextCalls;
+        mRawNumbers = mNextRawNumbers;
+
+        // Drop references to calls that are gone
+        for (int i = 0; i < mCount; i++) {
+            calls[i] = null;
+            rawNumbers[i] = null;
+        }
+        mNextCalls = calls;
+        mNextRawNumbers = rawNumbers;
+        mCount = count;
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.os.Handler;
+
+import java.util.LinkedList;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Publishes one type of unsolicited response, e.g. RIL_UNSOL_SIGNAL_STRENGTH,
+ * to any number of subscribers, each with its own demand and queue.
+ *
+ * Publishing never blocks and never calls a subscriber: events are
+ * queued per subscription and delivered on the subscriber's Handler, at
+ * most as many as it requested. When a subscriber falls behind, its
+ * policy decides what is dropped:
+ *
+ * <ul>
+ * <li>POLICY_BUFFER keeps events in order up to the capacity, then
+ *     drops new ones.</li>
+ * <li>POLICY_DROP_OLDEST keeps the newest events up to the capacity.</li>
+ * <li>POLICY_LATEST keeps only the newest event, which suits state such
+ *     as signal strength or NITZ time where only the latest matters.</li>
+ * </ul>
+ *
+ * Events are the objects the matching Registrants get as
+ * AsyncResult.result; subscribers must not modify them.
+ *
+ * {@hide}
+ */
+public final class RILEventPublisher {
+    public static final int POLICY_BUFFER = 0;
+    public static final int POLICY_DROP_OLDEST = 1;
+    public static final int POLICY_LATEST = 2;
+
+    public interface Subscriber {
+        /** Called from subscribe(), before any event. */
+        void onSubscribe(Subscription subscription);
+
+        /** Called on the subscription's Handler, once per requested event. */
+        void onNext(int response, Object event);
+    }
+
+    public interface Subscription {
+        /** Allows n more events to be delivered. */
+        void request(long n);
+
+        /** Stops delivery and drops queued events. */
+        void cancel();
+
+        /** Number of events dropped by the policy so far. */
+        long getDroppedCount();
+    }
+
+    //***** Instance Variables
+    private final int mResponse;
+    private final CopyOnWriteArrayList<SubscriptionImpl> mSubscriptions =
+            new CopyOnWriteArrayList<SubscriptionImpl>();
+
+    RILEventPublisher(int response) {
+        mResponse = response;
+    }
+
+    /** @return the RIL_UNSOL_* this publishes */
+    public int getResponse() {
+        return mResponse;
+    }
+
+    /**
+     * @param policy POLICY_*
+     * @param capacity events queued at most; POLICY_LATEST always keeps 1
+     * @param handler where onNext is called
+     */
+    public Subscription subscribe(Subscriber subscriber, int policy, int capacity,
+            Handler handler) {
+        if (policy < POLICY_BUFFER || policy > POLICY_LATEST) {
+            throw new IllegalArgumentException("policy " + policy);
+        }
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity " + capacity);
+        }
+
+        SubscriptionImpl s = new SubscriptionImpl(subscriber, policy,
+                (policy == POLICY_LATEST) ? 1 : capacity, handler);
+
+        mSubscriptions.add(s);
+        subscriber.onSubscribe(s);
+        return s;
+    }
+
+    boolean hasSubscribers() {
+        return !mSubscriptions.isEmpty();
+    }
+
+    /** Queues event for every subscriber. Never blocks. */
+    void publish(Object event) {
+        for (SubscriptionImpl s : mSubscriptions) {
+            s.offer(event);
+        }
+    }
+
+    //***** Inner Classes
+
+    private final class SubscriptionImpl implements Subscription, Runnable {
+        private final Subscriber mSubscriber;
+        private final int mPolicy;
+        private final int mCapacity;
+        private final Handler mHandler;
+
+        // Guarded by this
+        private final LinkedList<Object> mQueue = new LinkedList<Object>();
+        private long mDemand;
+        private long mDropped;
+        private boolean mPosted;
+        private boolean mCancelled;
+
+        SubscriptionImpl(Subscriber subscriber, int policy, int capacity, Handler handler) {
+            mSubscriber = subscriber;
+            mPolicy = policy;
+            mCapacity = capacity;
+            mHandler = handler;
+        }
+
+        void offer(Object event) {
+            synchronized (this) {
+                if (mCancelled) {
+                    return;
+                }
+
+                if (mQueue.size() >= mCapacity) {
+                    mDropped++;
+                    if (mPolicy == POLICY_BUFFER) {
+                        return;
+                    }
+                    mQueue.poll();
+                }
+                mQueue.add(event);
+
+                if (!schedule()) {
+                    return;
+                }
+            }
+            post();
+        }
+
+        public void request(long n) {
+            if (n <= 0) {
+                return;
+            }
+
+            synchronized (this) {
+                mDemand = (mDemand + n < 0) ? Long.MAX_VALUE : mDemand + n;
+                if (!schedule()) {
+                    return;
+                }
+            }
+            post();
+        }
+
+        public void cancel() {
+            synchronized (this) {
+                mCancelled = true;
+                mQueue.clear();
+            }
+            mSubscriptions.remove(this);
+        }
+
+        public synchronized long getDroppedCount() {
+            return mDropped;
+        }
+
+        /** Delivers queued events while there is demand. */
+        public void run() {
+            for (;;) {
+                Object event;
+
+                synchronized (this) {
+                    if (mCancelled || mDemand == 0 || mQueue.isEmpty()) {
+                        mPosted = false;
+                        return;
+                    }
+                    event = mQueue.poll();
+                    mDemand--;
+                }
+                mSubscriber.onNext(mResponse, event);
+            }
+        }
+
+        /**
+         * @return true if run() must be posted. Called with this locked.
+         */
+        private boolean schedule() {
+            if (mPosted || mDemand == 0 || mQueue.isEmpty()) {
+                return false;
+            }
+            mPosted = true;
+            return true;
+        }
+
+        /**
+         * Posts run() after schedule() said to. If the subscriber's looper
+         * has quit, clears mPosted so a later offer() or request() tries
+         * again instead of finding delivery already scheduled.
+         */
+        private void post() {
+            if (!mHandler.post(this)) {
+                synchronized (this) {
+                    mPosted = false;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,649 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import static com.android.internal.telephony.RILConstants.*;
+
+import android.net.LocalServerSocket;
+import android.net.LocalSocket;
+import android.net.LocalSocketAddress;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stand-in for rild, for measuring RIL throughput and latency on a
+ * device or emulator without a modem. It speaks the rild socket
+ * protocol: length-prefixed parcels, answered with RESPONSE_SOLICITED
+ * parcels carrying the serial, an errno and a payload.
+ *
+ * For each request type the payload, the latency and an error rate can
+ * be set; the common queries have working defaults and everything else
+ * gets an empty payload, i.e. a void response. Storms of unsolicited
+ * responses can be injected while a client is connected.
+ *
+ * Responses are written from a scheduler thread once their latency has
+ * passed, so they may overtake each other as with a real modem. That
+ * thread is the only writer and its writes block, so a client that
+ * stops reading holds up every later response and storm, and latencies
+ * shorter than a write are not honoured.
+ *
+ * Serve a RIL through {@link #start}, passing "@" and the same name as
+ * the socket name of the RIL, or for RIL.TRANSPORT_EVENT_LOOP through
+ * {@link #startTcp}, passing "127.0.0.1:" and the port. {@link #serve}
+ * is for other clients of the protocol, on any pair of streams.
+ *
+ * {@hide}
+ */
+public final class RILFakeRild {
+    static final String LOG_TAG = "RILFakeRild";
+
+    /** Request type meaning all requests without settings of their own. */
+    public static final int ANY_REQUEST = -1;
+
+    // SMS-DELIVER with its SMSC address, in the hex form rild sends it:
+    // "How are you?" from +31641600986
+    static final String SMS_DELIVER_PDU =
+            "07911326040000F0040B911346610089F60000208062917314080CC8F71D14969741F977FD07";
+
+    /**
+     * Response latency: uniform between min and max, except that with
+     * probability tailProbability it is tailMillis instead.
+     */
+    public static final class Latency {
+        final int mMinMillis;
+        final int mMaxMillis;
+        final double mTailProbability;
+        final int mTailMillis;
+
+        public Latency(int minMillis, int maxMillis, double tailProbability, int tailMillis) {
+            mMinMillis = minMillis;
+            mMaxMillis = Math.max(minMillis, maxMillis);
+            mTailProbability = tailProbability;
+            mTailMillis = tailMillis;
+        }
+
+        int
+    next(Random random) {
+            if (mTailProbability > 0 && random.nextDouble() < mTailProbability) {
+                return mTailMillis;
+            }
+            return mMinMillis + random.nextInt(mMaxMillis - mMinMillis + 1);
+        }
+    }
+
+    //***** Instance Variables
+    private final Random mRandom;
+
+    // Guarded by this; null while stopped
+    private ScheduledExecutorService mScheduler;
+
+    // Guarded by this
+    private final HashMap<Integer, byte[]> mPayloads = new HashMap<Integer, byte[]>();
+    private final HashMap<Integer, Latency> mLatencies = new HashMap<Integer, Latency>();
+    private final HashMap<Integer, double[]> mErrors = new HashMap<Integer, double[]>();
+
+    // The connected client; writes are synchronized on mWriteLock
+    private final Object mWriteLock = new Object();
+    private OutputStream mOut;
+    private final RILParcelWriter mWriter = new RILParcelWriter(RIL.RIL_MAX_COMMAND_BYTES);
+
+    // Guarded by this
+    private String mSocketName;
+    private LocalServerSocket mServerSocket;
+    private LocalSocket mClient;
+    private ServerSocket mTcpServerSocket;
+    private Socket mTcpClient;
+    private Thread mAcceptThread;
+    private volatile boolean mStopped;
+
+    // Statistics
+    private long mRequests;
+    private long mResponses;
+    private long mErrorsSent;
+    private long mUnsolicitedSent;
+
+    /**
+     * @param seed for the random latencies and errors, so runs repeat
+     */
+    public RILFakeRild(long seed) {
+        mRandom = new Random(seed);
+
+        int[] signal = { 20, 99, -1, -1, -1, -1, -1 };
+        setPayload(RIL_REQUEST_SIGNAL_STRENGTH, ints(signal, false));
+        setPayload(RIL_REQUEST_GET_CURRENT_CALLS, ints(new int[0], true));
+        setPayload(RIL_REQUEST_REGISTRATION_STATE,
+                strings(new String[] { "1", "1a2b", "0000c3f1", "3" }));
+        setPayload(RIL_REQUEST_GPRS_REGISTRATION_STATE,
+                strings(new String[] { "1", "1a2b", "0000c3f1", "3" }));
+        setPayload(RIL_REQUEST_OPERATOR, strings(new String[] { "Fake", "Fake", "00101" }));
+        setPayload(RIL_REQUEST_GET_IMSI, string("001010123456789"));
+        setPayload(RIL_REQUEST_GET_IMEI, string("000000000000000"));
+        setPayload(RIL_REQUEST_GET_IMEISV, string("00"));
+        setPayload(RIL_REQUEST_BASEBAND_VERSION, string("fake-rild"));
+        setPayload(RIL_REQUEST_QUERY_NETWORK_SELECTION_MODE, ints(new int[] { 0 }, true));
+        setPayload(RIL_REQUEST_GET_NEIGHBORING_CELL_IDS, ints(new int[0], true));
+        setPayload(RIL_REQUEST_DATA_CALL_LIST, ints(new int[0], true));
+        setPayload(RIL_REQUEST_SETUP_DATA_CALL,
+                strings(new String[] { "1", "rmnet0", "10.0.0.2" }));
+        setPayload(RIL_REQUEST_GET_SIM_STATUS, simStatusReady());
+    }
+
+    //***** Payloads
+
+    /** @return the ints in parcel form, with a count first if counted */
+    public static byte[]
+    ints(int[] values, boolean counted) {
+        RILParcelWriter w = new RILParcelWriter(4 * values.length + 4);
+
+        if (counted) {
+            w.writeIntArray(values);
+        } else {
+            for (int i = 0; i < values.length; i++) {
+                w.writeInt(values[i]);
+            }
+        }
+        return w.toByteArray();
+    }
+
+    public static byte[]
+    string(String value) {
+        RILParcelWriter w = new RILParcelWriter(64);
+
+        w.writeString(value);
+        return w.toByteArray();
+    }
+
+    public static byte[]
+    strings(String[] values) {
+        RILParcelWriter w = new RILParcelWriter(64);
+
+        w.writeStringArray(values);
+        return w.toByteArray();
+    }
+
+    /**
+     * Sets the payload of successful responses to request, in parcel
+     * form, e.g. from {@link #ints} or {@link #strings}.
+     */
+    public synchronized void
+    setPayload(int request, byte[] payload) {
+        mPayloads.put(request, payload);
+    }
+
+    /** Sets the latency of request, or of ANY_REQUEST. */
+    public synchronized void
+    setLatency(int request, Latency latency) {
+        mLatencies.put(request, latency);
+    }
+
+    /**
+     * Makes a share of the responses to request, or to ANY_REQUEST,
+     * fail with errno, without payload.
+     */
+    public synchronized void
+    setErrorRate(int request, double probability, int errno) {
+        mErrors.put(request, new double[] { probability, errno });
+    }
+
+    //***** Serving
+
+    /**
+     * Serves RIL on the socket in the abstract namespace, one connection
+     * at a time, until stop(). The RIL is given "@" + socketName. May be
+     * called again after stop().
+     */
+    public synchronized void
+    start(String socketName) throws IOException {
+        if (mAcceptThread != null) {
+            throw new IllegalStateException("already started");
+        }
+
+        final LocalServerSocket server = new LocalServerSocket(socketName);
+
+        mSocketName = socketName;
+        mServerSocket = server;
+        mStopped = false;
+        startScheduler();
+
+        mAcceptThread = new Thread("RILFakeRild") {
+            @Override
+            public void run() {
+                while (!mStopped) {
+                    LocalSocket s = null;
+
+                    try {
+                        s = server.accept();
+                        synchronized (RILFakeRild.this) {
+                            if (mStopped) {
+                                break;
+                            }
+                            mClient = s;
+                        }
+                        serve(s.getInputStream(), s.getOutputStream());
+                    } catch (IOException ex) {
+                        if (!mStopped) {
+                            Log.w(LOG_TAG, "connection ended", ex);
+                        }
+                    } finally {
+                        synchronized (RILFakeRild.this) {
+                            if (mClient == s) {
+                                mClient = null;
+                            }
+                        }
+                        try {
+                            if (s != null) {
+                                s.close();
+                            }
+                        } catch (IOException ex) {
+                        }
+                    }
+                }
+            }
+        };
+        mAcceptThread.start();
+    }
+
+    /**
+     * Serves RIL over TCP on the loopback interface, one connection at a
+     * time, until stop(). Otherwise as start().
+     *
+     * @param port port to listen on, or 0 for any free one
+     * @return the port listened on
+     */
+    public synchronized int
+    startTcp(int port) throws IOException {
+        if (mAcceptThread != null) {
+            throw new IllegalStateException("already started");
+        }
+
+        final ServerSocket server = new ServerSocket(port, 1, InetAddress.getByName("127.0.0.1"));
+
+        mTcpServerSocket = server;
+        mStopped = false;
+        startScheduler();
+
+        mAcceptThread = new Thread("RILFakeRild") {
+            @Override
+            public void run() {
+                while (!mStopped) {
+                    Socket s = null;
+
+                    try {
+                        s = server.accept();
+                        s.setTcpNoDelay(true);
+                        synchronized (RILFakeRild.this) {
+                            if (mStopped) {
+                                break;
+                            }
+                            mTcpClient = s;
+                        }
+                        serve(s.getInputStream(), s.getOutputStream());
+                    } catch (IOException ex) {
+                        if (!mStopped) {
+                            Log.w(LOG_TAG, "connection ended", ex);
+                        }
+                    } finally {
+                        synchronized (RILFakeRild.this) {
+                            if (mTcpClient == s) {
+                                mTcpClient = null;
+                            }
+                        }
+                        try {
+                            if (s != null) {
+                                s.close();
+                            }
+                        } catch (IOException ex) {
+                        }
+                    }
+                }
+            }
+        };
+        mAcceptThread.start();
+        return server.getLocalPort();
+    }
+
+    /**
+     * Stops serving: drops the scheduled responses, disconnects the
+     * client and waits for the thread of start() to end.
+     */
+    public void
+    stop() {
+        String socketName;
+        LocalServerSocket server;
+        LocalSocket client;
+        ServerSocket tcpServer;
+        Socket tcpClient;
+        Thread acceptThread;
+        ScheduledExecutorService scheduler;
+
+        synchronized (this) {
+            mStopped = true;
+            socketName = mSocketName;
+            server = mServerSocket;
+            client = mClient;
+            tcpServer = mTcpServerSocket;
+            tcpClient = mTcpClient;
+            acceptThread = mAcceptThread;
+            scheduler = mScheduler;
+            mServerSocket = null;
+            mClient = null;
+            mTcpServerSocket = null;
+            mTcpClient = null;
+            mAcceptThread = null;
+            mScheduler = null;
+        }
+
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+
+        // Ends the read of serve()
+        if (client != null) {
+            try {
+                client.shutdownInput();
+                client.close();
+            } catch (IOException ex) {
+            }
+        }
+
+        if (tcpClient != null) {
+            try {
+                tcpClient.shutdownInput();
+                tcpClient.close();
+            } catch (IOException ex) {
+            }
+        }
+
+        // Unlike a LocalServerSocket, this ends a pending accept()
+        if (tcpServer != null) {
+            try {
+                tcpServer.close();
+            } catch (IOException ex) {
+            }
+        }
+
+        if (server != null) {
+            // Closing the server socket doesn't end a pending accept(),
+            // a connection does
+            LocalSocket wakeup = new LocalSocket();
+            try {
+                wakeup.connect(new LocalSocketAddress(socketName,
+                        LocalSocketAddress.Namespace.ABSTRACT));
+            } catch (IOException ex) {
+            }
+            try {
+                wakeup.close();
+                server.close();
+            } catch (IOException ex) {
+            }
+        }
+
+        if (acceptThread != null) {
+            try {
+                acceptThread.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Reads requests from in and answers them on out, until in ends.
+     */
+    public void
+    serve(InputStream in, OutputStream out) throws IOException {
+        RILFrameReader reader = new RILFrameReader(RIL.RIL_MAX_COMMAND_BYTES,
+                RIL.RIL_MAX_COMMAND_BYTES);
+        RILParcelCursor p = new RILParcelCursor();
+
+        startScheduler();
+        synchronized (mWriteLock) {
+            mOut = out;
+        }
+
+        try {
+            reader.setInputStream(in);
+
+            for (;;) {
+                int length = reader.next();
+
+                if (length < 0) {
+                    break;
+                }
+
+                p.reset(reader.buffer(), reader.frameOffset(), length);
+                onRequest(p.readInt(), p.readInt());
+            }
+        } finally {
+            synchronized (mWriteLock) {
+                mOut = null;
+            }
+        }
+    }
+
+    /**
+     * Sends count unsolicited responses, one every intervalMillis, to
+     * the client connected then.
+     *
+     * @param payload in parcel form; null gives a signal strength that
+     *        changes every time for RIL_UNSOL_SIGNAL_STRENGTH, a GSM
+     *        SMS-DELIVER PDU for RIL_UNSOL_RESPONSE_NEW_SMS, a list of
+     *        one active data call for RIL_UNSOL_DATA_CALL_LIST_CHANGED
+     *        and no payload for other responses
+     */
+    public void
+    injectStorm(final int response, final byte[] payload, int count,
+            int intervalMillis) {
+        for (int i = 0; i < count; i++) {
+            final int n = i;
+
+            schedule(new Runnable() {
+                public void run() {
+                    byte[] data = payload;
+
+                    if (data == null) {
+                        switch (response) {
+                            case RIL_UNSOL_SIGNAL_STRENGTH:
+                                data = ints(new int[] { n % 32, 99, -1, -1, -1, -1, -1 },
+                                        false);
+                                break;
+                            case RIL_UNSOL_RESPONSE_NEW_SMS:
+                                data = string(SMS_DELIVER_PDU);
+                                break;
+                            case RIL_UNSOL_DATA_CALL_LIST_CHANGED:
+                                data = dataCallListActive();
+                                break;
+                        }
+                    }
+                    writeUnsolicited(response, data);
+                }
+            }, (long) i * intervalMillis);
+        }
+    }
+
+    @Override
+    public synchronized String
+    toString() {
+        return "fake rild: requests=" + mRequests + " responses=" + mResponses
+                + " errors=" + mErrorsSent + " unsolicited=" + mUnsolicitedSent;
+    }
+
+    //***** Private Methods
+
+    private void
+    onRequest(final int request, final int serial) {
+        final byte[] payload;
+        final int error;
+        int delay;
+
+        synchronized (this) {
+            mRequests++;
+
+            double[] errorRate = lookup(mErrors, request);
+            if (errorRate != null && mRandom.nextDouble() < errorRate[0]) {
+                error = (int) errorRate[1];
+                payload = null;
+            } else {
+                error = 0;
+                payload = mPayloads.get(request);
+            }
+
+            Latency latency = lookup(mLatencies, request);
+            delay = (latency == null) ? 0 : latency.next(mRandom);
+        }
+
+        schedule(new Runnable() {
+            public void run() {
+                writeSolicited(serial, error, payload);
+            }
+        }, delay);
+    }
+
+    private synchronized void
+    startScheduler() {
+        if (mScheduler == null) {
+            mScheduler = Executors.newSingleThreadScheduledExecutor();
+        }
+    }
+
+    /** Runs r on the scheduler after delayMillis, unless stopped. */
+    private void
+    schedule(Runnable r, long delayMillis) {
+        ScheduledExecutorService scheduler;
+
+        synchronized (this) {
+            scheduler = mScheduler;
+        }
+        if (scheduler == null) {
+            return;
+        }
+
+        try {
+            scheduler.schedule(r, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ex) {
+            // Stopped meanwhile
+        }
+    }
+
+    private <T> T
+    lookup(HashMap<Integer, T> map, int request) {
+        T value = map.get(request);
+
+        return (value != null) ? value : map.get(ANY_REQUEST);
+    }
+
+    private void
+    writeSolicited(int serial, int error, byte[] payload) {
+        synchronized (mWriteLock) {
+            mWriter.reset();
+            mWriter.writeInt(RIL.RESPONSE_SOLICITED);
+            mWriter.writeInt(serial);
+            mWriter.writeInt(error);
+            if (payload != null) {
+                mWriter.writeRaw(payload, 0, payload.length);
+            }
+            write();
+        }
+
+        synchronized (this) {
+            mResponses++;
+            if (error != 0) {
+                mErrorsSent++;
+            }
+        }
+    }
+
+    private void
+    writeUnsolicited(int response, byte[] payload) {
+        synchronized (mWriteLock) {
+            mWriter.reset();
+            mWriter.writeInt(RIL.RESPONSE_UNSOLICITED);
+            mWriter.writeInt(response);
+            if (payload != null) {
+                mWriter.writeRaw(payload, 0, payload.length);
+            }
+            write();
+        }
+
+        synchronized (this) {
+            mUnsolicitedSent++;
+        }
+    }
+
+    /** Called with mWriteLock held. */
+    private void
+    write() {
+        if (mOut == null) {
+            return;
+        }
+
+        try {
+            mOut.write(mWriter.buffer(), 0, mWriter.frame());
+            mOut.flush();
+        } catch (IOException ex) {
+            Log.w(LOG_TAG, "write failed", ex);
+            mOut = null;
+        }
+    }
+
+    /** A SIM application that is ready, for RIL_REQUEST_GET_SIM_STATUS. */
+    private static byte[]
+    simStatusReady() {
+        RILParcelWriter w = new RILParcelWriter(64);
+
+        w.writeInt(1);      // card state: present
+        w.writeInt(0);      // universal PIN state
+        w.writeInt(0);      // GSM/UMTS application index
+        w.writeInt(-1);     // CDMA application index
+        w.writeInt(1);      // number of applications
+        w.writeInt(1);      // application type: SIM
+        w.writeInt(5);      // application state: ready
+        w.writeInt(0);      // perso substate
+        w.writeString("");  // AID
+        w.writeString("");  // label
+        w.writeInt(0);      // PIN1 replaced
+        w.writeInt(0);      // PIN1 state
+        w.writeInt(0);      // PIN2 state
+        return w.toByteArray();
+    }
+
+    /** One active IP data call, for RIL_UNSOL_DATA_CALL_LIST_CHANGED. */
+    private static byte[]
+    dataCallListActive() {
+        RILParcelWriter w = new RILParcelWriter(64);
+
+        w.writeInt(1);                  // number of data calls
+        w.writeInt(1);                  // cid
+        w.writeInt(2);                  // active: link up
+        w.writeString("IP");            // type
+        w.writeString("internet");      // APN
+        w.writeString("10.0.0.2");      // address
+        return w.toByteArray();
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Splits the rild byte stream into RIL messages. A RIL message consists
+ * of a 4-byte big-endian length and a subsequent series of bytes.
+ *
+ * Each read() asks for as much as the buffer can hold, and every complete
+ * message already buffered is handed out before the stream is read
+ * again, so a burst of unsolicited messages costs one read instead of
+ * two per message. A message that is cut off at the end of a read is
+ * moved to the front of the buffer and completed by the next read, so
+ * each message is always contiguous in {@link #buffer()}.
+ *
+ * It reads either a blocking InputStream or a non-blocking channel; in
+ * the latter case {@link #next()} returns NEED_MORE once the channel
+ * has nothing more to give.
+ *
+ * {@hide}
+ */
+final class RILFrameReader {
+    private static final int HEADER_SIZE = 4;
+
+    /** Returned by next() when a non-blocking channel has no more data. */
+    static final int NEED_MORE = -2;
+
+    //***** Instance Variables
+    private final byte[] mBuffer;
+    private final int mMaxFrameLength;
+    private InputStream mInputStream;
+    private ReadableByteChannel mChannel;
+    private ByteBuffer mChannelBuffer;
+    // The last channel read didn't fill the buffer, so the channel is
+    // most likely empty and reading it again can wait for the caller
+    private boolean mChannelDrained;
+
+    // Unconsumed bytes are mBuffer[mStart, mEnd)
+    private int mStart;
+    private int mEnd;
+    private int mFrameOffset;
+
+    // Statistics, cumulative across streams
+    private long mReadCount;
+    private long mFrameCount;
+    private long mByteCount;
+    private int mFramesThisRead;
+    private int mMaxFramesPerRead;
+
+    /**
+     * @param maxFrameLength largest message body that will be accepted
+     * @param bufferSize bytes to read at a time; raised if needed to fit
+     *        one maximum size message with its header
+     */
+    RILFrameReader(int maxFrameLength, int bufferSize) {
+        mMaxFrameLength = maxFrameLength;
+        mBuffer = new byte[Math.max(bufferSize, maxFrameLength + HEADER_SIZE)];
+    }
+
+    /**
+     * Starts reading from a new stream, discarding anything buffered
+     * from the previous one.
+     */
+    void setInputStream(InputStream is) {
+        mInputStream = is;
+        mChannel = null;
+        mStart = mEnd = 0;
+        mFramesThisRead = 0;
+    }
+
+    /**
+     * Starts reading from a channel, which may be non-blocking,
+     * discarding anything buffered from the previous stream.
+     */
+    void setChannel(ReadableByteChannel channel) {
+        if (mChannelBuffer == null) {
+            mChannelBuffer = ByteBuffer.wrap(mBuffer);
+        }
+        mInputStream = null;
+        mChannel = channel;
+        mChannelDrained = false;
+        mStart = mEnd = 0;
+        mFramesThisRead = 0;
+    }
+
+    /**
+     * Returns the length of the next message, less header. The message
+     * itself is in {@link #buffer()} starting at {@link #frameOffset()}
+     * and is valid until the next call. A return value of -1 indicates
+     * end-of-stream, and NEED_MORE that a non-blocking channel has no
+     * complete message buffered; anything partial is kept for the next
+     * call.
+     *
+     * @throws IOException on read failure or an invalid length header
+     */
+    int next() throws IOException {
+        for (;;) {
+            int avail = mEnd - mStart;
+
+            if (avail >= HEADER_SIZE) {
+                int messageLength = ((mBuffer[mStart] & 0xff) << 24)
+                        | ((mBuffer[mStart + 1] & 0xff) << 16)
+                        | ((mBuffer[mStart + 2] & 0xff) << 8)
+                        | (mBuffer[mStart + 3] & 0xff);
+
+                if (messageLength < 0 || messageLength > mMaxFrameLength) {
+                    throw new IOException("Invalid RIL message length " + messageLength);
+                }
+
+                if (avail >= HEADER_SIZE + messageLength) {
+                    mFrameOffset = mStart + HEADER_SIZE;
+                    mStart = mFrameOffset + messageLength;
+
+                    mFrameCount++;
+                    if (++mFramesThisRead > mMaxFramesPerRead) {
+                        mMaxFramesPerRead = mFramesThisRead;
+                    }
+                    return messageLength;
+                }
+
+                if (mStart + HEADER_SIZE + messageLength > mBuffer.length) {
+                    compact();
+                }
+            } else if (mStart + HEADER_SIZE > mBuffer.length) {
+                compact();
+            }
+
+            if (mStart == mEnd) {
+                mStart = mEnd = 0;
+            }
+
+            int countRead;
+
+            if (mChannel != null) {
+                if (mChannelDrained) {
+                    mChannelDrained = false;
+                    return NEED_MORE;
+                }
+
+                mChannelBuffer.limit(mBuffer.length);
+                mChannelBuffer.position(mEnd);
+                countRead = mChannel.read(mChannelBuffer);
+                mChannelDrained = (countRead >= 0) && (mEnd + countRead < mBuffer.length);
+            } else {
+                countRead = mInputStream.read(mBuffer, mEnd, mBuffer.length - mEnd);
+            }
+
+            if (countRead == 0) {
+                return NEED_MORE;
+            }
+
+            if (countRead < 0) {
+                if (mEnd != mStart) {
+                    Log.e(RIL.LOG_TAG, "Hit EOS reading message. remaining="
+                            + (mEnd - mStart));
+                }
+                return -1;
+            }
+
+            mReadCount++;
+            mByteCount += countRead;
+            mFramesThisRead = 0;
+            mEnd += countRead;
+        }
+    }
+
+    byte[] buffer() {
+        return mBuffer;
+    }
+
+    int frameOffset() {
+        return mFrameOffset;
+    }
+
+    /** Number of read() calls that returned data. */
+    long getReadCount() {
+        return mReadCount;
+    }
+
+    /** Number of complete messages returned by next(). */
+    long getFrameCount() {
+        return mFrameCount;
+    }
+
+    long getByteCount() {
+        return mByteCount;
+    }
+
+    /** Most messages sliced out of the data returned by a single read(). */
+    int getMaxFramesPerRead() {
+        return mMaxFramesPerRead;
+    }
+
+    //***** Private Methods
+
+    private void compact() {
+        int avail = mEnd - mStart;
+
+        System.arraycopy(mBuffer, mStart, mBuffer, 0, avail);
+        mStart = 0;
+        mEnd = avail;
+    }
+}
@@ -0,0 +1,284 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Result of a RIL request made through one of the *Async methods of
+ * RIL, as an alternative to a Message sent to a Handler.
+ *
+ * The future is completed on the Handler given at construction, which
+ * for RIL is the thread that delivers RIL results, so listeners never
+ * run under a RIL lock and may issue the next request of a sequence,
+ * but must not block; get() throws IllegalStateException on that
+ * thread rather than wait forever. A failed request completes with the
+ * CommandException of the error, which get() wraps in an
+ * ExecutionException.
+ *
+ * A sequence is chained with {@link #then}, each step starting once
+ * the previous one has succeeded, e.g. to unlock the SIM, check that it
+ * is ready and read the IMSI:
+ *
+ * <pre>
+ * RILFuture&lt;String&gt; imsi = ril.supplyIccPinAsync(pin)
+ *     .then(new RILFuture.Step&lt;int[], IccCardStatus&gt;() {
+ *         public RILFuture&lt;IccCardStatus&gt; next(int[] retries) {
+ *             return ril.getIccCardStatusAsync();
+ *         }
+ *     })
+ *     .then(new RILFuture.Step&lt;IccCardStatus, String&gt;() {
+ *         public RILFuture&lt;String&gt; next(IccCardStatus status) {
+ *             return ril.getIMSIAsync();
+ *         }
+ *     });
+ * </pre>
+ *
+ * Cancelling only discards the result; the request is not withdrawn
+ * from rild.
+ *
+ * {@hide}
+ */
+public final class RILFuture<T> implements Future<T> {
+    /**
+     * Called once the future is done, whether completed or cancelled.
+     */
+    public interface Listener<T> {
+        void onComplete(RILFuture<T> future);
+    }
+
+    /**
+     * A step of a sequence, see {@link #then}.
+     */
+    public interface Step<T, U> {
+        /**
+         * Called with the result of the previous step once it has
+         * succeeded, on the thread that completes futures unless it
+         * already had when then() was called.
+         *
+         * @return the future of this step, not null
+         */
+        RILFuture<U> next(T result);
+    }
+
+    //***** Instance Variables
+    // Thread on which completion takes effect and listeners run
+    private final Handler mHandler;
+    private boolean mDone;
+    private boolean mCancelled;
+    private T mResult;
+    private Throwable mException;
+    // Listeners added before completion; null once done
+    private ArrayList<Listener<T>> mListeners = new ArrayList<Listener<T>>(1);
+
+    RILFuture(Handler handler) {
+        mHandler = handler;
+    }
+
+    /**
+     * Calls listener once the future is done, right away if it
+     * already is.
+     */
+    public void addListener(Listener<T> listener) {
+        synchronized (this) {
+            if (!mDone) {
+                mListeners.add(listener);
+                return;
+            }
+        }
+        listener.onComplete(this);
+    }
+
+    /**
+     * Runs step once this future succeeds.
+     *
+     * @return a future completed with the outcome of the future step
+     *         returns, or failed or cancelled as soon as this one is, or
+     *         step throws; cancelling it stops the sequence before its
+     *         next step
+     */
+    public <U> RILFuture<U> then(final Step<? super T, U> step) {
+        final RILFuture<U> chained = new RILFuture<U>(mHandler);
+
+        addListener(new Listener<T>() {
+            public void onComplete(RILFuture<T> future) {
+                if (chained.isDone()) {
+                    return;
+                }
+                if (future.isCancelled()) {
+                    chained.cancel(false);
+                    return;
+                }
+                if (future.getException() != null) {
+                    chained.complete(null, future.getException());
+                    return;
+                }
+
+                try {
+                    step.next(future.getResult()).addListener(new Listener<U>() {
+                        public void onComplete(RILFuture<U> done) {
+                            if (done.isCancelled()) {
+                                chained.cancel(false);
+                            } else {
+                                chained.complete(done.getResult(), done.getException());
+                            }
+                        }
+                    });
+                } catch (RuntimeException ex) {
+                    chained.complete(null, ex);
+                }
+            }
+        });
+        return chained;
+    }
+
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return finish(null, null, true);
+    }
+
+    public synchronized boolean isCancelled() {
+        return mCancelled;
+    }
+
+    public synchronized boolean isDone() {
+        return mDone;
+    }
+
+    public synchronized T get() throws InterruptedException, ExecutionException {
+        checkNotCompletingThread();
+        while (!mDone) {
+            wait();
+        }
+        return getDoneResult();
+    }
+
+    public synchronized T get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        checkNotCompletingThread();
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+        while (!mDone) {
+            long remaining = deadline - System.nanoTime();
+
+            if (remaining <= 0) {
+                throw new TimeoutException();
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return getDoneResult();
+    }
+
+    /**
+     * For use once done, e.g. from a Listener.
+     *
+     * @return the result, or null if the request failed or was cancelled
+     */
+    public synchronized T getResult() {
+        return mResult;
+    }
+
+    /**
+     * For use once done, e.g. from a Listener.
+     *
+     * @return the CommandException or other cause of the failure, or null
+     */
+    public synchronized Throwable getException() {
+        return mException;
+    }
+
+    /**
+     * Completes the future with the response to the request on mHandler;
+     * ignored if it was cancelled. May be called with RIL locks held,
+     * except on mHandler's thread, where it completes right away.
+     */
+    @SuppressWarnings("unchecked")
+    void complete(Object ret, Throwable ex) {
+        final T result = (ex == null) ? (T) ret : null;
+        final Throwable exception = ex;
+
+        if (Looper.myLooper() == mHandler.getLooper()) {
+            // No need to go round the queue, e.g. from a Step
+            finish(result, exception, false);
+            return;
+        }
+
+        Runnable r = new Runnable() {
+            public void run() {
+                finish(result, exception, false);
+            }
+        };
+
+        if (!mHandler.post(r)) {
+            // The looper has quit; don't leave get() waiting forever
+            r.run();
+        }
+    }
+
+    //***** Private Methods
+
+    /**
+     * get() on mHandler's thread would wait for a completion that can
+     * only run once it returns.
+     */
+    private void checkNotCompletingThread() {
+        if (Looper.myLooper() == mHandler.getLooper()) {
+            throw new IllegalStateException(
+                    "get() on the thread that completes the future would never return");
+        }
+    }
+
+    private boolean finish(T result, Throwable ex, boolean cancel) {
+        ArrayList<Listener<T>> listeners;
+
+        synchronized (this) {
+            if (mDone) {
+                return false;
+            }
+
+            mDone = true;
+            mCancelled = cancel;
+            mResult = result;
+            mException = ex;
+            listeners = mListeners;
+            mListeners = null;
+            notifyAll();
+        }
+
+        for (int i = 0, s = listeners.size(); i < s; i++) {
+            listeners.get(i).onComplete(this);
+        }
+        return true;
+    }
+
+    private T getDoneResult() throws ExecutionException {
+        if (mCancelled) {
+            throw new CancellationException();
+        }
+        if (mException != null) {
+            throw new ExecutionException(mException);
+        }
+        return mResult;
+    }
+}
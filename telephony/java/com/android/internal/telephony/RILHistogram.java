@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-size histogram of non-negative values with log-linear buckets:
+ * values below 8 have a bucket each, and every power of two above that
+ * is split into 8 equal buckets, so any recorded value is known to
+ * within 12.5%. Recording never allocates or locks.
+ *
+ * Readers don't lock either, so a reading taken while values are being
+ * recorded may miss some of them; percentiles are taken from one copy of
+ * the buckets and are consistent with each other.
+ *
+ * {@hide}
+ */
+final class RILHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // Values of 2^MAX_EXPONENT and above share an extra last bucket
+    private static final int MAX_EXPONENT = 40;
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + 1;
+
+    //***** Instance Variables
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    void
+    record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+
+        mCounts.incrementAndGet(bucketOf(value));
+        mCount.incrementAndGet();
+        mSum.addAndGet(value);
+
+        long max = mMax.get();
+        while (value > max && !mMax.compareAndSet(max, value)) {
+            max = mMax.get();
+        }
+    }
+
+    long
+    getCount() {
+        return mCount.get();
+    }
+
+    long
+    getMax() {
+        return mMax.get();
+    }
+
+    long
+    getMean() {
+        long count = mCount.get();
+
+        return (count == 0) ? 0 : mSum.get() / count;
+    }
+
+    /**
+     * @param percentile 0 to 100
+     * @return the upper bound of the bucket holding that percentile of
+     *         the recorded values, or 0 if nothing was recorded
+     */
+    long
+    getPercentile(double percentile) {
+        long[] counts = new long[BUCKETS];
+        long count = 0;
+
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = mCounts.get(i);
+            count += counts[i];
+        }
+        if (count == 0) {
+            return 0;
+        }
+
+        long max = mMax.get();
+        long rank = (long) Math.ceil(count * percentile / 100);
+        long seen = 0;
+
+        if (rank < 1) {
+            rank = 1;
+        }
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(upperBoundOf(i), max);
+            }
+        }
+        return max;
+    }
+
+    /** @return a copy that later recording does not change */
+    RILHistogram
+    snapshot() {
+        RILHistogram h = new RILHistogram();
+
+        for (int i = 0; i < BUCKETS; i++) {
+            h.mCounts.set(i, mCounts.get(i));
+        }
+        h.mCount.set(mCount.get());
+        h.mSum.set(mSum.get());
+        h.mMax.set(mMax.get());
+        return h;
+    }
+
+    /** Values recorded meanwhile may be partly kept. */
+    void
+    reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            mCounts.set(i, 0);
+        }
+        mCount.set(0);
+        mSum.set(0);
+        mMax.set(0);
+    }
+
+    @Override
+    public String
+    toString() {
+        return "n=" + getCount() + " mean=" + getMean()
+                + " p50=" + getPercentile(50) + " p90=" + getPercentile(90)
+                + " p99=" + getPercentile(99) + " max=" + getMax();
+    }
+
+    //***** Private Methods
+
+    private static int
+    bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent >= MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+
+        int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    private static long
+    upperBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        if (bucket == BUCKETS - 1) {
+            return Long.MAX_VALUE;
+        }
+
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long sub = bucket % SUB_BUCKETS;
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+
+        return ((SUB_BUCKETS + sub) << (exponent - SUB_BUCKET_BITS)) + width - 1;
+    }
+}
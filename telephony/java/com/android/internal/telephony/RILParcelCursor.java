@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.os.Parcel;
+
+/**
+ * Read-only view of a marshalled Parcel held in a byte array, used to
+ * decode RIL responses straight out of the receive buffer instead of
+ * copying each message into a Parcel first.
+ *
+ * Implements the reads RIL uses with the same wire format as Parcel:
+ * little-endian 32 and 64 bit values, UTF-16 strings with a char count
+ * (-1 for null) and a terminating NUL, and byte arrays with a length,
+ * all padded to 4 bytes. As with Parcel, reading past the end returns
+ * 0 or null rather than throwing.
+ *
+ * A cursor is only valid until the buffer it wraps is refilled.
+ *
+ * {@hide}
+ */
+final class RILParcelCursor {
+    //***** Instance Variables
+    private byte[] mData;
+    private int mStart;
+    private int mEnd;
+    private int mPos;
+    private char[] mChars = new char[64];
+
+    RILParcelCursor() {
+    }
+
+    RILParcelCursor(byte[] data, int offset, int length) {
+        reset(data, offset, length);
+    }
+
+    /**
+     * Points the cursor at data[offset, offset + length), positioned at
+     * the start.
+     */
+    void reset(byte[] data, int offset, int length) {
+        mData = data;
+        mStart = offset;
+        mEnd = offset + length;
+        mPos = offset;
+    }
+
+    int dataSize() {
+        return mEnd - mStart;
+    }
+
+    int dataAvail() {
+        return mEnd - mPos;
+    }
+
+    int dataPosition() {
+        return mPos - mStart;
+    }
+
+    void setDataPosition(int pos) {
+        mPos = mStart + pos;
+    }
+
+    int readInt() {
+        if (mEnd - mPos < 4) {
+            return 0;
+        }
+
+        int v = getInt(mPos);
+        mPos += 4;
+        return v;
+    }
+
+    long readLong() {
+        if (mEnd - mPos < 8) {
+            return 0;
+        }
+
+        long lo = getInt(mPos) & 0xffffffffL;
+        long hi = getInt(mPos + 4);
+        mPos += 8;
+        return (hi << 32) | lo;
+    }
+
+    String readString() {
+        int length = readInt();
+
+        if (length < 0) {
+            return null;
+        }
+
+        // length chars plus the NUL, padded to 4 bytes
+        int size = pad((length + 1) * 2);
+        if (length >= Integer.MAX_VALUE / 2 || size > mEnd - mPos) {
+            return null;
+        }
+
+        if (mChars.length < length) {
+            mChars = new char[Math.max(length, mChars.length * 2)];
+        }
+        for (int i = 0, p = mPos; i < length; i++, p += 2) {
+            mChars[i] = (char) ((mData[p] & 0xff) | ((mData[p + 1] & 0xff) << 8));
+        }
+        mPos += size;
+
+        return new String(mChars, 0, length);
+    }
+
+    /**
+     * Like {@link #readString()}, but returns reuse instead of a new
+     * String when the next string on the wire is equal to it, so that
+     * values which rarely change can be decoded without allocating.
+     */
+    String readString(String reuse) {
+        if (reuse == null || mEnd - mPos < 4 || getInt(mPos) != reuse.length()) {
+            return readString();
+        }
+
+        int length = reuse.length();
+        int size = pad((length + 1) * 2);
+        if (size > mEnd - mPos - 4) {
+            return readString();
+        }
+
+        for (int i = 0, p = mPos + 4; i < length; i++, p += 2) {
+            char c = (char) ((mData[p] & 0xff) | ((mData[p + 1] & 0xff) << 8));
+
+            if (c != reuse.charAt(i)) {
+                return readString();
+            }
+        }
+        mPos += 4 + size;
+
+        return reuse;
+    }
+
+    String[] readStringArray() {
+        int n = readInt();
+
+        if (n < 0) {
+            return null;
+        }
+
+        // Every string takes at least 4 bytes, so a larger count is garbage
+        if (n > (mEnd - mPos) / 4) {
+            throw new RuntimeException("Invalid string array length " + n);
+        }
+
+        String[] array = new String[n];
+        for (int i = 0; i < n; i++) {
+            array[i] = readString();
+        }
+        return array;
+    }
+
+    byte[] createByteArray() {
+        int n = readInt();
+
+        if (n < 0 || n > mEnd - mPos) {
+            return null;
+        }
+
+        byte[] array = new byte[n];
+        System.arraycopy(mData, mPos, array, 0, n);
+        mPos += Math.min(pad(n), mEnd - mPos);
+        return array;
+    }
+
+    /** Advances past a byte array without copying it. */
+    void skipByteArray() {
+        int n = readInt();
+
+        if (n > 0) {
+            mPos += Math.min(pad(n), mEnd - mPos);
+        }
+    }
+
+    /**
+     * Copies the unread part of the message into a Parcel, for decoders
+     * that only accept a Parcel. Pass the result to
+     * {@link #recycleParcel} to advance past what was read from it.
+     */
+    Parcel obtainParcel() {
+        Parcel p = Parcel.obtain();
+
+        p.unmarshall(mData, mPos, mEnd - mPos);
+        p.setDataPosition(0);
+        return p;
+    }
+
+    void recycleParcel(Parcel p) {
+        mPos += p.dataPosition();
+        p.recycle();
+    }
+
+    //***** Private Methods
+
+    private int getInt(int p) {
+        return (mData[p] & 0xff)
+                | ((mData[p + 1] & 0xff) << 8)
+                | ((mData[p + 2] & 0xff) << 16)
+                | ((mData[p + 3] & 0xff) << 24);
+    }
+
+    private static int pad(int size) {
+        return (size + 3) & ~3;
+    }
+}
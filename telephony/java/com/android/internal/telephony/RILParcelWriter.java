@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+/**
+ * Builds a RIL request in the marshalled Parcel format directly into a
+ * byte array that is reused for the life of the owning RILRequest.
+ *
+ * The first 4 bytes are reserved for the big-endian length that rild
+ * expects in front of every message, so once {@link #frame} has filled
+ * it in the whole message can be written to the socket as is. The
+ * write methods produce the same bytes as the Parcel methods of the
+ * same name.
+ *
+ * {@hide}
+ */
+final class RILParcelWriter {
+    static final int HEADER_SIZE = 4;
+
+    //***** Instance Variables
+    private byte[] mData;
+    private int mPos;
+
+    RILParcelWriter(int capacity) {
+        mData = new byte[Math.max(capacity, HEADER_SIZE)];
+        mPos = HEADER_SIZE;
+    }
+
+    /** Discards any written data, keeping the buffer. */
+    void reset() {
+        mPos = HEADER_SIZE;
+    }
+
+    /** Size of the message written so far, less header. */
+    int dataSize() {
+        return mPos - HEADER_SIZE;
+    }
+
+    /**
+     * Fills in the length header.
+     *
+     * @return the number of bytes to send from {@link #buffer()},
+     *         header included
+     */
+    int frame() {
+        int length = dataSize();
+
+        mData[0] = (byte) (length >>> 24);
+        mData[1] = (byte) (length >>> 16);
+        mData[2] = (byte) (length >>> 8);
+        mData[3] = (byte) length;
+        return mPos;
+    }
+
+    /**
+     * Overwrites an int already written.
+     *
+     * @param position offset in the message, less header
+     */
+    void setInt(int position, int val) {
+        int p = HEADER_SIZE + position;
+
+        mData[p] = (byte) val;
+        mData[p + 1] = (byte) (val >>> 8);
+        mData[p + 2] = (byte) (val >>> 16);
+        mData[p + 3] = (byte) (val >>> 24);
+    }
+
+    byte[] buffer() {
+        return mData;
+    }
+
+    int capacity() {
+        return mData.length;
+    }
+
+    void writeInt(int val) {
+        ensure(4);
+        putInt(val);
+    }
+
+    void writeLong(long val) {
+        ensure(8);
+        putInt((int) val);
+        putInt((int) (val >>> 32));
+    }
+
+    /** As with Parcel, a byte takes up a whole int. */
+    void writeByte(byte val) {
+        writeInt(val);
+    }
+
+    void writeString(String val) {
+        if (val == null) {
+            writeInt(-1);
+            return;
+        }
+
+        int length = val.length();
+        int size = pad((length + 1) * 2);
+
+        ensure(4 + size);
+        putInt(length);
+        int p = mPos;
+        for (int i = 0; i < length; i++) {
+            char c = val.charAt(i);
+            mData[p++] = (byte) c;
+            mData[p++] = (byte) (c >>> 8);
+        }
+        // NUL terminator and padding
+        for (int end = mPos + size; p < end; p++) {
+            mData[p] = 0;
+        }
+        mPos += size;
+    }
+
+    void writeStringArray(String[] val) {
+        if (val == null) {
+            writeInt(-1);
+            return;
+        }
+
+        writeInt(val.length);
+        for (int i = 0; i < val.length; i++) {
+            writeString(val[i]);
+        }
+    }
+
+    void writeIntArray(int[] val) {
+        if (val == null) {
+            writeInt(-1);
+            return;
+        }
+
+        ensure(4 + 4 * val.length);
+        putInt(val.length);
+        for (int i = 0; i < val.length; i++) {
+            putInt(val[i]);
+        }
+    }
+
+    void writeByteArray(byte[] val) {
+        if (val == null) {
+            writeInt(-1);
+            return;
+        }
+
+        int size = pad(val.length);
+
+        ensure(4 + size);
+        putInt(val.length);
+        System.arraycopy(val, 0, mData, mPos, val.length);
+        for (int p = mPos + val.length, end = mPos + size; p < end; p++) {
+            mData[p] = 0;
+        }
+        mPos += size;
+    }
+
+    /**
+     * Appends data already in parcel form, e.g. a payload built with
+     * another writer.
+     */
+    void writeRaw(byte[] val, int offset, int length) {
+        ensure(length);
+        System.arraycopy(val, offset, mData, mPos, length);
+        mPos += length;
+    }
+
+    /** @return a copy of what was written, less the header */
+    byte[] toByteArray() {
+        byte[] data = new byte[dataSize()];
+
+        System.arraycopy(mData, HEADER_SIZE, data, 0, data.length);
+        return data;
+    }
+
+    //***** Private Methods
+
+    private void ensure(int bytes) {
+        if (mPos + bytes > mData.length) {
+            byte[] data = new byte[Math.max(mData.length * 2, mPos + bytes)];
+            System.arraycopy(mData, 0, data, 0, mPos);
+            mData = data;
+        }
+    }
+
+    private void putInt(int val) {
+        mData[mPos++] = (byte) val;
+        mData[mPos++] = (byte) (val >>> 8);
+        mData[mPos++] = (byte) (val >>> 16);
+        mData[mPos++] = (byte) (val >>> 24);
+    }
+
+    private static int pad(int size) {
+        return (size + 3) & ~3;
+    }
+}
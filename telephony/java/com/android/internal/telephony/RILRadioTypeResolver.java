@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import static android.telephony.TelephonyManager.NETWORK_TYPE_UNKNOWN;
+import static android.telephony.TelephonyManager.NETWORK_TYPE_EDGE;
+import static android.telephony.TelephonyManager.NETWORK_TYPE_GPRS;
+import static android.telephony.TelephonyManager.NETWORK_TYPE_UMTS;
+import static android.telephony.TelephonyManager.NETWORK_TYPE_HSDPA;
+import static android.telephony.TelephonyManager.NETWORK_TYPE_HSUPA;
+import static android.telephony.TelephonyManager.NETWORK_TYPE_HSPA;
+
+import android.os.SystemProperties;
+
+/**
+ * Remembers the radio access type of the data registration, which is
+ * needed to interpret neighboring cell locations.
+ *
+ * The type is taken from the radio technology in each
+ * RIL_REQUEST_GPRS_REGISTRATION_STATE response, the same source the
+ * service state tracker uses to set PROPERTY_DATA_NETWORK_TYPE. Until
+ * the first such response, or after {@link #invalidate}, it is read
+ * from that property once.
+ *
+ * {@hide}
+ */
+final class RILRadioTypeResolver {
+    // Radio technology in the GPRS registration state, see ril.h
+    private static final int RADIO_TECH_UNKNOWN = 0;
+    private static final int RADIO_TECH_GPRS = 1;
+    private static final int RADIO_TECH_EDGE = 2;
+    private static final int RADIO_TECH_UMTS = 3;
+    private static final int RADIO_TECH_HSDPA = 9;
+    private static final int RADIO_TECH_HSUPA = 10;
+    private static final int RADIO_TECH_HSPA = 11;
+
+    //***** Instance Variables
+    private volatile int mRadioType;
+    private volatile boolean mValid;
+
+    // Statistics
+    volatile long mPropertyReads;
+
+    /**
+     * @return the TelephonyManager.NETWORK_TYPE_* of the data
+     *         registration, NETWORK_TYPE_UNKNOWN if there is none or it
+     *         has no neighboring cell format
+     */
+    int getRadioType() {
+        if (!mValid) {
+            mPropertyReads++;
+            mRadioType = fromPropertyString(SystemProperties.get(
+                    TelephonyProperties.PROPERTY_DATA_NETWORK_TYPE, "unknown"));
+            mValid = true;
+        }
+        return mRadioType;
+    }
+
+    /**
+     * Updates the type from a RIL_REQUEST_GPRS_REGISTRATION_STATE
+     * response.
+     */
+    void onDataRegistrationState(String[] states) {
+        if (states == null || states.length <= 3 || states[3] == null) {
+            return;
+        }
+
+        int radioTech;
+        try {
+            radioTech = Integer.parseInt(states[3]);
+        } catch (NumberFormatException ex) {
+            radioTech = RADIO_TECH_UNKNOWN;
+        }
+
+        mRadioType = fromRadioTechnology(radioTech);
+        mValid = true;
+    }
+
+    /**
+     * Makes the next lookup read the property again, e.g. when the
+     * network state changed and no registration state is known yet.
+     */
+    void invalidate() {
+        mValid = false;
+    }
+
+    //***** Private Methods
+
+    private static int fromRadioTechnology(int radioTech) {
+        switch (radioTech) {
+            case RADIO_TECH_GPRS: return NETWORK_TYPE_GPRS;
+            case RADIO_TECH_EDGE: return NETWORK_TYPE_EDGE;
+            case RADIO_TECH_UMTS: return NETWORK_TYPE_UMTS;
+            case RADIO_TECH_HSDPA: return NETWORK_TYPE_HSDPA;
+            case RADIO_TECH_HSUPA: return NETWORK_TYPE_HSUPA;
+            case RADIO_TECH_HSPA: return NETWORK_TYPE_HSPA;
+            default: return NETWORK_TYPE_UNKNOWN;
+        }
+    }
+
+    private static int fromPropertyString(String radioString) {
+        if (radioString.equals("GPRS")) {
+            return NETWORK_TYPE_GPRS;
+        } else if (radioString.equals("EDGE")) {
+            return NETWORK_TYPE_EDGE;
+        } else if (radioString.equals("UMTS")) {
+            return NETWORK_TYPE_UMTS;
+        } else if (radioString.equals("HSDPA")) {
+            return NETWORK_TYPE_HSDPA;
+        } else if (radioString.equals("HSUPA")) {
+            return NETWORK_TYPE_HSUPA;
+        } else if (radioString.equals("HSPA")) {
+            return NETWORK_TYPE_HSPA;
+        } else {
+            return NETWORK_TYPE_UNKNOWN;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import static com.android.internal.telephony.RILConstants.*;
+
+import android.os.Message;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shares one round trip to rild between callers of the same read-only
+ * query. While a query of a coalescing type is outstanding (queued or
+ * awaiting its response), further callers are attached to it instead of
+ * sending their own, and get the same result or error when it completes.
+ *
+ * Only parameterless queries qualify, since a caller attached to an
+ * outstanding request must get exactly the answer it would have got on
+ * its own. Callers also share the result object, so they must not
+ * modify it.
+ *
+ * {@hide}
+ */
+final class RILRequestCoalescer {
+    // RIL_REQUEST_* that may be coalesced; index is the slot
+    private static final int[] COALESCED_REQUESTS = {
+        RIL_REQUEST_GET_CURRENT_CALLS,
+        RIL_REQUEST_SIGNAL_STRENGTH,
+        RIL_REQUEST_REGISTRATION_STATE,
+        RIL_REQUEST_GPRS_REGISTRATION_STATE,
+        RIL_REQUEST_OPERATOR,
+    };
+
+    //***** Instance Variables
+    // Outstanding request per slot that new callers attach to
+    private final RILRequest[] mLeaders = new RILRequest[COALESCED_REQUESTS.length];
+    private final long[] mIssued = new long[COALESCED_REQUESTS.length];
+    private final long[] mCoalesced = new long[COALESCED_REQUESTS.length];
+    // Serial space of the RIL this belongs to
+    private final AtomicInteger mSerials;
+
+    RILRequestCoalescer(AtomicInteger serials) {
+        mSerials = serials;
+    }
+
+    /**
+     * Returns a new request to send, or null if result was attached to
+     * a request of the same type that is already outstanding.
+     *
+     * @param request RIL_REQUEST_*
+     * @param result sent when operation completes
+     */
+    synchronized RILRequest obtain(int request, Message result) {
+        int slot = slotOf(request);
+
+        if (slot < 0) {
+            return RILRequest.obtain(mSerials, request, result);
+        }
+
+        RILRequest leader = mLeaders[slot];
+        if (leader != null) {
+            if (leader.mFollowers == null) {
+                leader.mFollowers = new ArrayList<Message>(2);
+            }
+            leader.mFollowers.add(result);
+            mCoalesced[slot]++;
+            return null;
+        }
+
+        leader = RILRequest.obtain(mSerials, request, result);
+        leader.mCoalescer = this;
+        mLeaders[slot] = leader;
+        mIssued[slot]++;
+        return leader;
+    }
+
+    /**
+     * Called as rr completes: stops new callers from attaching to it.
+     *
+     * @return the callers attached to rr, or null if there are none
+     */
+    synchronized ArrayList<Message> detach(RILRequest rr) {
+        int slot = slotOf(rr.mRequest);
+        ArrayList<Message> followers = rr.mFollowers;
+
+        if (slot >= 0 && mLeaders[slot] == rr) {
+            mLeaders[slot] = null;
+        }
+        rr.mFollowers = null;
+        rr.mCoalescer = null;
+        return followers;
+    }
+
+    /**
+     * Makes the next query of this type go to rild even if one is
+     * outstanding, because the state it reports may have changed since
+     * the outstanding one was sent. Callers already attached still get
+     * its result.
+     */
+    synchronized void invalidate(int request) {
+        int slot = slotOf(request);
+
+        if (slot >= 0) {
+            mLeaders[slot] = null;
+        }
+    }
+
+    /** Number of requests of this type sent to rild through obtain(). */
+    synchronized long getIssuedCount(int request) {
+        int slot = slotOf(request);
+
+        return (slot < 0) ? 0 : mIssued[slot];
+    }
+
+    /** Number of callers of this type attached to an outstanding request. */
+    synchronized long getCoalescedCount(int request) {
+        int slot = slotOf(request);
+
+        return (slot < 0) ? 0 : mCoalesced[slot];
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder("coalesced/issued:");
+
+        for (int i = 0; i < COALESCED_REQUESTS.length; i++) {
+            sb.append(' ').append(RIL.requestToString(COALESCED_REQUESTS[i]))
+                    .append('=').append(mCoalesced[i]).append('/').append(mIssued[i]);
+        }
+        return sb.toString();
+    }
+
+    //***** Private Methods
+
+    private static int slotOf(int request) {
+        for (int i = 0; i < COALESCED_REQUESTS.length; i++) {
+            if (COALESCED_REQUESTS[i] == request) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+/**
+ * Per-id description of RIL requests or unsolicited responses: the name
+ * used in logs, the parser for the payload, whether the result may be
+ * logged, and a small dense index for per-type counters.
+ *
+ * Entries live in an array indexed by (id - base), so a lookup is one
+ * bounds check and one array load. Registration copies the array, which
+ * lets the receiver thread read it without locking while new (e.g. OEM)
+ * types are added at runtime.
+ *
+ * {@hide}
+ */
+final class RILRequestRegistry {
+    /** The result may be written to the radio log. */
+    static final int LOG_RESULT = 0;
+    /** The result must not be logged, for privacy's sake. */
+    static final int LOG_REDACTED = 1;
+
+    /** Largest id span a registry will grow to. */
+    static final int MAX_IDS = 4096;
+
+    /**
+     * Decodes the payload of a response. The cursor is positioned just
+     * after the header (serial and error, or the unsolicited id).
+     */
+    interface ResponseParser {
+        Object parse(RIL ril, RILParcelCursor p);
+    }
+
+    static final class Entry {
+        final int mId;
+        final String mName;
+        final ResponseParser mParser;
+        final int mLogPolicy;
+        final int mMetricSlot;
+
+        Entry(int id, String name, ResponseParser parser, int logPolicy, int metricSlot) {
+            mId = id;
+            mName = name;
+            mParser = parser;
+            mLogPolicy = logPolicy;
+            mMetricSlot = metricSlot;
+        }
+
+        boolean isRedacted() {
+            return mLogPolicy == LOG_REDACTED;
+        }
+    }
+
+    //***** Instance Variables
+    private final int mBase;
+    private final String mUnknownName;
+    private volatile Entry[] mEntries;
+    private int mMetricSlots;
+
+    RILRequestRegistry(int base, String unknownName) {
+        mBase = base;
+        mUnknownName = unknownName;
+        mEntries = new Entry[0];
+    }
+
+    /**
+     * @return the entry for id, or null if it has not been registered
+     */
+    Entry get(int id) {
+        Entry[] entries = mEntries;
+        int i = id - mBase;
+
+        if (i < 0 || i >= entries.length) {
+            return null;
+        }
+        return entries[i];
+    }
+
+    String nameOf(int id) {
+        Entry e = get(id);
+
+        return (e == null) ? mUnknownName : e.mName;
+    }
+
+    /**
+     * Number of metric slots handed out so far. Slots are never reused,
+     * so arrays sized with this value stay valid for existing entries.
+     */
+    int getMetricSlotCount() {
+        return mMetricSlots;
+    }
+
+    void register(int id, String name, ResponseParser parser) {
+        register(id, name, parser, LOG_RESULT);
+    }
+
+    /**
+     * Adds or replaces the entry for id. A replaced entry keeps its
+     * metric slot.
+     */
+    synchronized void register(int id, String name, ResponseParser parser, int logPolicy) {
+        int i = id - mBase;
+
+        if (i < 0 || i >= MAX_IDS) {
+            throw new IllegalArgumentException("id out of range: " + id);
+        }
+
+        Entry[] entries = mEntries;
+        int slot;
+
+        if (i < entries.length && entries[i] != null) {
+            slot = entries[i].mMetricSlot;
+        } else {
+            slot = mMetricSlots++;
+        }
+
+        Entry[] copy = new Entry[Math.max(entries.length, i + 1)];
+        System.arraycopy(entries, 0, copy, 0, entries.length);
+        copy[i] = new Entry(id, name, parser, logPolicy, slot);
+
+        mEntries = copy;
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency and error statistics of one RIL_REQUEST_* type, in
+ * microseconds:
+ *
+ * <ul>
+ * <li>queue wait, from send() until RILSender has written the request
+ *     to the socket;</li>
+ * <li>round trip, from then until the response has been read;</li>
+ * <li>parse time, decoding the response.</li>
+ * </ul>
+ *
+ * Recording and reading take no locks, so reading statistics never
+ * stalls requests. RIL hands out copies, see RIL.getRequestStats().
+ *
+ * {@hide}
+ */
+public final class RILRequestStats {
+    // Errors of rild are counted per errno below this; the rest together
+    private static final int MAX_COUNTED_ERRNO = 32;
+
+    //***** Instance Variables
+    private final int mRequest;
+    private final String mName;
+    private final RILHistogram mQueueWait;
+    private final RILHistogram mRoundTrip;
+    private final RILHistogram mParse;
+
+    private final AtomicLongArray mErrors;
+    private final AtomicLong mTimeouts = new AtomicLong();
+
+    RILRequestStats(int request, String name) {
+        this(request, name, new RILHistogram(), new RILHistogram(), new RILHistogram(),
+                new AtomicLongArray(MAX_COUNTED_ERRNO + 1));
+    }
+
+    private RILRequestStats(int request, String name, RILHistogram queueWait,
+            RILHistogram roundTrip, RILHistogram parse, AtomicLongArray errors) {
+        mRequest = request;
+        mName = name;
+        mQueueWait = queueWait;
+        mRoundTrip = roundTrip;
+        mParse = parse;
+        mErrors = errors;
+    }
+
+    void
+    recordQueueWait(long micros) {
+        mQueueWait.record(micros);
+    }
+
+    /**
+     * @param roundTripMicros -1 if the write time of the request is unknown
+     * @param error rild errno of the response, 0 for success
+     */
+    void
+    recordResponse(long roundTripMicros, long parseMicros, int error) {
+        if (roundTripMicros >= 0) {
+            mRoundTrip.record(roundTripMicros);
+        }
+        mParse.record(parseMicros);
+
+        if (error != 0) {
+            mErrors.incrementAndGet(
+                    (error > 0 && error < MAX_COUNTED_ERRNO) ? error : MAX_COUNTED_ERRNO);
+        }
+    }
+
+    void
+    recordTimeout() {
+        mTimeouts.incrementAndGet();
+    }
+
+    /** @return a copy that later recording does not change */
+    RILRequestStats
+    snapshot() {
+        AtomicLongArray errors = new AtomicLongArray(MAX_COUNTED_ERRNO + 1);
+
+        for (int i = 0; i <= MAX_COUNTED_ERRNO; i++) {
+            errors.set(i, mErrors.get(i));
+        }
+
+        RILRequestStats s = new RILRequestStats(mRequest, mName, mQueueWait.snapshot(),
+                mRoundTrip.snapshot(), mParse.snapshot(), errors);
+        s.mTimeouts.set(getTimeoutCount());
+        return s;
+    }
+
+    /** @return RIL_REQUEST_* */
+    public int
+    getRequest() {
+        return mRequest;
+    }
+
+    public String
+    getName() {
+        return mName;
+    }
+
+    /** Number of responses received. */
+    public long
+    getResponseCount() {
+        return mParse.getCount();
+    }
+
+    public long
+    getQueueWaitMicros(double percentile) {
+        return mQueueWait.getPercentile(percentile);
+    }
+
+    public long
+    getRoundTripMicros(double percentile) {
+        return mRoundTrip.getPercentile(percentile);
+    }
+
+    public long
+    getParseMicros(double percentile) {
+        return mParse.getPercentile(percentile);
+    }
+
+    /** Number of responses with an error. */
+    public long
+    getErrorCount() {
+        long n = 0;
+
+        for (int i = 0; i <= MAX_COUNTED_ERRNO; i++) {
+            n += mErrors.get(i);
+        }
+        return n;
+    }
+
+    /** Number of responses with an error that maps to error. */
+    public long
+    getErrorCount(CommandException.Error error) {
+        long n = 0;
+
+        for (int i = 1; i < MAX_COUNTED_ERRNO; i++) {
+            long count = mErrors.get(i);
+
+            if (count != 0
+                    && CommandException.fromRilErrno(i).getCommandError() == error) {
+                n += count;
+            }
+        }
+        return n;
+    }
+
+    /** Number of requests failed because rild did not answer in time. */
+    public long
+    getTimeoutCount() {
+        return mTimeouts.get();
+    }
+
+    @Override
+    public String
+    toString() {
+        return mName + ": queue us " + mQueueWait + "; round trip us " + mRoundTrip
+                + "; parse us " + mParse + "; errors=" + getErrorCount()
+                + " timeouts=" + getTimeoutCount();
+    }
+}
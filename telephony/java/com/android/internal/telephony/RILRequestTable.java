@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import java.util.Arrays;
+
+/**
+ * Table of RIL requests that have been written to rild and are waiting
+ * for a solicited response, keyed by serial number.
+ *
+ * Lookup uses open addressing with linear probing over primitive int keys,
+ * so insert and remove are O(1) and never box the serial. Requests are
+ * additionally chained in the order they were added, which is the order
+ * used when the table is dumped or drained on disconnect.
+ *
+ * Not thread safe; callers synchronize on the table itself.
+ *
+ * {@hide}
+ */
+final class RILRequestTable {
+    private static final int DEFAULT_CAPACITY = 32;
+
+    //***** Instance Variables
+    private int[] mKeys;
+    private RILRequest[] mValues;
+    private int mMask;
+    private int mSize;
+
+    // Insertion ordered chain through RILRequest.mInFlightPrev/mInFlightNext
+    private RILRequest mHead;
+    private RILRequest mTail;
+
+    RILRequestTable() {
+        allocate(DEFAULT_CAPACITY);
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    /**
+     * Adds a request to the table. The serial must not already be present.
+     */
+    void add(RILRequest rr) {
+        if ((mSize + 1) * 2 > mValues.length) {
+            rehash(mValues.length * 2);
+        }
+
+        insert(rr);
+        mSize++;
+
+        rr.mInFlightPrev = mTail;
+        rr.mInFlightNext = null;
+        if (mTail == null) {
+            mHead = rr;
+        } else {
+            mTail.mInFlightNext = rr;
+        }
+        mTail = rr;
+    }
+
+    /**
+     * Returns the request with the given serial without removing it,
+     * or null if there is none.
+     */
+    RILRequest get(int serial) {
+        int i = serial & mMask;
+        RILRequest rr;
+
+        while ((rr = mValues[i]) != null) {
+            if (mKeys[i] == serial) {
+                return rr;
+            }
+            i = (i + 1) & mMask;
+        }
+        return null;
+    }
+
+    /**
+     * Removes and returns the request with the given serial, or null if
+     * there is none.
+     */
+    RILRequest remove(int serial) {
+        int i = serial & mMask;
+        RILRequest rr;
+
+        while ((rr = mValues[i]) != null) {
+            if (mKeys[i] == serial) {
+                deleteSlot(i);
+                unlink(rr);
+                mSize--;
+                return rr;
+            }
+            i = (i + 1) & mMask;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the oldest request in the table, or null if it is empty.
+     * Use with {@link #next} to walk the table in insertion order.
+     */
+    RILRequest first() {
+        return mHead;
+    }
+
+    RILRequest next(RILRequest rr) {
+        return rr.mInFlightNext;
+    }
+
+    /**
+     * Empties the table and returns the requests it held, oldest first,
+     * chained through {@link #next}. The chain stays valid until the
+     * requests are added to a table again.
+     */
+    RILRequest clear() {
+        RILRequest head = mHead;
+
+        if (mSize > 0) {
+            Arrays.fill(mValues, null);
+        }
+        mSize = 0;
+        mHead = mTail = null;
+
+        return head;
+    }
+
+    //***** Private Methods
+
+    private void allocate(int capacity) {
+        mKeys = new int[capacity];
+        mValues = new RILRequest[capacity];
+        mMask = capacity - 1;
+    }
+
+    private void insert(RILRequest rr) {
+        int i = rr.mSerial & mMask;
+
+        while (mValues[i] != null) {
+            i = (i + 1) & mMask;
+        }
+        mKeys[i] = rr.mSerial;
+        mValues[i] = rr;
+    }
+
+    private void rehash(int capacity) {
+        RILRequest[] oldValues = mValues;
+
+        allocate(capacity);
+        for (int i = 0; i < oldValues.length; i++) {
+            if (oldValues[i] != null) {
+                insert(oldValues[i]);
+            }
+        }
+    }
+
+    /**
+     * Clears slot i and shifts back any entries in the same probe run
+     * that would otherwise become unreachable, so no tombstones are needed.
+     */
+    private void deleteSlot(int i) {
+        int j = i;
+
+        mValues[i] = null;
+        for (;;) {
+            j = (j + 1) & mMask;
+            if (mValues[j] == null) {
+                return;
+            }
+
+            int home = mKeys[j] & mMask;
+            boolean reachable = (i <= j)
+                    ? (i < home && home <= j)
+                    : (i < home || home <= j);
+
+            if (!reachable) {
+                mKeys[i] = mKeys[j];
+                mValues[i] = mValues[j];
+                mValues[j] = null;
+                i = j;
+            }
+        }
+    }
+
+    private void unlink(RILRequest rr) {
+        RILRequest prev = rr.mInFlightPrev;
+        RILRequest next = rr.mInFlightNext;
+
+        if (prev == null) {
+            mHead = next;
+        } else {
+            prev.mInFlightNext = next;
+        }
+        if (next == null) {
+            mTail = prev;
+        } else {
+            next.mInFlightPrev = prev;
+        }
+        rr.mInFlightPrev = rr.mInFlightNext = null;
+    }
+}
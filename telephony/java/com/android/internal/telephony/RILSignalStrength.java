@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+/**
+ * Signal strength as reported by rild, matching RIL_SignalStrength in
+ * ril.h field for field.
+ *
+ * RIL decodes every RIL_UNSOL_SIGNAL_STRENGTH into one instance of its
+ * own and compares it with the last reading without allocating; only a
+ * changed reading is published, as a copy that is never changed
+ * afterwards. Subscribers of RIL.getEventPublisher() get that copy;
+ * the signal strength Registrant gets {@link #toIntArray} of it, the
+ * form it has always had.
+ *
+ * {@hide}
+ */
+public final class RILSignalStrength {
+    /** Number of ints in RIL_SignalStrength. */
+    static final int NUM_INTS = 7;
+
+    //***** Instance Variables
+    // RIL_GW_SignalStrength
+    int mGsmSignalStrength;     // 0-31, 99 if unknown
+    int mGsmBitErrorRate;       // 0-7, 99 if unknown
+
+    // RIL_CDMA_SignalStrength
+    int mCdmaDbm;               // positive, as -dBm
+    int mCdmaEcio;              // positive, as -Ec/Io x 10
+
+    // RIL_EVDO_SignalStrength
+    int mEvdoDbm;
+    int mEvdoEcio;
+    int mEvdoSnr;               // 0-8
+
+    RILSignalStrength() {
+    }
+
+    /** @return 0-31, or 99 if unknown */
+    public int
+    getGsmSignalStrength() {
+        return mGsmSignalStrength;
+    }
+
+    /** @return 0-7, or 99 if unknown */
+    public int
+    getGsmBitErrorRate() {
+        return mGsmBitErrorRate;
+    }
+
+    /** @return the CDMA RSSI as -dBm */
+    public int
+    getCdmaDbm() {
+        return mCdmaDbm;
+    }
+
+    /** @return the CDMA Ec/Io as -dB x 10 */
+    public int
+    getCdmaEcio() {
+        return mCdmaEcio;
+    }
+
+    /** @return the EVDO RSSI as -dBm */
+    public int
+    getEvdoDbm() {
+        return mEvdoDbm;
+    }
+
+    /** @return the EVDO Ec/Io as -dB x 10 */
+    public int
+    getEvdoEcio() {
+        return mEvdoEcio;
+    }
+
+    /** @return the EVDO signal to noise ratio, 0-8 */
+    public int
+    getEvdoSnr() {
+        return mEvdoSnr;
+    }
+
+    /** Decodes the next RIL_SignalStrength from p into this. */
+    void
+    readFrom(RILParcelCursor p) {
+        mGsmSignalStrength = p.readInt();
+        mGsmBitErrorRate = p.readInt();
+        mCdmaDbm = p.readInt();
+        mCdmaEcio = p.readInt();
+        mEvdoDbm = p.readInt();
+        mEvdoEcio = p.readInt();
+        mEvdoSnr = p.readInt();
+    }
+
+    void
+    set(RILSignalStrength s) {
+        mGsmSignalStrength = s.mGsmSignalStrength;
+        mGsmBitErrorRate = s.mGsmBitErrorRate;
+        mCdmaDbm = s.mCdmaDbm;
+        mCdmaEcio = s.mCdmaEcio;
+        mEvdoDbm = s.mEvdoDbm;
+        mEvdoEcio = s.mEvdoEcio;
+        mEvdoSnr = s.mEvdoSnr;
+    }
+
+    /** @return a new instance with the same reading, for publishing */
+    RILSignalStrength
+    copy() {
+        RILSignalStrength s = new RILSignalStrength();
+
+        s.set(this);
+        return s;
+    }
+
+    /**
+     * @return a new array in the order of RIL_SignalStrength, the form
+     *         in which signal strength is delivered to Registrants
+     */
+    public int[]
+    toIntArray() {
+        return new int[] {
+            mGsmSignalStrength, mGsmBitErrorRate,
+            mCdmaDbm, mCdmaEcio,
+            mEvdoDbm, mEvdoEcio, mEvdoSnr
+        };
+    }
+
+    @Override
+    public boolean
+    equals(Object o) {
+        if (!(o instanceof RILSignalStrength)) {
+            return false;
+        }
+
+        RILSignalStrength s = (RILSignalStrength) o;
+        return mGsmSignalStrength == s.mGsmSignalStrength
+                && mGsmBitErrorRate == s.mGsmBitErrorRate
+                && mCdmaDbm == s.mCdmaDbm
+                && mCdmaEcio == s.mCdmaEcio
+                && mEvdoDbm == s.mEvdoDbm
+                && mEvdoEcio == s.mEvdoEcio
+                && mEvdoSnr == s.mEvdoSnr;
+    }
+
+    @Override
+    public int
+    hashCode() {
+        int h = mGsmSignalStrength;
+
+        h = 31 * h + mGsmBitErrorRate;
+        h = 31 * h + mCdmaDbm;
+        h = 31 * h + mCdmaEcio;
+        h = 31 * h + mEvdoDbm;
+        h = 31 * h + mEvdoEcio;
+        h = 31 * h + mEvdoSnr;
+        return h;
+    }
+
+    @Override
+    public String
+    toString() {
+        return "{" + mGsmSignalStrength + ", " + mGsmBitErrorRate
+                + ", " + mCdmaDbm + ", " + mCdmaEcio
+                + ", " + mEvdoDbm + ", " + mEvdoEcio + ", " + mEvdoSnr + "}";
+    }
+}
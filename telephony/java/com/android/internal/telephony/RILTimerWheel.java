@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+/**
+ * Hashed timer wheel for RIL request deadlines.
+ *
+ * Time is cut into ticks of tickMillis, and a request is put in the
+ * bucket of the first tick at or after its deadline, chained through
+ * RILRequest.mTimerPrev/mTimerNext. Scheduling and cancelling are O(1).
+ * {@link #expire} visits only the buckets of ticks that have passed
+ * since the previous call; a request whose deadline is more than one
+ * turn of the wheel away stays in its bucket until a later turn.
+ *
+ * Not thread safe; callers provide their own locking.
+ *
+ * {@hide}
+ */
+final class RILTimerWheel {
+    //***** Instance Variables
+    private final RILRequest[] mBuckets;
+    private final int mMask;
+    private final int mTickMillis;
+    private long mLastTick;
+    private int mSize;
+
+    /**
+     * @param buckets number of buckets, a power of two
+     * @param tickMillis resolution of the deadlines
+     * @param now current time in milliseconds
+     */
+    RILTimerWheel(int buckets, int tickMillis, long now) {
+        if (buckets <= 0 || (buckets & (buckets - 1)) != 0) {
+            throw new IllegalArgumentException("buckets must be a power of two");
+        }
+
+        mBuckets = new RILRequest[buckets];
+        mMask = buckets - 1;
+        mTickMillis = tickMillis;
+        mLastTick = now / tickMillis;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    int getTickMillis() {
+        return mTickMillis;
+    }
+
+    /**
+     * Starts timing rr, which must not already be scheduled.
+     *
+     * @param deadline time at which rr expires, in the clock passed to
+     *        the constructor
+     * @return time of the tick at which {@link #expire} will find rr
+     */
+    long schedule(RILRequest rr, long deadline) {
+        long tick = (deadline + mTickMillis - 1) / mTickMillis;
+
+        if (tick <= mLastTick) {
+            tick = mLastTick + 1;
+        }
+
+        int i = (int) (tick & mMask);
+        RILRequest head = mBuckets[i];
+
+        rr.mDeadline = deadline;
+        rr.mTimerBucket = i;
+        rr.mTimerPrev = null;
+        rr.mTimerNext = head;
+        if (head != null) {
+            head.mTimerPrev = rr;
+        }
+        mBuckets[i] = rr;
+        mSize++;
+        return tick * mTickMillis;
+    }
+
+    /**
+     * Stops timing rr. Does nothing if it is not scheduled.
+     */
+    void cancel(RILRequest rr) {
+        if (rr.mTimerBucket < 0) {
+            return;
+        }
+
+        unlink(rr);
+        rr.mTimerNext = null;
+    }
+
+    /**
+     * Removes every request whose deadline is at or before now.
+     *
+     * @return the expired requests chained through RILRequest.mTimerNext,
+     *         or null if none expired
+     */
+    RILRequest expire(long now) {
+        long nowTick = now / mTickMillis;
+        RILRequest expired = null;
+
+        if (nowTick <= mLastTick) {
+            return null;
+        }
+
+        long first = mLastTick + 1;
+        if (nowTick - first > mMask) {
+            // More than a full turn has passed; each bucket once is enough
+            first = nowTick - mMask;
+        }
+
+        for (long tick = first; tick <= nowTick && mSize > 0; tick++) {
+            int i = (int) (tick & mMask);
+            RILRequest rr = mBuckets[i];
+
+            while (rr != null) {
+                RILRequest next = rr.mTimerNext;
+
+                if (rr.mDeadline <= now) {
+                    unlink(rr);
+                    rr.mTimerNext = expired;
+                    expired = rr;
+                }
+                rr = next;
+            }
+        }
+
+        mLastTick = nowTick;
+        return expired;
+    }
+
+    /**
+     * @return time of the first tick whose bucket holds a request, after
+     *         which {@link #expire} may find something to expire, or
+     *         Long.MAX_VALUE if nothing is scheduled
+     */
+    long nextExpiryTime() {
+        if (mSize == 0) {
+            return Long.MAX_VALUE;
+        }
+
+        for (long tick = mLastTick + 1; tick <= mLastTick + mMask + 1; tick++) {
+            if (mBuckets[(int) (tick & mMask)] != null) {
+                return tick * mTickMillis;
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    //***** Private Methods
+
+    private void unlink(RILRequest rr) {
+        RILRequest prev = rr.mTimerPrev;
+        RILRequest next = rr.mTimerNext;
+
+        if (prev == null) {
+            mBuckets[rr.mTimerBucket] = next;
+        } else {
+            prev.mTimerNext = next;
+        }
+        if (next != null) {
+            next.mTimerPrev = prev;
+        }
+
+        rr.mTimerPrev = null;
+        rr.mTimerBucket = -1;
+        mSize--;
+    }
+}
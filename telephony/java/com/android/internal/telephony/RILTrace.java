@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-size ring of the most recent requests and responses, kept in
+ * preallocated arrays so that recording neither allocates nor formats
+ * anything. Any thread may record. Every request and response is
+ * recorded, so RIL leaves the radio log to arguments and values.
+ *
+ * The ring is written out in binary with {@link #writeTo} and rendered
+ * offline by {@link #decode} in the same form as the radio log, e.g.
+ * "[0042]> GET_CURRENT_CALLS".
+ *
+ * {@hide}
+ */
+public final class RILTrace {
+    /** A request was sent. */
+    static final int DIR_REQUEST = 0;
+    /** A response was read; the error is the rild errno. */
+    static final int DIR_RESPONSE = 1;
+    /** An unsolicited response was read; the serial is unused. */
+    static final int DIR_UNSOL = 2;
+    /** A caller was attached to an outstanding request; no serial. */
+    static final int DIR_COALESCED = 3;
+    /** A request got no response in time. */
+    static final int DIR_TIMEOUT = 4;
+
+    private static final int MAGIC = 0x52494c54; // "RILT"
+    private static final int VERSION = 1;
+
+    //***** Instance Variables
+    private final int mMask;
+    // Volatile elements, so that a reader that sees the same sequence
+    // number before and after reading a slot has read one whole entry
+    private final AtomicLongArray mTime;
+    private final AtomicIntegerArray mDirection;
+    private final AtomicIntegerArray mSerial;
+    private final AtomicIntegerArray mId;
+    private final AtomicIntegerArray mError;
+    private final AtomicIntegerArray mLength;
+
+    // Sequence number of the entry in each slot, -1 while it is written
+    private final AtomicLongArray mSeq;
+    private final AtomicLong mNext = new AtomicLong(0);
+
+    /**
+     * @param entries capacity, rounded up to a power of two
+     */
+    RILTrace(int entries) {
+        int size = Integer.highestOneBit(Math.max(entries, 2) - 1) << 1;
+
+        mMask = size - 1;
+        mTime = new AtomicLongArray(size);
+        mDirection = new AtomicIntegerArray(size);
+        mSerial = new AtomicIntegerArray(size);
+        mId = new AtomicIntegerArray(size);
+        mError = new AtomicIntegerArray(size);
+        mLength = new AtomicIntegerArray(size);
+        mSeq = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            mSeq.set(i, -1);
+        }
+    }
+
+    /**
+     * @param direction DIR_*
+     * @param id RIL_REQUEST_* or RIL_UNSOL_*
+     * @param length payload bytes, after the serial and error
+     */
+    void
+    record(int direction, int serial, int id, int error, int length) {
+        long seq = mNext.getAndIncrement();
+        int i = (int) seq & mMask;
+
+        // Invalidate the slot before touching it and publish the entry
+        // only once all of it is written
+        mSeq.set(i, -1);
+        mTime.set(i, System.nanoTime());
+        mDirection.set(i, direction);
+        mSerial.set(i, serial);
+        mId.set(i, id);
+        mError.set(i, error);
+        mLength.set(i, length);
+        mSeq.set(i, seq);
+    }
+
+    /**
+     * Writes the entries in the ring, oldest first, for {@link #decode}.
+     * Entries being recorded meanwhile are skipped.
+     */
+    void
+    writeTo(OutputStream os) throws IOException {
+        DataOutputStream out = new DataOutputStream(os);
+        long end = mNext.get();
+        long start = Math.max(0, end - (mMask + 1));
+
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+
+        for (long seq = start; seq < end; seq++) {
+            int i = (int) seq & mMask;
+
+            if (mSeq.get(i) != seq) {
+                continue;
+            }
+
+            long time = mTime.get(i);
+            int direction = mDirection.get(i);
+            int serial = mSerial.get(i);
+            int id = mId.get(i);
+            int error = mError.get(i);
+            int length = mLength.get(i);
+
+            if (mSeq.get(i) != seq) {
+                continue;
+            }
+
+            out.writeBoolean(true);
+            out.writeLong(time);
+            out.writeByte(direction);
+            out.writeInt(serial);
+            out.writeInt(id);
+            out.writeInt(error);
+            out.writeInt(length);
+        }
+        out.writeBoolean(false);
+        out.flush();
+    }
+
+    /**
+     * Renders a trace written by {@link #writeTo}, one line per entry,
+     * times in ms relative to the first entry.
+     */
+    public static void
+    decode(InputStream is, PrintWriter pw) throws IOException {
+        DataInputStream in = new DataInputStream(is);
+
+        if (in.readInt() != MAGIC) {
+            throw new IOException("not a RIL trace");
+        }
+        int version = in.readInt();
+        if (version != VERSION) {
+            throw new IOException("unsupported RIL trace version " + version);
+        }
+
+        long first = -1;
+
+        while (in.readBoolean()) {
+            long time = in.readLong();
+            int direction = in.readByte();
+            int serial = in.readInt();
+            int id = in.readInt();
+            int error = in.readInt();
+            int length = in.readInt();
+
+            if (first < 0) {
+                first = time;
+            }
+
+            pw.print(String.format("%10.3f ", (time - first) / 1e6));
+            pw.println(format(direction, serial, id, error, length));
+        }
+        pw.flush();
+    }
+
+    //***** Private Methods
+
+    private static String
+    format(int direction, int serial, int id, int error, int length) {
+        String sn = String.format("[%04d]", serial);
+
+        switch (direction) {
+            case DIR_REQUEST:
+                return sn + "> " + RIL.requestToString(id) + " (" + length + " bytes)";
+            case DIR_RESPONSE:
+                return sn + "< " + RIL.requestToString(id)
+                        + ((error != 0) ? " error: " + error : "")
+                        + " (" + length + " bytes)";
+            case DIR_UNSOL:
+                return "[UNSL]< " + RIL.responseToString(id) + " (" + length + " bytes)";
+            case DIR_COALESCED:
+                return "[coal]> " + RIL.requestToString(id);
+            case DIR_TIMEOUT:
+                return sn + "< " + RIL.requestToString(id) + " timed out";
+            default:
+                return sn + " unknown entry " + direction;
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.content.Context;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Compares RIL.TRANSPORT_THREADED with RIL.TRANSPORT_EVENT_LOOP against
+ * a RILFakeRild answering without delay, so what is measured is the
+ * transport: RIL_REQUEST_GET_SIM_STATUS is sent with a given number of
+ * requests outstanding, and the time from the call to the completion
+ * of its future is recorded.
+ *
+ * The RILs made for a run aren't torn down, as RIL has no way to stop;
+ * they keep trying to reconnect until the process ends, so run this in
+ * a process of its own, e.g. an instrumentation test.
+ *
+ * {@hide}
+ */
+public final class RILTransportBenchmark {
+    static final String LOG_TAG = "RILTransportBenchmark";
+
+    private static final String SOCKET_NAME = "rilbench";
+    private static final int CONNECT_TIMEOUT_MILLIS = 10 * 1000;
+    private static final int RESPONSE_TIMEOUT_MILLIS = 10 * 1000;
+
+    private RILTransportBenchmark() {
+    }
+
+    /**
+     * Runs both transports, each first for warm-up and then measured.
+     *
+     * @param requests requests per run
+     * @param window requests kept outstanding; 1 measures round trips,
+     *        more measures throughput
+     * @return one line per transport with the requests per second and
+     *         the latency histogram in us
+     */
+    public static String
+    run(Context context, int requests, int window)
+            throws IOException, InterruptedException {
+        StringBuilder sb = new StringBuilder();
+
+        RILFakeRild rild = new RILFakeRild(0);
+        try {
+            rild.start(SOCKET_NAME);
+            RIL ril = new RIL(context, RILConstants.PREFERRED_NETWORK_MODE,
+                    RILConstants.PREFERRED_CDMA_SUBSCRIPTION,
+                    RIL.ABSTRACT_SOCKET_PREFIX + SOCKET_NAME,
+                    new RILTransportRuntime("RILBenchThreaded"), RIL.TRANSPORT_THREADED);
+            sb.append("threaded:   ").append(measure(ril, requests, window)).append('\n');
+        } finally {
+            rild.stop();
+        }
+
+        rild = new RILFakeRild(0);
+        try {
+            int port = rild.startTcp(0);
+            RIL ril = new RIL(context, RILConstants.PREFERRED_NETWORK_MODE,
+                    RILConstants.PREFERRED_CDMA_SUBSCRIPTION, "127.0.0.1:" + port,
+                    new RILTransportRuntime("RILBenchEventLoop"), RIL.TRANSPORT_EVENT_LOOP);
+            sb.append("event loop: ").append(measure(ril, requests, window)).append('\n');
+        } finally {
+            rild.stop();
+        }
+
+        return sb.toString();
+    }
+
+    //***** Private Methods
+
+    private static String
+    measure(RIL ril, int requests, int window)
+            throws IOException, InterruptedException {
+        awaitConnection(ril);
+
+        // Warm-up
+        send(ril, requests, window, new RILHistogram());
+
+        RILHistogram latency = new RILHistogram();
+        long elapsed = send(ril, requests, window, latency);
+
+        return "requests/s=" + (requests * 1000000000L / Math.max(elapsed, 1))
+                + " latency us: " + latency;
+    }
+
+    /**
+     * Sends requests with window of them outstanding and waits for the
+     * last.
+     *
+     * @return the time taken in ns
+     */
+    private static long
+    send(RIL ril, int requests, int window, final RILHistogram latency)
+            throws IOException, InterruptedException {
+        @SuppressWarnings("unchecked")
+        RILFuture<IccCardStatus>[] outstanding = new RILFuture[window];
+        long start = System.nanoTime();
+
+        for (int i = 0; i < requests + window; i++) {
+            int slot = i % window;
+
+            if (outstanding[slot] != null) {
+                await(outstanding[slot]);
+                outstanding[slot] = null;
+            }
+            if (i >= requests) {
+                continue;
+            }
+
+            final long sent = System.nanoTime();
+            outstanding[slot] = ril.getIccCardStatusAsync();
+            outstanding[slot].addListener(new RILFuture.Listener<IccCardStatus>() {
+                public void onComplete(RILFuture<IccCardStatus> future) {
+                    latency.record((System.nanoTime() - sent) / 1000);
+                }
+            });
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Waits for the RIL to reach the fake rild, which is when a request
+     * stops failing with RADIO_NOT_AVAILABLE.
+     */
+    private static void
+    awaitConnection(RIL ril) throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT_MILLIS;
+
+        while (System.currentTimeMillis() < deadline) {
+            try {
+                ril.getIccCardStatusAsync().get(RESPONSE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                return;
+            } catch (ExecutionException ex) {
+                Thread.sleep(50);
+            } catch (TimeoutException ex) {
+                break;
+            }
+        }
+        throw new IOException("RIL didn't connect to the fake rild");
+    }
+
+    private static void
+    await(RILFuture<IccCardStatus> future) throws IOException, InterruptedException {
+        try {
+            future.get(RESPONSE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException ex) {
+            throw new IOException("request failed: " + ex.getCause());
+        } catch (TimeoutException ex) {
+            throw new IOException("no response in " + RESPONSE_TIMEOUT_MILLIS + "ms");
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.os.HandlerThread;
+import android.os.Looper;
+
+/**
+ * The threads that write requests, dispatch results and decode SMS for
+ * RIL instances. Several instances, e.g. one per modem, can share one
+ * runtime, so the thread count doesn't grow with the number of modems;
+ * only the thread reading each socket is per instance.
+ *
+ * Each RIL attaches its own Handlers to the shared loopers, so serials,
+ * requests in flight, timeouts and wake lock accounting stay separate.
+ * A RIL that makes blocking calls from these loopers delays every RIL
+ * sharing them.
+ *
+ * {@hide}
+ */
+public final class RILTransportRuntime {
+    //***** Instance Variables
+    private final HandlerThread mSenderThread;
+    private final HandlerThread mDispatcherThread;
+    private final HandlerThread mSmsDecoderThread;
+
+    /**
+     * Starts the threads, named after name, e.g. "RIL" gives RILSender,
+     * RILDispatcher and RILSmsDecoder.
+     */
+    public RILTransportRuntime(String name) {
+        mSenderThread = new HandlerThread(name + "Sender");
+        mSenderThread.start();
+
+        mDispatcherThread = new HandlerThread(name + "Dispatcher");
+        mDispatcherThread.start();
+
+        mSmsDecoderThread = new HandlerThread(name + "SmsDecoder");
+        mSmsDecoderThread.start();
+    }
+
+    /** Writes requests and handles timeouts. */
+    Looper getSenderLooper() {
+        return mSenderThread.getLooper();
+    }
+
+    /** Delivers results and unsolicited notifications. */
+    Looper getDispatcherLooper() {
+        return mDispatcherThread.getLooper();
+    }
+
+    /** Decodes incoming SMS. */
+    Looper getSmsDecoderLooper() {
+        return mSmsDecoderThread.getLooper();
+    }
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Appends the messages exchanged with rild to a set of rotating capture
+ * files, for replay with RILWireReplay.
+ *
+ * Each file is memory-mapped at its full size, so appending is a copy
+ * into the mapping. The next file is created and mapped ahead of time,
+ * and full files are synced and the oldest beyond the limit deleted, on
+ * a thread of the capture's own, so appending never waits for file I/O;
+ * a message arriving while the next file is still being mapped is
+ * dropped. Files are named prefix.000000, prefix.000001, ... and hold:
+ *
+ * <pre>
+ *   int magic, int version
+ *   repeated: byte direction, long System.nanoTime(), int length, payload
+ *   byte 0
+ * </pre>
+ *
+ * Payloads are the parcels without their length header, as written to
+ * or read from the socket. Redacted records keep only the header of
+ * the parcel, see DIR_OUT_REDACTED and DIR_IN_REDACTED.
+ *
+ * {@hide}
+ */
+final class RILWireCapture {
+    static final String LOG_TAG = "RILJ";
+
+    static final int MAGIC = 0x52494c57; // "RILW"
+    static final int VERSION = 1;
+    static final int FILE_HEADER_SIZE = 8;
+    static final int RECORD_HEADER_SIZE = 13;
+
+    /** Sent to rild. */
+    static final int DIR_OUT = 1;
+    /** Received from rild. */
+    static final int DIR_IN = 2;
+    /** Sent to rild; only the request type and serial are kept. */
+    static final int DIR_OUT_REDACTED = 3;
+    /**
+     * Received from rild; only the type and serial or unsolicited id are
+     * kept.
+     */
+    static final int DIR_IN_REDACTED = 4;
+
+    //***** Instance Variables
+    private final File mDir;
+    private final String mPrefix;
+    private final int mFileBytes;
+    private final int mMaxFiles;
+
+    // Maps the next file and syncs full ones, off the appending threads
+    private final HandlerThread mRotatorThread;
+    private final Handler mRotator;
+
+    // Guarded by this
+    private int mFileIndex;
+    private MappedByteBuffer mBuffer;
+    // File mFileIndex + 1, once mRotator has mapped it
+    private MappedByteBuffer mNext;
+    private boolean mClosed;
+
+    // Statistics
+    private long mRecords;
+    private long mDropped;
+
+    /**
+     * @param fileBytes size of each file
+     * @param maxFiles files kept, the oldest being deleted; one more is
+     *        mapped ahead
+     */
+    RILWireCapture(File dir, String prefix, int fileBytes, int maxFiles) throws IOException {
+        if (fileBytes <= FILE_HEADER_SIZE + RECORD_HEADER_SIZE + 1 || maxFiles < 1) {
+            throw new IllegalArgumentException("fileBytes " + fileBytes
+                    + " maxFiles " + maxFiles);
+        }
+
+        mDir = dir;
+        mPrefix = prefix;
+        mFileBytes = fileBytes;
+        mMaxFiles = maxFiles;
+
+        mFileIndex = 0;
+        mBuffer = map(0);
+
+        mRotatorThread = new HandlerThread("RILWireCapture");
+        mRotatorThread.start();
+        mRotator = new Handler(mRotatorThread.getLooper());
+        rotateAhead(null, 0);
+    }
+
+    static File
+    fileOf(File dir, String prefix, int index) {
+        return new File(dir, prefix + "." + String.format("%06d", index));
+    }
+
+    /** Reads a little-endian int of a parcel, as captured. */
+    static int
+    readInt(byte[] data, int offset) {
+        return (data[offset] & 0xff)
+                | (data[offset + 1] & 0xff) << 8
+                | (data[offset + 2] & 0xff) << 16
+                | (data[offset + 3] & 0xff) << 24;
+    }
+
+    /**
+     * Appends a message; messages too large for one file are dropped,
+     * as is everything after an I/O error.
+     */
+    synchronized void
+    append(int direction, long timeNanos, byte[] data, int offset, int length) {
+        if (mClosed) {
+            return;
+        }
+
+        int needed = RECORD_HEADER_SIZE + length;
+
+        // The last byte of a file is kept for the terminating 0
+        if (needed > mFileBytes - FILE_HEADER_SIZE - 1) {
+            mDropped++;
+            return;
+        }
+
+        if (needed > mBuffer.remaining()) {
+            if (mNext == null) {
+                // Still being mapped; don't wait for it
+                mDropped++;
+                return;
+            }
+
+            MappedByteBuffer full = mBuffer;
+
+            mBuffer = mNext;
+            mNext = null;
+            mFileIndex++;
+            rotateAhead(full, mFileIndex);
+        }
+
+        mBuffer.put((byte) direction);
+        mBuffer.putLong(timeNanos);
+        mBuffer.putInt(length);
+        mBuffer.put(data, offset, length);
+        mRecords++;
+    }
+
+    /**
+     * Stops the capture. The last file is synced, and the one mapped
+     * ahead deleted, in the background.
+     */
+    void
+    close() {
+        final MappedByteBuffer last;
+        final int next;
+
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+
+            mClosed = true;
+            last = mBuffer;
+            next = (mNext != null) ? mFileIndex + 1 : -1;
+            mBuffer = null;
+            mNext = null;
+        }
+
+        mRotator.post(new Runnable() {
+            public void run() {
+                if (last != null) {
+                    last.force();
+                }
+                if (next >= 0) {
+                    delete(next);
+                }
+                mRotatorThread.quit();
+            }
+        });
+    }
+
+    @Override
+    public synchronized String
+    toString() {
+        return "wire capture: file=" + mFileIndex + " records=" + mRecords
+                + " dropped=" + mDropped;
+    }
+
+    //***** Private Methods
+
+    /**
+     * Has mRotator sync full, if any, delete the file that fell out of
+     * the set now that file current is in use, and map the next one.
+     */
+    private void
+    rotateAhead(final MappedByteBuffer full, final int current) {
+        mRotator.post(new Runnable() {
+            public void run() {
+                if (full != null) {
+                    full.force();
+                }
+                if (current >= mMaxFiles) {
+                    delete(current - mMaxFiles);
+                }
+
+                MappedByteBuffer next = null;
+                try {
+                    next = map(current + 1);
+                } catch (IOException ex) {
+                    Log.e(LOG_TAG, "Wire capture stopped", ex);
+                }
+
+                synchronized (RILWireCapture.this) {
+                    if (mClosed) {
+                        if (next != null) {
+                            delete(current + 1);
+                        }
+                    } else if (next == null) {
+                        mClosed = true;
+                        mBuffer = null;
+                    } else {
+                        mNext = next;
+                    }
+                }
+            }
+        });
+    }
+
+    private MappedByteBuffer
+    map(int index) throws IOException {
+        MappedByteBuffer buffer;
+        RandomAccessFile raf = new RandomAccessFile(fileOf(mDir, mPrefix, index), "rw");
+
+        try {
+            // Zero filled, so a reader stops at the end of what was written
+            raf.setLength(0);
+            raf.setLength(mFileBytes);
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, mFileBytes);
+        } finally {
+            // The mapping stays valid
+            raf.close();
+        }
+
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        // Keep room for the terminating 0
+        buffer.limit(mFileBytes - 1);
+        return buffer;
+    }
+
+    private void
+    delete(int index) {
+        File f = fileOf(mDir, mPrefix, index);
+
+        if (f.exists() && !f.delete()) {
+            Log.w(LOG_TAG, "Couldn't delete " + f);
+        }
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Feeds files written by RILWireCapture back through
+ * RIL.processResponse, to measure decoding on real traffic without a
+ * modem.
+ *
+ * Each captured request is entered in the RIL's table of outstanding
+ * requests under its captured serial, with no result Message, so that
+ * the captured response is decoded and dispatched as it was originally.
+ *
+ * Responses are processed on the calling thread, so the RIL must be one
+ * made by RIL.createForReplay(), which never connects to rild and keeps
+ * the captured unsolicited responses from reaching anyone. Records
+ * redacted by the capture are skipped.
+ *
+ * {@hide}
+ */
+public final class RILWireReplay {
+    //***** Instance Variables
+    private final RIL mRil;
+    private final RILParcelCursor mCursor = new RILParcelCursor();
+    private byte[] mData = new byte[RIL.RIL_MAX_COMMAND_BYTES];
+
+    // Original time of the first message and when it was replayed
+    private long mFirstTime;
+    private long mStartTime;
+
+    // Statistics
+    private long mResponses;
+    private long mBytes;
+    private long mNanos;
+    private long mRedacted;
+
+    /**
+     * @param ril made by RIL.createForReplay()
+     */
+    public RILWireReplay(RIL ril) {
+        if (!ril.mReplayOnly) {
+            throw new IllegalArgumentException("not a replay RIL");
+        }
+        mRil = ril;
+    }
+
+    /**
+     * Replays the capture files dir/prefix.000000 and on, in order.
+     *
+     * @param realTime true to keep the original spacing of the
+     *        responses, false to replay as fast as possible
+     * @return the number of responses replayed
+     */
+    public long
+    replay(File dir, String prefix, boolean realTime) throws IOException {
+        long before = mResponses;
+        String[] names = dir.list();
+        int[] indices = new int[(names == null) ? 0 : names.length];
+        int count = 0;
+
+        // Rotation may have deleted the first files, so look for the rest
+        for (int i = 0; i < indices.length; i++) {
+            if (names[i].startsWith(prefix + ".")) {
+                try {
+                    indices[count] = Integer.parseInt(names[i].substring(prefix.length() + 1));
+                    count++;
+                } catch (NumberFormatException ex) {
+                }
+            }
+        }
+        Arrays.sort(indices, 0, count);
+
+        mFirstTime = -1;
+        for (int i = 0; i < count; i++) {
+            replayFile(RILWireCapture.fileOf(dir, prefix, indices[i]), realTime);
+        }
+        return mResponses - before;
+    }
+
+    /** @return time spent in processResponse, in ns */
+    public long
+    getProcessingNanos() {
+        return mNanos;
+    }
+
+    @Override
+    public String
+    toString() {
+        return "replayed " + mResponses + " responses, " + mBytes + " bytes in "
+                + (mNanos / 1000) + "us"
+                + ((mNanos == 0) ? "" : ", " + (mBytes * 1000000000L / mNanos) + " bytes/s")
+                + ", skipped " + mRedacted + " redacted";
+    }
+
+    //***** Private Methods
+
+    private void
+    replayFile(File f, boolean realTime) throws IOException {
+        MappedByteBuffer buffer;
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+
+        try {
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        } finally {
+            raf.close();
+        }
+
+        if (buffer.remaining() < RILWireCapture.FILE_HEADER_SIZE
+                || buffer.getInt() != RILWireCapture.MAGIC
+                || buffer.getInt() != RILWireCapture.VERSION) {
+            throw new IOException("not a RIL wire capture: " + f);
+        }
+
+        while (buffer.remaining() >= RILWireCapture.RECORD_HEADER_SIZE) {
+            int direction = buffer.get();
+
+            if (direction == 0) {
+                break;
+            }
+
+            long time = buffer.getLong();
+            int length = buffer.getInt();
+
+            if (length < 0 || length > buffer.remaining()) {
+                throw new IOException("truncated record in " + f);
+            }
+            if (length > mData.length) {
+                mData = new byte[length];
+            }
+            buffer.get(mData, 0, length);
+
+            if (direction == RILWireCapture.DIR_OUT
+                    || direction == RILWireCapture.DIR_OUT_REDACTED) {
+                if (length >= 8) {
+                    // Request type and serial, little-endian
+                    mRil.addReplayedRequest(RILWireCapture.readInt(mData, 0),
+                            RILWireCapture.readInt(mData, 4));
+                }
+            } else if (direction == RILWireCapture.DIR_IN_REDACTED) {
+                // Solicited responses still answer their request
+                if (length >= 8 && RILWireCapture.readInt(mData, 0) == RIL.RESPONSE_SOLICITED) {
+                    mRil.dropReplayedRequest(RILWireCapture.readInt(mData, 4));
+                }
+                mRedacted++;
+            } else if (direction == RILWireCapture.DIR_IN) {
+                if (realTime) {
+                    pace(time);
+                }
+
+                mCursor.reset(mData, 0, length);
+
+                long start = System.nanoTime();
+                mRil.processResponse(mCursor, start);
+                mNanos += System.nanoTime() - start;
+
+                mResponses++;
+                mBytes += length;
+            }
+        }
+    }
+
+    private void
+    pace(long time) {
+        long now = System.nanoTime();
+
+        if (mFirstTime < 0) {
+            mFirstTime = time;
+            mStartTime = now;
+            return;
+        }
+
+        long delay = (time - mFirstTime) - (now - mStartTime);
+        if (delay > 0) {
+            try {
+                Thread.sleep(delay / 1000000, (int) (delay % 1000000));
+            } catch (InterruptedException ex) {
+            }
+        }
+    }
+}